@@ -0,0 +1,62 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Wraps a PreparedStatement which is executed in batches.
+ * The caller binds the parameters for a row on getStatement(), then calls addBatch().
+ * Whenever batchSize rows have accumulated the batch is executed; close() executes whatever is left.
+ */
+public class BatchStatement implements AutoCloseable {
+
+    private final PreparedStatement _statement;
+    private final int _batchSize;
+    private int _pendingCount = 0;
+    private long _rowCount = 0;
+
+    public BatchStatement(
+        final Connection conn,
+        final String sql,
+        final int batchSize
+    ) throws SQLException {
+        _statement = conn.prepareStatement(sql);
+        _batchSize = Math.max(1, batchSize);
+    }
+
+    public long getRowCount() { return _rowCount; }
+    public PreparedStatement getStatement() { return _statement; }
+
+    /**
+     * Adds the currently-bound parameters to the batch, executing the batch if it is full
+     */
+    public void addBatch() throws SQLException {
+        _statement.addBatch();
+        _rowCount++;
+        if (++_pendingCount >= _batchSize) {
+            flush();
+        }
+    }
+
+    public void flush() throws SQLException {
+        if (_pendingCount > 0) {
+            _statement.executeBatch();
+            _pendingCount = 0;
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            flush();
+        } finally {
+            _statement.close();
+        }
+    }
+}
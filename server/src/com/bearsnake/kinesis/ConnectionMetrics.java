@@ -0,0 +1,70 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Wait and hold times for one kind of database connection use.
+ * Wait time runs from the request for a connection until the connection is available to the caller
+ * (for the writer, until the task reaches the head of the queue); hold time runs from then until the
+ * connection is given back.
+ */
+public class ConnectionMetrics {
+
+    private final String _name;
+    private final LongAdder _useCount = new LongAdder();
+    private final LongAdder _waitNanos = new LongAdder();
+    private final LongAdder _holdNanos = new LongAdder();
+    private final AtomicLong _maxWaitNanos = new AtomicLong();
+    private final AtomicLong _maxHoldNanos = new AtomicLong();
+
+    ConnectionMetrics(
+        final String name
+    ) {
+        _name = name;
+    }
+
+    public String getName() { return _name; }
+    public long getUseCount() { return _useCount.sum(); }
+    public long getMaxHoldMicros() { return _maxHoldNanos.get() / 1000; }
+    public long getMaxWaitMicros() { return _maxWaitNanos.get() / 1000; }
+    public long getTotalHoldMicros() { return _holdNanos.sum() / 1000; }
+    public long getTotalWaitMicros() { return _waitNanos.sum() / 1000; }
+
+    public double getAverageHoldMicros() {
+        var count = _useCount.sum();
+        return count == 0 ? 0.0 : _holdNanos.sum() / 1000.0 / count;
+    }
+
+    public double getAverageWaitMicros() {
+        var count = _useCount.sum();
+        return count == 0 ? 0.0 : _waitNanos.sum() / 1000.0 / count;
+    }
+
+    void record(
+        final long waitNanos,
+        final long holdNanos
+    ) {
+        _useCount.increment();
+        _waitNanos.add(waitNanos);
+        _holdNanos.add(holdNanos);
+        _maxWaitNanos.accumulateAndGet(waitNanos, Math::max);
+        _maxHoldNanos.accumulateAndGet(holdNanos, Math::max);
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d use(s), wait avg %.1f usec max %d usec, hold avg %.1f usec max %d usec",
+                             _name,
+                             getUseCount(),
+                             getAverageWaitMicros(),
+                             getMaxWaitMicros(),
+                             getAverageHoldMicros(),
+                             getMaxHoldMicros());
+    }
+}
@@ -6,9 +6,11 @@
 package com.bearsnake.kinesis;
 
 import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.Journal;
 import com.bearsnake.kinesis.entities.Planet;
 import com.bearsnake.kinesis.entities.Player;
 import com.bearsnake.kinesis.entities.Port;
+import com.bearsnake.kinesis.entities.PortEconomy;
 import com.bearsnake.kinesis.entities.Sector;
 import com.bearsnake.kinesis.entities.Ship;
 import com.bearsnake.kinesis.exceptions.DatabaseException;
@@ -18,24 +20,93 @@ import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import org.sqlite.SQLiteConfig;
 
-public class DatabaseWrapper {
+/**
+ * Access to the kinesis database.
+ * Queries run on a small pool of read-only connections (see read()). All changes go through a single writer
+ * thread which owns the one write connection, taking tasks from a queue and committing each one (see write()).
+ * This follows SQLite's own model of many readers and a single writer, and keeps writers from contending
+ * with each other for the database lock.
+ * createConnection() remains available for setup work done before the server is running.
+ */
+public class DatabaseWrapper implements AutoCloseable {
 
     private static final Logger LOGGER = LogManager.getLogger("DatabaseWrapper");
+    public static final int DEFAULT_BATCH_SIZE = 500;
+    public static final int DEFAULT_READ_CONNECTION_COUNT = 4;
+    private static final int BUSY_TIMEOUT_MSECS = 10000;
+
+    /**
+     * SEQUENTIAL loads one table after another on a single connection.
+     * PARALLEL reads all the tables concurrently on the pooled read connections, into raw rows,
+     * then resolves the rows into entities, resolving independent entity types in parallel.
+     */
+    public enum LoadMode {
+        SEQUENTIAL,
+        PARALLEL,
+    }
+
+    /**
+     * Some work to be done with a database connection. The task must not close the connection.
+     */
+    public interface ConnectionTask<T> {
+        T execute(final Connection conn) throws SQLException;
+    }
 
     private final String _path;
     private final String _url;
+    private int _batchSize = DEFAULT_BATCH_SIZE;
+
+    private final BlockingQueue<Connection> _idleReadConnections;
+    private final AtomicInteger _readConnectionCount = new AtomicInteger();
+    private final int _maxReadConnections;
+    private final ConnectionMetrics _readMetrics = new ConnectionMetrics("read");
+
+    private final ExecutorService _writer;
+    private Connection _writeConnection = null; // only touched by the writer thread
+    private final ConnectionMetrics _writeMetrics = new ConnectionMetrics("write");
 
     public DatabaseWrapper(
         final String path
+    ) {
+        this(path, DEFAULT_READ_CONNECTION_COUNT);
+    }
+
+    public DatabaseWrapper(
+        final String path,
+        final int maxReadConnections
     ) {
         _path = path;
         _url = "jdbc:sqlite:" + _path;
+        _maxReadConnections = Math.max(1, maxReadConnections);
+        _idleReadConnections = new ArrayBlockingQueue<>(_maxReadConnections);
+        _writer = Executors.newSingleThreadExecutor(runnable -> {
+            var thread = new Thread(runnable, "DatabaseWriter");
+            thread.setDaemon(true);
+            return thread;
+        });
     }
 
-    public synchronized Connection createConnection() throws DatabaseException {
+    public int getBatchSize() { return _batchSize; }
+    public String getPath() { return _path; }
+    public ConnectionMetrics getReadMetrics() { return _readMetrics; }
+    public ConnectionMetrics getWriteMetrics() { return _writeMetrics; }
+    public void setBatchSize(final int value) { _batchSize = Math.max(1, value); }
+
+    public Connection createConnection() throws DatabaseException {
         LOGGER.trace("createConnection");
         try {
             return DriverManager.getConnection(_url);
@@ -45,6 +116,144 @@ public class DatabaseWrapper {
         }
     }
 
+    private Connection createConnection(
+        final boolean readOnly
+    ) throws SQLException {
+        var config = new SQLiteConfig();
+        config.setReadOnly(readOnly);
+        config.setBusyTimeout(BUSY_TIMEOUT_MSECS);
+        return DriverManager.getConnection(_url, config.toProperties());
+    }
+
+    /**
+     * Runs a query on one of the pooled read-only connections, waiting for a connection if they are all in use
+     */
+    public <T> T read(
+        final ConnectionTask<T> task
+    ) throws DatabaseException {
+        var startTime = System.nanoTime();
+        Connection conn = null;
+        try {
+            conn = _idleReadConnections.poll();
+            if (conn == null) {
+                if (_readConnectionCount.incrementAndGet() <= _maxReadConnections) {
+                    try {
+                        conn = createConnection(true);
+                    } catch (SQLException | RuntimeException ex) {
+                        _readConnectionCount.decrementAndGet();
+                        throw ex;
+                    }
+                } else {
+                    _readConnectionCount.decrementAndGet();
+                    conn = _idleReadConnections.take();
+                }
+            }
+
+            var acquiredTime = System.nanoTime();
+            try {
+                return task.execute(conn);
+            } finally {
+                _readMetrics.record(acquiredTime - startTime, System.nanoTime() - acquiredTime);
+            }
+        } catch (SQLException ex) {
+            LOGGER.catching(ex);
+            throw new DatabaseException(ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted waiting for a read connection");
+        } finally {
+            if (conn != null) {
+                _idleReadConnections.offer(conn);
+            }
+        }
+    }
+
+    /**
+     * Queues a task for the writer thread, which runs it in a transaction of its own.
+     * The transaction is committed if the task completes normally, and rolled back if it throws.
+     */
+    public <T> CompletableFuture<T> submitWrite(
+        final ConnectionTask<T> task
+    ) {
+        var queuedTime = System.nanoTime();
+        return CompletableFuture.supplyAsync(() -> {
+            var startTime = System.nanoTime();
+            try {
+                if (_writeConnection == null) {
+                    _writeConnection = createConnection(false);
+                    _writeConnection.setAutoCommit(false);
+                }
+
+                try {
+                    var result = task.execute(_writeConnection);
+                    _writeConnection.commit();
+                    return result;
+                } catch (SQLException | RuntimeException ex) {
+                    _writeConnection.rollback();
+                    throw ex;
+                }
+            } catch (SQLException ex) {
+                throw new CompletionException(ex);
+            } finally {
+                _writeMetrics.record(startTime - queuedTime, System.nanoTime() - startTime);
+            }
+        }, _writer);
+    }
+
+    /**
+     * Runs a task on the writer thread (see submitWrite()) and waits for it to complete
+     */
+    public <T> T write(
+        final ConnectionTask<T> task
+    ) throws DatabaseException {
+        try {
+            return submitWrite(task).get();
+        } catch (ExecutionException ex) {
+            LOGGER.catching(ex.getCause());
+            throw new DatabaseException(ex.getCause().getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new DatabaseException("Interrupted waiting for a write");
+        }
+    }
+
+    /**
+     * Completes any queued writes, then closes all the connections
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        _writer.submit(() -> {
+            if (_writeConnection != null) {
+                try {
+                    _writeConnection.close();
+                } catch (SQLException ex) {
+                    LOGGER.catching(ex);
+                }
+                _writeConnection = null;
+            }
+        });
+        _writer.shutdown();
+        try {
+            _writer.awaitTermination(1, TimeUnit.MINUTES);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        Connection conn;
+        while ((conn = _idleReadConnections.poll()) != null) {
+            try {
+                conn.close();
+            } catch (SQLException ex) {
+                LOGGER.catching(ex);
+            }
+            _readConnectionCount.decrementAndGet();
+        }
+
+        LOGGER.info(_readMetrics);
+        LOGGER.info(_writeMetrics);
+    }
+
     public void createDatabase() throws DatabaseException {
         LOGGER.trace("createDatabase()");
         if (Files.exists(Path.of(_path))) {
@@ -74,6 +283,7 @@ public class DatabaseWrapper {
             Cluster.dbCreateTable(conn);
             Sector.dbCreateTables(conn);
             Port.dbCreateTable(conn);
+            PortEconomy.dbCreateTable(conn);
             Planet.dbCreateTable(conn);
 
             conn.commit();
@@ -95,19 +305,137 @@ public class DatabaseWrapper {
     }
 
     public void loadFromDatabase() throws DatabaseException {
-        LOGGER.trace("loadFromDatabase()");
-        try {
-            var conn = createConnection();
+        loadFromDatabase(LoadMode.SEQUENTIAL);
+    }
+
+    public void loadFromDatabase(
+        final LoadMode mode
+    ) throws DatabaseException {
+        LOGGER.trace("loadFromDatabase({})", mode);
+        var startTime = System.currentTimeMillis();
+        migrate();
+        if (mode == LoadMode.PARALLEL) {
+            loadParallel();
+        } else {
+            loadSequential();
+        }
+        replayJournal();
+
+        var msg = String.format("Loaded database in %d msec", System.currentTimeMillis() - startTime);
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    /**
+     * Reports the memory used by the entity inventories, against what the HashMaps keyed by id objects
+     * which they replaced would have used
+     */
+    public static void reportInventoryFootprint() {
+        var footprint = Player.getInventoryFootprint()
+                              .plus(Cluster.getInventoryFootprint())
+                              .plus(Sector.getInventoryFootprint())
+                              .plus(Ship.getInventoryFootprint())
+                              .plus(Planet.getInventoryFootprint())
+                              .plus(Port.getInventoryFootprint());
+        var msg = String.format("Inventories hold %d entities in %d KB (%d KB with boxed ids, %d KB saved)",
+                                footprint.size(),
+                                footprint.bytes() / 1024,
+                                footprint.boxedBytes() / 1024,
+                                (footprint.boxedBytes() - footprint.bytes()) / 1024);
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    /**
+     * Brings a database created by an earlier version up to date, by adding the tables it lacks
+     */
+    private void migrate() throws DatabaseException {
+        write(conn -> {
+            PortEconomy.dbCreateTable(conn);
+            return null;
+        });
+    }
+
+    /**
+     * Applies to the loaded universe any changes journaled after the last checkpoint of an earlier run,
+     * and writes them to the database
+     */
+    public void replayJournal() throws DatabaseException {
+        Journal.replay(this);
+    }
+
+    private void loadSequential() throws DatabaseException {
+        read(conn -> {
             Player.dbLoad(conn);
             Cluster.dbLoad(conn);
             Sector.dbLoad(conn);
             Ship.dbLoad(conn);
             Planet.dbLoad(conn);
             Port.dbLoad(conn);
-            conn.close();
-        } catch (SQLException ex) {
-            LOGGER.catching(ex);
-            throw new DatabaseException(ex.getMessage());
+            PortEconomy.dbLoad(conn);
+            return null;
+        });
+    }
+
+    /**
+     * Phase 1 reads every table concurrently on the pooled read connections; nothing is resolved, so there is no ordering.
+     * Phase 2 resolves the rows in dependency order - players and clusters, then sectors,
+     * then sector links, ships, planets and ports, with the entries at each level resolved in parallel,
+     * and finally the ports' resources.
+     */
+    private void loadParallel() throws DatabaseException {
+        var executor = Executors.newFixedThreadPool(7);
+        try {
+            var readStart = System.currentTimeMillis();
+            var playerRows = read(executor, Player::dbReadRows);
+            var clusterRows = read(executor, Cluster::dbReadRows);
+            var sectorRows = read(executor, Sector::dbReadRows);
+            var linkRows = read(executor, Sector::dbReadLinkRows);
+            var shipRows = read(executor, Ship::dbReadRows);
+            var planetRows = read(executor, Planet::dbReadRows);
+            var portRows = read(executor, Port::dbReadRows);
+            var resourceRows = read(executor, PortEconomy::dbReadRows);
+            CompletableFuture.allOf(playerRows, clusterRows, sectorRows, linkRows, shipRows, planetRows, portRows, resourceRows)
+                             .join();
+            var readTime = System.currentTimeMillis() - readStart;
+
+            var resolveStart = System.currentTimeMillis();
+            CompletableFuture.allOf(CompletableFuture.runAsync(() -> Player.dbResolve(playerRows.join()), executor),
+                                    CompletableFuture.runAsync(() -> Cluster.dbResolve(clusterRows.join()), executor))
+                             .join();
+            Sector.dbResolve(sectorRows.join());
+            CompletableFuture.allOf(CompletableFuture.runAsync(() -> Sector.dbResolveLinks(linkRows.join()), executor),
+                                    CompletableFuture.runAsync(() -> Ship.dbResolve(shipRows.join()), executor),
+                                    CompletableFuture.runAsync(() -> Planet.dbResolve(planetRows.join()), executor),
+                                    CompletableFuture.runAsync(() -> Port.dbResolve(portRows.join()), executor))
+                             .join();
+            PortEconomy.dbResolve(resourceRows.join());
+            var resolveTime = System.currentTimeMillis() - resolveStart;
+
+            var msg = String.format("Parallel load: read phase %d msec, resolve phase %d msec", readTime, resolveTime);
+            System.out.println(msg);
+            LOGGER.info(msg);
+        } catch (CompletionException ex) {
+            LOGGER.catching(ex.getCause());
+            throw new DatabaseException(ex.getCause().getMessage());
+        } finally {
+            executor.shutdown();
         }
     }
+
+    /**
+     * Reads raw rows on a pooled read connection
+     */
+    private <T> CompletableFuture<List<T>> read(
+        final ExecutorService executor,
+        final ConnectionTask<List<T>> reader
+    ) {
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return read(reader);
+            } catch (DatabaseException ex) {
+                throw new CompletionException(ex);
+            }
+        }, executor);
+    }
 }
@@ -8,7 +8,6 @@ package com.bearsnake.kinesis;
 import com.bearsnake.kinesis.entities.AdminPlayer;
 import com.bearsnake.kinesis.entities.Cluster;
 import com.bearsnake.kinesis.entities.Player;
-import com.bearsnake.kinesis.exceptions.DatabaseException;
 import com.bearsnake.kinesis.exceptions.KinesisException;
 import com.bearsnake.komando.ArgumentSwitch;
 import com.bearsnake.komando.CommandLineHandler;
@@ -16,7 +15,6 @@ import com.bearsnake.komando.Switch;
 import com.bearsnake.komando.exceptions.KomandoException;
 import com.bearsnake.komando.values.StringValue;
 import com.bearsnake.komando.values.ValueType;
-import java.sql.SQLException;
 
 import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
 
@@ -89,19 +87,16 @@ public class Initializer {
         _databaseWrapper.createTables();
 
         // Initialize admin player
-        try {
-            var conn = _databaseWrapper.createConnection();
-            conn.setAutoCommit(true);
-            var admin = AdminPlayer.createPlayer("admin", "admin", "The Administrator");
+        var admin = AdminPlayer.createPlayer("admin", "admin", "The Administrator");
+        _databaseWrapper.write(conn -> {
             admin.dbPersist(conn);
-            conn.close();
-            System.out.println("Created admin");
-        } catch (SQLException ex) {
-            throw new DatabaseException(ex.getMessage());
-        }
+            return null;
+        });
+        System.out.println("Created admin");
 
         // Initialize initial cluster
         var cluster = Cluster.createStandardCluster(_databaseWrapper, "Sanctuary", 100, 10);
         System.out.printf("Created %s cluster\n", cluster.getClusterName());
+        _databaseWrapper.close();
     }
 }
@@ -5,12 +5,21 @@
 
 package com.bearsnake.kinesis;
 
+import com.bearsnake.kinesis.entities.EconomyTask;
+import com.bearsnake.kinesis.entities.Journal;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.TickEngine;
+import com.bearsnake.kinesis.entities.WriteBehindFlusher;
 import com.bearsnake.kinesis.exceptions.KinesisException;
+import com.bearsnake.kinesis.network.CpuExecutor;
+import com.bearsnake.kinesis.network.NetworkMode;
+import com.bearsnake.kinesis.network.NetworkServer;
 import com.bearsnake.komando.ArgumentSwitch;
 import com.bearsnake.komando.CommandLineHandler;
 import com.bearsnake.komando.SimpleSwitch;
 import com.bearsnake.komando.Switch;
 import com.bearsnake.komando.exceptions.KomandoException;
+import com.bearsnake.komando.restrictions.EnumerationRestriction;
 import com.bearsnake.komando.restrictions.RangeRestriction;
 import com.bearsnake.komando.values.FixedPointValue;
 import com.bearsnake.komando.values.StringValue;
@@ -21,12 +30,17 @@ import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
 public class Server {
 
     private static final CommandLineHandler _commandLineHandler;
+    private static final Switch _caseInsensitiveSwitch;
     private static final Switch _databaseFileSwitch;
+    private static final Switch _networkModeSwitch;
+    private static final Switch _parallelLoadSwitch;
     private static final Switch _portNumberSwitch;
+    private static final Switch _tickRateSwitch;
 
     static {
         try {
             var portRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(32767L));
+            var tickRateRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(1000L));
 
             _databaseFileSwitch = new ArgumentSwitch.Builder().setShortName("db")
                                                               .setLongName("database")
@@ -42,18 +56,57 @@ public class Server {
                                                             .addDescription("Port number for kinesis server")
                                                             .build();
 
+            _parallelLoadSwitch = new SimpleSwitch.Builder().setShortName("pl")
+                                                            .setLongName("parallelLoad")
+                                                            .addDescription("Load the database with concurrent readers")
+                                                            .build();
+
+            _networkModeSwitch = new ArgumentSwitch.Builder().setShortName("nm")
+                                                             .setLongName("networkMode")
+                                                             .setValueType(ValueType.STRING)
+                                                             .setValueName("mode")
+                                                             .setRestriction(new EnumerationRestriction(NetworkMode.getCodes()))
+                                                             .addDescription("How sessions are served: nio (default), virtual, or platform")
+                                                             .build();
+
+            _caseInsensitiveSwitch = new SimpleSwitch.Builder().setShortName("ci")
+                                                               .setLongName("caseInsensitiveNames")
+                                                               .addDescription("Match usernames and game names without regard to case")
+                                                               .build();
+
+            _tickRateSwitch = new ArgumentSwitch.Builder().setShortName("tr")
+                                                          .setLongName("tickRate")
+                                                          .setValueType(ValueType.FIXED_POINT)
+                                                          .setValueName("ticksPerSecond")
+                                                          .setRestriction(tickRateRestriction)
+                                                          .addDescription("Game time ticks per second (default 10)")
+                                                          .build();
+
             _commandLineHandler = new CommandLineHandler();
             _commandLineHandler.addCanonicalHelpSwitch()
                                .addCanonicalVersionSwitch()
+                               .addSwitch(_caseInsensitiveSwitch)
                                .addSwitch(_databaseFileSwitch)
-                               .addSwitch(_portNumberSwitch);
+                               .addSwitch(_networkModeSwitch)
+                               .addSwitch(_parallelLoadSwitch)
+                               .addSwitch(_portNumberSwitch)
+                               .addSwitch(_tickRateSwitch);
         } catch (KomandoException e) {
             throw new RuntimeException(e);
         }
     }
 
     private final DatabaseWrapper _databaseWrapper;
+    private final DatabaseWrapper.LoadMode _loadMode;
+    private final NetworkMode _networkMode;
     private final int _port;
+    private final UniverseSnapshot _snapshot;
+    private final int _ticksPerSecond;
+    private Journal _journal = null;
+    private WriteBehindFlusher _flusher = null;
+    private TickEngine _tickEngine = null;
+    private CpuExecutor _cpuExecutor = null;
+    private NetworkServer _networkServer = null;
 
     public static void main(
         final String[] args
@@ -77,7 +130,23 @@ public class Server {
             var dbPath = ((StringValue)(result._switchSpecifications.get(_databaseFileSwitch).get(0))).getValue();
             var port = ((FixedPointValue)(result._switchSpecifications.get(_portNumberSwitch).get(0))).getValue();
 
-            var server = new Server(dbPath, (int)(long)port);
+            var loadMode = result._switchSpecifications.containsKey(_parallelLoadSwitch)
+                ? DatabaseWrapper.LoadMode.PARALLEL
+                : DatabaseWrapper.LoadMode.SEQUENTIAL;
+
+            var networkMode = result._switchSpecifications.containsKey(_networkModeSwitch)
+                ? NetworkMode.getNetworkMode(((StringValue) result._switchSpecifications.get(_networkModeSwitch).get(0)).getValue())
+                : NetworkMode.NIO;
+
+            var ticksPerSecond = result._switchSpecifications.containsKey(_tickRateSwitch)
+                ? ((FixedPointValue) result._switchSpecifications.get(_tickRateSwitch).get(0)).getValue()
+                : TickEngine.DEFAULT_TICKS_PER_SECOND;
+
+            if (result._switchSpecifications.containsKey(_caseInsensitiveSwitch)) {
+                Player.setCaseInsensitiveNames(true);
+            }
+
+            var server = new Server(dbPath, (int)(long)port, loadMode, networkMode, (int) ticksPerSecond);
             try {
                 server.process();
             } catch (KinesisException ex) {
@@ -88,13 +157,73 @@ public class Server {
 
     private Server(
         final String dbPath,
-        final int port
+        final int port,
+        final DatabaseWrapper.LoadMode loadMode,
+        final NetworkMode networkMode,
+        final int ticksPerSecond
     ) {
         _databaseWrapper = new DatabaseWrapper(dbPath);
+        _loadMode = loadMode;
+        _networkMode = networkMode;
         _port = port;
+        _snapshot = new UniverseSnapshot(dbPath);
+        _ticksPerSecond = ticksPerSecond;
+    }
+
+    /**
+     * Writes the universe snapshot, so that the next start can load from it rather than from the database.
+     * Must only be invoked when everything in memory has been written to the database.
+     */
+    public void checkpoint() {
+        _snapshot.write();
     }
 
     private void process() throws KinesisException {
-        _databaseWrapper.loadFromDatabase();
+        if (_snapshot.load()) {
+            _databaseWrapper.replayJournal();
+        } else {
+            _databaseWrapper.loadFromDatabase(_loadMode);
+            checkpoint();
+        }
+        DatabaseWrapper.reportInventoryFootprint();
+
+        _journal = Journal.open(_databaseWrapper, Journal.DEFAULT_GROUP_COMMIT_MSECS);
+        _flusher = WriteBehindFlusher.start(_databaseWrapper,
+                                            _journal,
+                                            WriteBehindFlusher.DEFAULT_INTERVAL_MSECS,
+                                            WriteBehindFlusher.DEFAULT_CAPACITY);
+        Runtime.getRuntime().addShutdownHook(new Thread(this::shutdown, "shutdown"));
+
+        _tickEngine = new TickEngine(_ticksPerSecond);
+        _tickEngine.addTask(new EconomyTask(_tickEngine.getPeriodNanos(), EconomyTask.DEFAULT_PERSIST_INTERVAL_SECONDS));
+        _tickEngine.start();
+
+        _cpuExecutor = new CpuExecutor();
+        _networkServer = _networkMode.createServer(_port, _cpuExecutor);
+        _networkServer.start();
+    }
+
+    /**
+     * Disconnects all players, stops game time, writes any outstanding changes and completes all database writes, then checkpoints
+     */
+    private void shutdown() {
+        if (_networkServer != null) {
+            _networkServer.close();
+        }
+        if (_cpuExecutor != null) {
+            _cpuExecutor.close();
+        }
+        if (_tickEngine != null) {
+            _tickEngine.close();
+            EconomyTask.markAllDirty();
+        }
+        if (_flusher != null) {
+            _flusher.close();
+        }
+        if (_journal != null) {
+            _journal.close();
+        }
+        _databaseWrapper.close();
+        checkpoint();
     }
 }
@@ -0,0 +1,377 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis;
+
+import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.Planet;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.Port;
+import com.bearsnake.kinesis.entities.PortEconomy;
+import com.bearsnake.kinesis.entities.ResourceType;
+import com.bearsnake.kinesis.entities.Sector;
+import com.bearsnake.kinesis.entities.Ship;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.function.ToLongFunction;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A binary image of the universe, kept next to the database so that a restart does not have to rebuild
+ * everything from SQL. The database remains the source of truth - the snapshot is stamped with the
+ * SQLite file change counter and the size of the database file at the time it was written,
+ * and a snapshot whose stamp does not match the database is ignored.
+ * The snapshot must therefore be written only when the in-memory universe matches the database.
+ * <p>
+ * Layout (big-endian):
+ * <pre>
+ *   header:    magic, format version, database change counter, database size
+ *   players:   count, then for each: playerId, playerType, username, password, gameName
+ *   clusters:  count, then for each: clusterId, clusterName, highest sector number N,
+ *              sectorId for sector numbers 0 to N (zero where there is no sector),
+ *              link row starts for sector numbers 0 to N+1, then the link targets as sector numbers
+ *   ships:     count, then for each: shipId, shipType, shipName, ownerId, locationId (zero if none), fuel, shields,
+ *              cargoHolds
+ *   planets:   count, then for each: planetId, planetName, locationId, ownerId (zero if none)
+ *   ports:     count, then for each: portId, portName, locationId, ownerId (zero if none)
+ *   resources: count, then for each: portId, resourceType, stock, productionRate, consumptionRate
+ * </pre>
+ * Strings are stored as a byte count (-1 for null) followed by the UTF-8 bytes.
+ */
+public class UniverseSnapshot {
+
+    private static final Logger LOGGER = LogManager.getLogger("UniverseSnapshot");
+
+    private static final long MAGIC = 0x4B494E45534E4150L; // "KINESNAP"
+    private static final int FORMAT_VERSION = 2;
+    private static final int CHANGE_COUNTER_OFFSET = 24;
+
+    private record Stamp(long changeCounter, long size) {}
+
+    private record ClusterLinks(long clusterId, int[] rowStart, int[] targets) {}
+
+    private final Path _databasePath;
+    private final Path _snapshotPath;
+
+    public UniverseSnapshot(
+        final String databasePath
+    ) {
+        _databasePath = Path.of(databasePath);
+        _snapshotPath = Path.of(databasePath + ".snapshot");
+    }
+
+    public Path getPath() { return _snapshotPath; }
+
+    /**
+     * Reads the version stamp of the database - the file change counter from the SQLite header
+     * (which is bumped by every committed write transaction), along with the size of the file.
+     */
+    private Stamp readStamp() throws IOException {
+        try (var channel = FileChannel.open(_databasePath, StandardOpenOption.READ)) {
+            var header = ByteBuffer.allocate(4);
+            var changeCounter = (channel.read(header, CHANGE_COUNTER_OFFSET) == 4) ? header.getInt(0) & 0xFFFFFFFFL : 0;
+            return new Stamp(changeCounter, channel.size());
+        }
+    }
+
+    /**
+     * Populates the universe from the snapshot, if there is one and it is current.
+     * @return true if the universe was loaded; false if the caller must load from the database instead
+     */
+    public boolean load() {
+        LOGGER.trace("load()");
+        if (!Files.exists(_snapshotPath)) {
+            return false;
+        }
+
+        var startTime = System.currentTimeMillis();
+        var players = new ArrayList<Player.Row>();
+        var clusters = new ArrayList<Cluster.Row>();
+        var sectors = new ArrayList<Sector.Row>();
+        var links = new ArrayList<ClusterLinks>();
+        var ships = new ArrayList<Ship.Row>();
+        var planets = new ArrayList<Planet.Row>();
+        var ports = new ArrayList<Port.Row>();
+        var resources = new ArrayList<PortEconomy.Row>();
+
+        try (var channel = FileChannel.open(_snapshotPath, StandardOpenOption.READ)) {
+            var buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if ((buffer.getLong() != MAGIC) || (buffer.getInt() != FORMAT_VERSION)) {
+                LOGGER.warn("Ignoring {} - not a snapshot in the current format", _snapshotPath);
+                return false;
+            }
+
+            var stamp = new Stamp(buffer.getLong(), buffer.getLong());
+            if (!stamp.equals(readStamp())) {
+                LOGGER.info("Ignoring {} - database has changed since the snapshot was written", _snapshotPath);
+                return false;
+            }
+
+            for (int px = buffer.getInt(); px > 0; px--) {
+                players.add(new Player.Row(buffer.getLong(),
+                                           getString(buffer),
+                                           getString(buffer),
+                                           getString(buffer),
+                                           getString(buffer)));
+            }
+
+            for (int cx = buffer.getInt(); cx > 0; cx--) {
+                var clusterId = buffer.getLong();
+                clusters.add(new Cluster.Row(clusterId, getString(buffer)));
+                var highestSectorNumber = buffer.getInt();
+                var sectorIds = getLongs(buffer, highestSectorNumber + 1);
+                for (int sx = 1; sx <= highestSectorNumber; sx++) {
+                    if (sectorIds[sx] != 0) {
+                        sectors.add(new Sector.Row(sectorIds[sx], clusterId, sx));
+                    }
+                }
+                var rowStart = getInts(buffer, highestSectorNumber + 2);
+                var targets = getInts(buffer, rowStart[highestSectorNumber + 1]);
+                links.add(new ClusterLinks(clusterId, rowStart, targets));
+            }
+
+            for (int sx = buffer.getInt(); sx > 0; sx--) {
+                ships.add(new Ship.Row(buffer.getLong(),
+                                       getString(buffer),
+                                       getString(buffer),
+                                       buffer.getLong(),
+                                       buffer.getLong(),
+                                       buffer.getFloat(),
+                                       buffer.getFloat(),
+                                       buffer.getInt()));
+            }
+
+            for (int px = buffer.getInt(); px > 0; px--) {
+                planets.add(new Planet.Row(buffer.getLong(), getString(buffer), buffer.getLong(), buffer.getLong()));
+            }
+
+            for (int px = buffer.getInt(); px > 0; px--) {
+                var portId = buffer.getLong();
+                var portName = getString(buffer);
+                var locationId = buffer.getLong();
+                var ownerId = buffer.getLong();
+                ports.add(new Port.Row(portId, portName, locationId, ownerId == 0 ? null : ownerId));
+            }
+
+            for (int rx = buffer.getInt(); rx > 0; rx--) {
+                resources.add(new PortEconomy.Row(buffer.getLong(),
+                                                  getString(buffer),
+                                                  buffer.getFloat(),
+                                                  buffer.getFloat(),
+                                                  buffer.getFloat()));
+            }
+        } catch (IOException | BufferUnderflowException | IllegalArgumentException ex) {
+            LOGGER.warn("Ignoring {} - cannot read it: {}", _snapshotPath, ex.toString());
+            return false;
+        }
+        var readTime = System.currentTimeMillis() - startTime;
+
+        Player.dbResolve(players);
+        Cluster.dbResolve(clusters);
+        Sector.dbResolve(sectors);
+        links.parallelStream().forEach(cl -> Cluster.getCluster(cl.clusterId())
+                                                    .loadLinks(cl.rowStart(), cl.targets()));
+        Ship.dbResolve(ships);
+        Planet.dbResolve(planets);
+        Port.dbResolve(ports);
+        PortEconomy.dbResolve(resources);
+
+        var msg = String.format("Loaded snapshot %s in %d msec (%d msec reading)",
+                                _snapshotPath,
+                                System.currentTimeMillis() - startTime,
+                                readTime);
+        System.out.println(msg);
+        LOGGER.info(msg);
+        return true;
+    }
+
+    /**
+     * Writes the snapshot from the universe as it currently stands, stamped with the current database version.
+     * The snapshot is written to a temporary file which then replaces the old snapshot, so that a failure
+     * part way through leaves the previous snapshot (or none) rather than a damaged one.
+     */
+    public void write() {
+        LOGGER.trace("write()");
+        var startTime = System.currentTimeMillis();
+        var tempPath = _snapshotPath.resolveSibling(_snapshotPath.getFileName() + ".tmp");
+        try {
+            try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempPath), 1 << 16))) {
+                var stamp = readStamp();
+                out.writeLong(MAGIC);
+                out.writeInt(FORMAT_VERSION);
+                out.writeLong(stamp.changeCounter());
+                out.writeLong(stamp.size());
+
+                var players = sorted(Player.getPlayers(), p -> p.getPlayerId().getValue());
+                out.writeInt(players.size());
+                for (var player : players) {
+                    out.writeLong(player.getPlayerId().getValue());
+                    putString(out, player.getPlayerType()._code);
+                    putString(out, player.getUsername());
+                    putString(out, player.getPassword());
+                    putString(out, player.getGameName());
+                }
+
+                var clusters = sorted(Cluster.getClusters(), c -> c.getClusterId().getValue());
+                out.writeInt(clusters.size());
+                for (var cluster : clusters) {
+                    writeCluster(out, cluster);
+                }
+
+                var ships = sorted(Ship.getShips(), s -> s.getShipId().getValue());
+                out.writeInt(ships.size());
+                for (var ship : ships) {
+                    out.writeLong(ship.getShipId().getValue());
+                    putString(out, ship.getShipType()._code);
+                    putString(out, ship.getShipName());
+                    out.writeLong(ship.getOwner() == null ? 0 : ship.getOwner().getPlayerId().getValue());
+                    out.writeLong(ship.getLocation() == null ? 0 : ship.getLocation().getSectorId().getValue());
+                    out.writeFloat(ship.getFuelAmount());
+                    out.writeFloat(ship.getShieldsLevel());
+                    out.writeInt(ship.getCargoHoldCount());
+                }
+
+                var planets = sorted(Planet.getPlanets(), p -> p.getPlanetId().getValue());
+                out.writeInt(planets.size());
+                for (var planet : planets) {
+                    out.writeLong(planet.getPlanetId().getValue());
+                    putString(out, planet.getPlanetName());
+                    out.writeLong(planet.getLocation().getSectorId().getValue());
+                    out.writeLong(planet.getOwner() == null ? 0 : planet.getOwner().getPlayerId().getValue());
+                }
+
+                var ports = sorted(Port.getPorts(), p -> p.getPortId().getValue());
+                out.writeInt(ports.size());
+                for (var port : ports) {
+                    out.writeLong(port.getPortId().getValue());
+                    putString(out, port.getPortName());
+                    out.writeLong(port.getLocation().getSectorId().getValue());
+                    out.writeLong(port.hasOwner() ? port.getOwner().getPlayerId().getValue() : 0);
+                }
+
+                var resourceTypes = ResourceType.values();
+                out.writeInt(ports.size() * resourceTypes.length);
+                for (var port : ports) {
+                    for (var resourceType : resourceTypes) {
+                        out.writeLong(port.getPortId().getValue());
+                        putString(out, resourceType.name());
+                        out.writeFloat(port.getStock(resourceType));
+                        out.writeFloat(port.getProductionRate(resourceType));
+                        out.writeFloat(port.getConsumptionRate(resourceType));
+                    }
+                }
+            }
+
+            Files.move(tempPath, _snapshotPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException ex) {
+            LOGGER.error("Cannot write snapshot {}", _snapshotPath, ex);
+            return;
+        }
+
+        LOGGER.info("Wrote snapshot {} in {} msec", _snapshotPath, System.currentTimeMillis() - startTime);
+    }
+
+    /**
+     * Writes the sectors and links of a cluster, with the links in compressed-row form
+     */
+    private static void writeCluster(
+        final DataOutputStream out,
+        final Cluster cluster
+    ) throws IOException {
+        out.writeLong(cluster.getClusterId().getValue());
+        putString(out, cluster.getClusterName());
+
+        var highestSectorNumber = cluster.getHighestSectorNumber();
+        out.writeInt(highestSectorNumber);
+        for (int sx = 0; sx <= highestSectorNumber; sx++) {
+            var sector = cluster.getSector(sx);
+            out.writeLong(sector == null ? 0 : sector.getSectorId().getValue());
+        }
+
+        var rowStart = 0;
+        for (int sx = 0; sx <= highestSectorNumber; sx++) {
+            out.writeInt(rowStart);
+            rowStart += (cluster.getSector(sx) == null) ? 0 : cluster.getLinkCount(sx);
+        }
+        out.writeInt(rowStart);
+
+        for (int sx = 1; sx <= highestSectorNumber; sx++) {
+            if (cluster.getSector(sx) != null) {
+                var linkCount = cluster.getLinkCount(sx);
+                for (int lx = 0; lx < linkCount; lx++) {
+                    out.writeInt(cluster.getLinkedSectorNumber(sx, lx));
+                }
+            }
+        }
+    }
+
+    private static <T> List<T> sorted(
+        final Collection<T> entities,
+        final ToLongFunction<T> idFunction
+    ) {
+        var result = new ArrayList<>(entities);
+        result.sort(Comparator.comparingLong(idFunction));
+        return result;
+    }
+
+    private static int[] getInts(
+        final ByteBuffer buffer,
+        final int count
+    ) {
+        var result = new int[count];
+        buffer.asIntBuffer().get(result);
+        buffer.position(buffer.position() + 4 * count);
+        return result;
+    }
+
+    private static long[] getLongs(
+        final ByteBuffer buffer,
+        final int count
+    ) {
+        var result = new long[count];
+        buffer.asLongBuffer().get(result);
+        buffer.position(buffer.position() + 8 * count);
+        return result;
+    }
+
+    private static String getString(
+        final ByteBuffer buffer
+    ) {
+        var length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        var bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(
+        final DataOutputStream out,
+        final String value
+    ) throws IOException {
+        if (value == null) {
+            out.writeInt(-1);
+        } else {
+            var bytes = value.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+        }
+    }
+}
@@ -21,8 +21,6 @@ public class AdminPlayer extends Player {
         final String password,
         final String gameName
     ) {
-        synchronized (Player.class) {
-            return new AdminPlayer(getNextPlayerId(), username, password, gameName);
-        }
+        return addPlayer(new AdminPlayer(getNextPlayerId(), username, password, gameName));
     }
 }
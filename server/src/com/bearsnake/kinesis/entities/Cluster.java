@@ -5,6 +5,9 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
 import com.bearsnake.kinesis.DatabaseWrapper;
 import com.bearsnake.kinesis.exceptions.DatabaseException;
 
@@ -13,13 +16,13 @@ import java.sql.SQLException;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
-import java.util.Map;
 import java.util.Random;
 import java.util.Set;
 
@@ -35,16 +38,28 @@ public class Cluster {
             + ") WITHOUT ROWID;";
 
     private static final String INSERT_SQL =
-        "INSERT INTO clusters (clusterId, clusterName) VALUES (%s, '%s');";
+        "INSERT INTO clusters (clusterId, clusterName) VALUES (?, ?);";
 
     private static final Logger LOGGER = LogManager.getLogger("Cluster");
     private static final int LONGEST_PATH_TO_HOME = 20;
-    private static long _nextClusterId = 1;
-    private static final Map<ClusterId, Cluster> _inventory = new HashMap<>();
+    private static final int SHORTEST_PATH_TO_PORT = 3;
+    public static final int NO_PATH = -1;
+    public static final int LANDMARK_INDEX_THRESHOLD = 2000;
+    private static final IdAllocator _clusterIds = new IdAllocator();
+    private static final LongHashMap<Cluster> _inventory = new LongHashMap<>();
+    private static final RouteCache _routeCache = new RouteCache(RouteCache.DEFAULT_CAPACITY);
 
     private final ClusterId _clusterId;
     private final String _clusterName;
     final Set<Sector> _sectors = new HashSet<>();
+    final SectorLinks _links = new SectorLinks();
+    final SectorLinks _reverseLinks = new SectorLinks();
+    private final HomeDistances _homeDistances = new HomeDistances(this);
+    private final PortEconomy _economy = new PortEconomy();
+    private Sector[] _sectorsByNumber = new Sector[1];
+    private int _highestSectorNumber = 0;
+    private volatile long _linkVersion = 0;
+    private volatile LandmarkIndex _landmarkIndex = null;
 
     private Cluster(
         final ClusterId clusterId,
@@ -53,24 +68,170 @@ public class Cluster {
     ) {
         _clusterId = clusterId;
         _clusterName = name;
-        _sectors.addAll(sectors);
+        sectors.forEach(this::addSector);
     }
 
-    void addSector(final Sector sector) { _sectors.add(sector); }
-    public static Cluster getCluster(final ClusterId clusterId) { return _inventory.get(clusterId); }
+    /**
+     * Adds a sector to the cluster, indexing it by sector number
+     */
+    void addSector(
+        final Sector sector
+    ) {
+        var sectorNumber = sector.getSectorNumber();
+        if (sectorNumber >= _sectorsByNumber.length) {
+            _sectorsByNumber = Arrays.copyOf(_sectorsByNumber, Math.max(sectorNumber + 1, _sectorsByNumber.length * 2));
+        }
+
+        _sectors.add(sector);
+        _sectorsByNumber[sectorNumber] = sector;
+        _links.addSector(sectorNumber);
+        _reverseLinks.addSector(sectorNumber);
+        _highestSectorNumber = Math.max(_highestSectorNumber, sectorNumber);
+        _homeDistances.invalidate();
+    }
+
+    public static Cluster getCluster(final ClusterId clusterId) { return _inventory.get(clusterId.getValue()); }
+    public static Cluster getCluster(final long clusterId) { return _inventory.get(clusterId); }
+    public static Collection<Cluster> getClusters() { return _inventory.values(); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
     public ClusterId getClusterId() { return _clusterId; }
     public String getClusterName() { return _clusterName; }
+    public PortEconomy getEconomy() { return _economy; }
+    public int getHighestSectorNumber() { return _highestSectorNumber; }
+    public long getLinkVersion() { return _linkVersion; }
+    public static RouteCache getRouteCache() { return _routeCache; }
+    public int getLinkCount(final int sectorNumber) { return _links.getLinkCount(sectorNumber); }
 
-    public Sector getSector(
+    /**
+     * Retrieves the number of hops from the indicated sector to sector 1 of this cluster,
+     * or NO_PATH if sector 1 cannot be reached from there.
+     */
+    public int getDistanceToHome(
         final int sectorNumber
     ) {
-        for (var sector : _sectors) {
-            if (sector.getSectorNumber() == sectorNumber) {
-                return sector;
+        return _homeDistances.getDistance(sectorNumber);
+    }
+
+    /**
+     * Retrieves the sector number of the index'th link from the indicated sector, without allocating anything.
+     * index must be between zero and getLinkCount(sectorNumber) - 1.
+     */
+    public int getLinkedSectorNumber(
+        final int sectorNumber,
+        final int index
+    ) {
+        return _links.getLinkTarget(sectorNumber, index);
+    }
+
+    /**
+     * Creates a one-way link between two sectors of this cluster
+     * @return true if the link was created, false if it already existed
+     */
+    boolean addLink(
+        final Sector from,
+        final Sector to
+    ) {
+        if ((from.getCluster() != this) || (to.getCluster() != this)) {
+            throw new RuntimeException("Cannot link sectors in different clusters");
+        }
+
+        var fromNumber = from.getSectorNumber();
+        var toNumber = to.getSectorNumber();
+        if (_links.addLink(fromNumber, toNumber)) {
+            _reverseLinks.addLink(toNumber, fromNumber);
+            _homeDistances.linkAdded(fromNumber, toNumber);
+            _linkVersion++;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Builds (or rebuilds) the landmark index used for A* routing within this cluster.
+     * Until the cluster links change, point-to-point routes use the index to expand only a fraction of the cluster.
+     */
+    public void buildLandmarkIndex(
+        final int landmarkCount
+    ) {
+        var startTime = System.nanoTime();
+        _landmarkIndex = LandmarkIndex.build(this, landmarkCount);
+        LOGGER.info("Built landmark index for cluster {} with {} landmark(s) in {} usec",
+                    _clusterName,
+                    landmarkCount,
+                    (System.nanoTime() - startTime) / 1000);
+    }
+
+    public void dropLandmarkIndex() {
+        _landmarkIndex = null;
+    }
+
+    /**
+     * Builds the landmark index if this cluster is large enough to benefit from it
+     */
+    void buildDefaultLandmarkIndex() {
+        if (_highestSectorNumber >= LANDMARK_INDEX_THRESHOLD) {
+            buildLandmarkIndex(LandmarkIndex.DEFAULT_LANDMARK_COUNT);
+        }
+    }
+
+    /**
+     * Retrieves the landmark index, if there is one and it still reflects the links of this cluster
+     */
+    LandmarkIndex getLandmarkIndex() {
+        var index = _landmarkIndex;
+        return ((index != null) && (index.getLinkVersion() == _linkVersion)) ? index : null;
+    }
+
+    /**
+     * Average number of sectors expanded per landmark-guided route query, or zero if there have been none
+     */
+    public double getNodesExpandedPerQuery() {
+        var index = _landmarkIndex;
+        if ((index == null) || (index.getQueryCount() == 0)) {
+            return 0.0;
+        }
+        return (double) index.getExpandedCount() / index.getQueryCount();
+    }
+
+    /**
+     * Packs the link stores and rebuilds everything derived from them,
+     * after a large number of links have been added
+     */
+    void rebuildLinkIndexes() {
+        _links.compact();
+        _reverseLinks.compact();
+        _homeDistances.rebuild();
+    }
+
+    /**
+     * Creates links in bulk from a compressed-row image, in which the links from sector n go to the sectors
+     * targets[rowStart[n]] up to (but not including) targets[rowStart[n + 1]]; then rebuilds the link indexes.
+     * The sectors MUST already be in the cluster.
+     */
+    public void loadLinks(
+        final int[] rowStart,
+        final int[] targets
+    ) {
+        for (int sx = 1; sx < rowStart.length - 1; sx++) {
+            for (int tx = rowStart[sx]; tx < rowStart[sx + 1]; tx++) {
+                if (_links.addLink(sx, targets[tx])) {
+                    _reverseLinks.addLink(targets[tx], sx);
+                }
             }
         }
 
-        return null;
+        _linkVersion++;
+        rebuildLinkIndexes();
+        buildDefaultLandmarkIndex();
+    }
+
+    /**
+     * Retrieves the sector with the given sector number, or null if there is no such sector in this cluster
+     */
+    public Sector getSector(
+        final int sectorNumber
+    ) {
+        return ((sectorNumber >= 0) && (sectorNumber < _sectorsByNumber.length)) ? _sectorsByNumber[sectorNumber] : null;
     }
 
     public static Cluster createStandardCluster(
@@ -89,10 +250,10 @@ public class Cluster {
             throw new RuntimeException("Too many ports specified");
         }
 
-        var clusterId = new ClusterId(_nextClusterId++);
+        var clusterId = new ClusterId(_clusterIds.allocate());
         var cluster = new Cluster(clusterId, name, Collections.emptySet());
         for (int sectorNum = 1; sectorNum <= sectorCount; sectorNum++) {
-            cluster._sectors.add(Sector.createNewSector(cluster, sectorNum));
+            cluster.addSector(Sector.createNewSector(cluster, sectorNum));
         }
 
         // establish initial random links between sectors
@@ -118,41 +279,39 @@ public class Cluster {
             Sector.createBidirectionalLink(firstSector, cluster.getSector(targetSectorNum));
         }
 
-        // Create an initial group of interconnected sectors, which includes sector 1.
-        var group = new HashSet<Sector>();
-        cluster.collectRelatedSectors(group, firstSector);
-
-        // Now find any orphaned sectors and link them into the main group.
-        // We do this by checking the existing sectors, and if we find one which is not in the main group,
-        // we create an orphan group for the orphan (which may include many other orphaned sectors as well),
-        // we link the original orphan to a sector in the main group, then add all the orphan sectors to
-        // the main group... then continue iterating over the sectors until done.
-        for (var thisSector : cluster._sectors) {
-            if (!group.contains(thisSector)) {
-                var orphans = new HashSet<Sector>();
-                cluster.collectRelatedSectors(orphans, thisSector);
+        // Sort the sectors into groups of interconnected sectors. All links are bidirectional at this point,
+        // so a link from one sector to another puts both sectors in the same group.
+        var groups = new SectorUnionFind(sectorCount + 1);
+        for (int sectorNum = 1; sectorNum <= sectorCount; sectorNum++) {
+            var linkCount = cluster.getLinkCount(sectorNum);
+            for (int lx = 0; lx < linkCount; lx++) {
+                groups.union(sectorNum, cluster.getLinkedSectorNumber(sectorNum, lx));
+            }
+        }
 
+        // Now find any orphaned sectors and link them into the main group (the one containing sector 1).
+        // Linking one orphan brings along all the other sectors in its group, so any sector which is
+        // still not connected after that belongs to a different orphaned group.
+        for (int sectorNum = 2; sectorNum <= sectorCount; sectorNum++) {
+            if (!groups.isConnected(sectorNum, 1)) {
                 // choose a sector from the main group at random
                 var targetSectorNumber = random.nextInt(sectorCount) + 1;
-                var targetSector = cluster.getSector(targetSectorNumber);
-                while ((targetSectorNumber < 2) || !group.contains(targetSector)) {
+                while ((targetSectorNumber < 2) || !groups.isConnected(targetSectorNumber, 1)) {
                     targetSectorNumber = random.nextInt(sectorCount) + 1;
-                    targetSector = cluster.getSector(targetSectorNumber);
                 }
 
-                Sector.createBidirectionalLink(thisSector, targetSector);
-                group.addAll(orphans);
+                Sector.createBidirectionalLink(cluster.getSector(sectorNum), cluster.getSector(targetSectorNumber));
+                groups.union(sectorNum, targetSectorNumber);
             }
         }
 
+        cluster.rebuildLinkIndexes();
+
         // Now there are no orphans. But there might be sectors which are too far from sector 1.
-        // Any such sector gets a one-way link back to sector 1.
-        for (var thisSector : cluster._sectors) {
-            if (!thisSector.equals(firstSector)) {
-                var path = getShortestPath(thisSector, firstSector);
-                if (path.size() > LONGEST_PATH_TO_HOME) {
-                    thisSector.createLinkTo(firstSector);
-                }
+        // Any such sector gets a one-way link back to sector 1 (which also brings its predecessors closer).
+        for (int sectorNum = 2; sectorNum <= sectorCount; sectorNum++) {
+            if (cluster.getDistanceToHome(sectorNum) > LONGEST_PATH_TO_HOME) {
+                cluster.getSector(sectorNum).createLinkTo(firstSector);
             }
         }
 
@@ -162,11 +321,9 @@ public class Cluster {
             // choose a sector at least 3 away from the first sector.
             var sectorNumber = random.nextInt(sectorCount) + 1;
             var sector = cluster.getSector(sectorNumber);
-            var path = getShortestPath(sector, firstSector);
-            while ((sector.getPort() != null) || (path.size() < 3)) {
+            while ((sector.getPort() != null) || (cluster.getDistanceToHome(sectorNumber) < SHORTEST_PATH_TO_PORT)) {
                 sectorNumber = random.nextInt(sectorCount) + 1;
                 sector = cluster.getSector(sectorNumber);
-                path = getShortestPath(sector, firstSector);
             }
 
             var port = Port.createPort(sector, null);
@@ -174,46 +331,25 @@ public class Cluster {
             counter++;
         }
 
-        try {
-            var conn = databaseWrapper.createConnection();
-            conn.setAutoCommit(false);
-            conn.beginRequest();
-            cluster.dbPersist(conn);
-            conn.commit();
-            conn.close();
-        } catch (SQLException ex) {
-            LOGGER.catching(ex);
-            throw new DatabaseException(ex.getMessage());
-        }
+        cluster.buildDefaultLandmarkIndex();
 
-        _inventory.put(cluster._clusterId, cluster);
-        return cluster;
-    }
+        databaseWrapper.write(conn -> {
+            cluster.dbPersist(conn, databaseWrapper.getBatchSize());
+            return null;
+        });
 
-    /**
-     * Creates a collection of sectorIds for sectors which are connected to each other,
-     * starting with one particular sector.
-     */
-    private void collectRelatedSectors(
-        final HashSet<Sector> set,
-        final Sector baseSector
-    ) {
-        if (!set.contains(baseSector)) {
-            set.add(baseSector);
-            for (var link : baseSector.getLinkedSectors()) {
-                collectRelatedSectors(set, link);
-            }
-        }
+        _inventory.put(cluster._clusterId.getValue(), cluster);
+        return cluster;
     }
 
     /**
-     * Wrapper which has no initial avoidance list
+     * Wrapper which has no initial avoidance list. Such routes are served from the route cache where possible.
      */
     public static List<Sector> getShortestPath(
         final Sector start,
         final Sector goal
     ) {
-        return getShortestPath(start, goal, Collections.emptyList());
+        return _routeCache.getShortestPath(start, goal);
     }
 
     /**
@@ -231,45 +367,62 @@ public class Cluster {
         final Sector goal,
         final Collection<Sector> avoid
     ) {
-        if (avoid.contains(goal)) {
-            return null;
-        }
-
-        if (start.equals(goal)) {
-            return new LinkedList<>();
-        }
+        return PathEngine.getEngine().findShortestPath(start, goal, avoid);
+    }
 
-        var links = start.getLinkedSectors();
-        if (links.contains(goal)) {
-            var result = new LinkedList<Sector>();
-            result.add(goal);
-            return result;
-        }
+    /**
+     * Finds the shortest path from start to goal which does not pass through any sector avoided by the constraints,
+     * and does not use any link blocked by them. The constraints object is not modified, and may be reused.
+     * Contract is otherwise the same as for the other getShortestPath() methods; in particular the result is null
+     * if the constraints leave no way to get from start to goal.
+     */
+    public static LinkedList<Sector> getShortestPath(
+        final Sector start,
+        final Sector goal,
+        final RouteConstraints constraints
+    ) {
+        return PathEngine.getEngine().findConstrainedPath(start, goal, constraints);
+    }
 
-        var subAvoid = new LinkedList<>(avoid);
-        LinkedList<Sector> subPath = null;
-        subAvoid.add(start);
-        for (var link : links) {
-            if (!avoid.contains(link)) {
-                var subResult = getShortestPath(link, goal, subAvoid);
-                if (subResult != null) {
-                    subResult.add(0, link);
-                    if ((subPath == null) || (subPath.size() > subResult.size())) {
-                        subPath = subResult;
+    /**
+     * Finds all the sectors which can be reached from the origin in no more than maxHops hops.
+     * The result object is emptied and refilled, and the same object is returned as a convenience.
+     * The entries in the result double as the breadth-first frontier, and its membership set as the visited set,
+     * so a caller which reuses its result object pays no allocation once that object has grown large enough.
+     */
+    public Neighbourhood getNeighbourhood(
+        final Sector origin,
+        final int maxHops,
+        final Neighbourhood result
+    ) {
+        result.reset(this);
+        result.add(origin.getSectorNumber(), 0);
+        var head = 0;
+        while (head < result.getCount()) {
+            var sectorNumber = result.getSectorNumber(head);
+            var hopCount = result.getHopCount(head);
+            head++;
+            if (hopCount < maxHops) {
+                var linkCount = _links.getLinkCount(sectorNumber);
+                for (int lx = 0; lx < linkCount; lx++) {
+                    var linkNumber = _links.getLinkTarget(sectorNumber, lx);
+                    if (!result.contains(linkNumber)) {
+                        result.add(linkNumber, hopCount + 1);
                     }
                 }
             }
         }
 
-        return subPath;
+        return result;
     }
 
     public void showGeometry() {
         for (var sector : _sectors) {
             var sb = new StringBuilder();
             sb.append(sector.getSectorNumber()).append(":").append(" ");
-            for (var link : sector.getLinkedSectors()) {
-                sb.append(" ").append(link.getSectorNumber());
+            var linkCount = sector.getLinkCount();
+            for (int lx = 0; lx < linkCount; lx++) {
+                sb.append(" ").append(sector.getLinkedSectorNumber(lx));
             }
 
             var planet = sector.getPlanet();
@@ -313,19 +466,39 @@ public class Cluster {
         final Connection conn
     ) throws SQLException {
         LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+    }
+
+    /**
+     * Reads the clusters table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM clusters ORDER BY clusterId;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("clusterId"), rs.getString("clusterName")));
+            }
+        }
+        return rows;
+    }
 
+    /**
+     * Creates (empty) Cluster entities from raw rows, replacing any clusters we already have
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
         _inventory.clear();
-        var sql = "SELECT * FROM clusters ORDER BY clusterId;";
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery(sql);
-
-        while (rs.next()) {
-            var cid = rs.getLong("clusterId");
-            var clusterId = new ClusterId(cid);
-            var clusterName = rs.getString("clusterName");
-            var cluster = new Cluster(clusterId, clusterName, Collections.emptySet());
-            _inventory.put(clusterId, cluster);
-            _nextClusterId = cid + 1;
+        _clusterIds.reset();
+        for (var row : rows) {
+            var clusterId = new ClusterId(row.clusterId());
+            var cluster = new Cluster(clusterId, row.clusterName(), Collections.emptySet());
+            _inventory.put(clusterId.getValue(), cluster);
+            _clusterIds.advancePast(row.clusterId());
         }
 
         var msg = String.format("Loaded %d cluster(s)...", _inventory.size());
@@ -336,27 +509,80 @@ public class Cluster {
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SQL, _clusterId, _clusterName);
-        var statement = conn.createStatement();
-        statement.execute(sql);
-
-        for (var sector : _sectors) {
-            sector.dbPersist(conn);
+        dbPersist(conn, DatabaseWrapper.DEFAULT_BATCH_SIZE);
+    }
 
-            var planet = sector.getPlanet();
-            if (planet != null) {
-                planet.dbPersist(conn);
+    /**
+     * Persists the cluster along with all its sectors, links, planets, ports, and the ports' resources.
+     * Each table is written with a single prepared statement, executed in batches of batchSize rows.
+     * Sectors are written before links, planets, and ports, and ports before their resources,
+     * so that no row refers to a sector or port not yet written.
+     */
+    public void dbPersist(
+        final Connection conn,
+        final int batchSize
+    ) throws SQLException {
+        var startTime = System.nanoTime();
+        long rowCount;
+        try (var clusterBatch = new BatchStatement(conn, INSERT_SQL, 1);
+             var sectorBatch = new BatchStatement(conn, Sector.INSERT_SECTOR_SQL, batchSize);
+             var linkBatch = new BatchStatement(conn, Sector.INSERT_SECTOR_LINK_SQL, batchSize);
+             var planetBatch = new BatchStatement(conn, Planet.INSERT_SQL, batchSize);
+             var portBatch = new BatchStatement(conn, Port.INSERT_SQL, batchSize);
+             var resourceBatch = new BatchStatement(conn, PortEconomy.WRITE_SQL, batchSize)) {
+            var statement = clusterBatch.getStatement();
+            statement.setLong(1, _clusterId.getValue());
+            statement.setString(2, _clusterName);
+            clusterBatch.addBatch();
+
+            for (int sectorNum = 1; sectorNum <= _highestSectorNumber; sectorNum++) {
+                var sector = getSector(sectorNum);
+                if (sector != null) {
+                    sector.dbPersist(sectorBatch);
+                }
             }
+            sectorBatch.flush();
 
-            var port = sector.getPort();
-            if (port != null) {
-                port.dbPersist(conn);
+            for (int sectorNum = 1; sectorNum <= _highestSectorNumber; sectorNum++) {
+                var sector = getSector(sectorNum);
+                if (sector != null) {
+                    sector.dbPersistLinks(linkBatch);
+
+                    var planet = sector.getPlanet();
+                    if (planet != null) {
+                        planet.dbPersist(planetBatch);
+                    }
+
+                    var port = sector.getPort();
+                    if (port != null) {
+                        port.dbPersist(portBatch);
+                    }
+                }
             }
+            portBatch.flush();
+            _economy.dbPersist(resourceBatch);
+
+            rowCount = clusterBatch.getRowCount() + sectorBatch.getRowCount() + linkBatch.getRowCount()
+                + planetBatch.getRowCount() + portBatch.getRowCount() + resourceBatch.getRowCount();
         }
 
         conn.commit();
+
+        var micros = Math.max(1, (System.nanoTime() - startTime) / 1000);
+        var msg = String.format("Persisted cluster %s: %d row(s) in %d msec (%d rows/sec)...",
+                                _clusterName,
+                                rowCount,
+                                micros / 1000,
+                                rowCount * 1000000 / micros);
+        System.out.println(msg);
+        LOGGER.info(msg);
     }
 
+    /**
+     * Raw content of one row of the clusters table
+     */
+    public record Row(long clusterId, String clusterName) {}
+
     public static class ClusterId {
 
         private final long _value;
@@ -367,6 +593,8 @@ public class Cluster {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
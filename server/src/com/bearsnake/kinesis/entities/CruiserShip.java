@@ -27,8 +27,8 @@ public class CruiserShip extends Ship {
         final float shieldsLevel,
         final int cargoHoldCount
     ) {
-        synchronized (Ship.class) {
-            return new CruiserShip(getNextShipId(), shipName, owner, location, fuelAmount, shieldsLevel, cargoHoldCount);
-        }
+        var ship = register(new CruiserShip(getNextShipId(), shipName, owner, location, fuelAmount, shieldsLevel, cargoHoldCount));
+        WriteBehindFlusher.markDirty(ship);
+        return ship;
     }
 }
@@ -9,6 +9,8 @@ public class DroneShip extends Ship {
 
     private static final int CARGO_HOLD_COUNT = 100;
 
+    private String _name;   // formatted on first use - see Ship.getShipName
+
     protected DroneShip(
         final ShipId shipId,
         final Player owner,
@@ -21,7 +23,12 @@ public class DroneShip extends Ship {
 
     @Override
     public String getShipName() {
-        return String.format("drone%s", getShipId());
+        var name = _name;
+        if (name == null) {
+            name = String.format("drone%s", getShipId());
+            _name = name;
+        }
+        return name;
     }
 
     public static DroneShip createShip(
@@ -30,9 +37,9 @@ public class DroneShip extends Ship {
         final float fuelAmount,
         final float shieldsLevel
     ) {
-        synchronized (Ship.class) {
-            var shipId = getNextShipId();
-            return new DroneShip(shipId, owner, location, fuelAmount, shieldsLevel);
-        }
+        var shipId = getNextShipId();
+        var ship = register(new DroneShip(shipId, owner, location, fuelAmount, shieldsLevel));
+        WriteBehindFlusher.markDirty(ship);
+        return ship;
     }
 }
@@ -0,0 +1,286 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import com.bearsnake.komando.ArgumentSwitch;
+import com.bearsnake.komando.CommandLineHandler;
+import com.bearsnake.komando.Switch;
+import com.bearsnake.komando.exceptions.KomandoException;
+import com.bearsnake.komando.restrictions.RangeRestriction;
+import com.bearsnake.komando.values.FixedPointValue;
+import com.bearsnake.komando.values.ValueType;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
+
+/**
+ * Measures the cost of an economy tick. Builds economies of random ports, detached from any universe, and ticks
+ * them two ways - through PortEconomy's arrays, and through one object per port holding the same values
+ * in fields, as the economy might otherwise have been written - reporting the time for each cluster
+ * and for the whole universe.
+ */
+public class EconomyBenchmark {
+
+    private static final CommandLineHandler _commandLineHandler;
+    private static final Switch _clusterCountSwitch;
+    private static final Switch _portCountSwitch;
+    private static final Switch _tickCountSwitch;
+
+    private static final int DEFAULT_CLUSTER_COUNT = 10;
+    private static final int DEFAULT_PORT_COUNT = 1000;
+    private static final int DEFAULT_TICK_COUNT = 20000;
+    private static final float SECONDS_PER_TICK = 0.1f;
+
+    static {
+        try {
+            var clusterRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(1000L));
+            var portRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(1_000_000L));
+            var tickRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(100_000_000L));
+
+            _clusterCountSwitch = new ArgumentSwitch.Builder().setShortName("c")
+                                                              .setLongName("clusters")
+                                                              .setValueType(ValueType.FIXED_POINT)
+                                                              .setValueName("count")
+                                                              .setRestriction(clusterRestriction)
+                                                              .addDescription("Number of clusters")
+                                                              .build();
+            _portCountSwitch = new ArgumentSwitch.Builder().setShortName("p")
+                                                           .setLongName("ports")
+                                                           .setValueType(ValueType.FIXED_POINT)
+                                                           .setValueName("count")
+                                                           .setRestriction(portRestriction)
+                                                           .addDescription("Number of ports in each cluster")
+                                                           .build();
+            _tickCountSwitch = new ArgumentSwitch.Builder().setShortName("n")
+                                                           .setLongName("ticks")
+                                                           .setValueType(ValueType.FIXED_POINT)
+                                                           .setValueName("count")
+                                                           .setRestriction(tickRestriction)
+                                                           .addDescription("Number of ticks run in each layout")
+                                                           .build();
+
+            _commandLineHandler = new CommandLineHandler();
+            _commandLineHandler.addCanonicalHelpSwitch()
+                               .addCanonicalVersionSwitch()
+                               .addSwitch(_clusterCountSwitch)
+                               .addSwitch(_portCountSwitch)
+                               .addSwitch(_tickCountSwitch);
+        } catch (KomandoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(
+        final String[] args
+    ) {
+        System.out.println("Kinesis Economy Benchmark");
+        var result = _commandLineHandler.processCommandLine(args);
+
+        for (var msg : result._messages) {
+            System.err.println(msg);
+        }
+
+        if (result.hasWarnings() || result.hasErrors()) {
+            System.exit(-1);
+        }
+
+        if (result.isHelpRequested()) {
+            _commandLineHandler.displayUsage("economybenchmark");
+        } else if (result.isVersionRequested()) {
+            System.out.printf("Version %s\n", KINESIS_VERSION);
+        } else {
+            var specs = result._switchSpecifications;
+            var clusters = specs.containsKey(_clusterCountSwitch)
+                ? ((FixedPointValue) specs.get(_clusterCountSwitch).get(0)).getValue()
+                : DEFAULT_CLUSTER_COUNT;
+            var ports = specs.containsKey(_portCountSwitch)
+                ? ((FixedPointValue) specs.get(_portCountSwitch).get(0)).getValue()
+                : DEFAULT_PORT_COUNT;
+            var ticks = specs.containsKey(_tickCountSwitch)
+                ? ((FixedPointValue) specs.get(_tickCountSwitch).get(0)).getValue()
+                : DEFAULT_TICK_COUNT;
+
+            run((int) clusters, (int) ports, (int) ticks);
+        }
+    }
+
+    private static void run(
+        final int clusterCount,
+        final int portCount,
+        final int tickCount
+    ) {
+        var economies = new PortEconomy[clusterCount];
+        var objects = new ObjectEconomy[clusterCount];
+        for (int cx = 0; cx < clusterCount; cx++) {
+            economies[cx] = new PortEconomy();
+            for (int px = 0; px < portCount; px++) {
+                economies[cx].setRandomProfile(economies[cx].addPort(null));
+            }
+            objects[cx] = new ObjectEconomy(economies[cx]);
+        }
+
+        var arrayNanos = measure(tickCount, () -> {
+            for (var economy : economies) {
+                economy.tick(SECONDS_PER_TICK);
+            }
+        });
+        var objectNanos = measure(tickCount, () -> {
+            for (var economy : objects) {
+                economy.tick(SECONDS_PER_TICK);
+            }
+        });
+        verify(economies, objects);
+
+        System.out.printf("\n%d tick(s) of %d cluster(s) with %d port(s) each\n", tickCount, clusterCount, portCount);
+        System.out.println("layout    usec/cluster tick  nsec/port  usec/universe tick");
+        System.out.println(format("arrays", arrayNanos, clusterCount, portCount));
+        System.out.println(format("objects", objectNanos, clusterCount, portCount));
+    }
+
+    /**
+     * Runs a tenth as many ticks again to warm up, then times the given number of ticks
+     * @return the nanoseconds taken by each tick
+     */
+    private static double measure(
+        final int tickCount,
+        final Runnable tick
+    ) {
+        for (int tx = 0; tx < tickCount / 10; tx++) {
+            tick.run();
+        }
+
+        var startNanos = System.nanoTime();
+        for (int tx = 0; tx < tickCount; tx++) {
+            tick.run();
+        }
+        return (double) (System.nanoTime() - startNanos) / tickCount;
+    }
+
+    /**
+     * Checks that both layouts, having run the same number of ticks from the same start, agree
+     */
+    private static void verify(
+        final PortEconomy[] economies,
+        final ObjectEconomy[] objects
+    ) {
+        for (int cx = 0; cx < economies.length; cx++) {
+            var ports = objects[cx]._ports;
+            for (int slot = 0; slot < ports.size(); slot++) {
+                for (var resourceType : ResourceType.values()) {
+                    var resource = ports.get(slot)._resources[resourceType.ordinal()];
+                    if ((Math.abs(economies[cx].getStock(slot, resourceType) - resource._stock) > 1.0f)
+                        || (Math.abs(economies[cx].getPrice(slot, resourceType) - resource._price) > 0.01f)) {
+                        throw new IllegalStateException("Economies disagree at slot " + slot + " " + resourceType);
+                    }
+                }
+            }
+        }
+        System.out.println("Verified that both layouts reach the same stock and prices");
+    }
+
+    private static String format(
+        final String name,
+        final double tickNanos,
+        final int clusterCount,
+        final int portCount
+    ) {
+        return String.format("%-9s %18.1f %10.2f %19.1f",
+                             name,
+                             tickNanos / clusterCount / 1000,
+                             tickNanos / clusterCount / portCount,
+                             tickNanos / 1000);
+    }
+
+    /**
+     * The economy of a cluster as objects - a port object per port, holding a resource object per resource,
+     * with the ports shuffled so that they lie in the heap as ports created over time would
+     */
+    private static class ObjectEconomy {
+
+        private final List<PortResources> _ports = new ArrayList<>();
+
+        ObjectEconomy(
+            final PortEconomy economy
+        ) {
+            var order = new ArrayList<Integer>();
+            for (int slot = 0; slot < economy.getPortCount(); slot++) {
+                order.add(slot);
+            }
+            Collections.shuffle(order);
+
+            var ports = new PortResources[order.size()];
+            for (var slot : order) {
+                ports[slot] = new PortResources(economy, slot);
+            }
+            _ports.addAll(List.of(ports));
+        }
+
+        void tick(
+            final float seconds
+        ) {
+            for (var port : _ports) {
+                port.tick(seconds);
+            }
+        }
+    }
+
+    private static class PortResources {
+
+        private final Resource[] _resources = new Resource[ResourceType.values().length];
+
+        PortResources(
+            final PortEconomy economy,
+            final int slot
+        ) {
+            for (var resourceType : ResourceType.values()) {
+                _resources[resourceType.ordinal()] = new Resource(resourceType,
+                                                                  economy.getStock(slot, resourceType),
+                                                                  economy.getProductionRate(slot, resourceType),
+                                                                  economy.getConsumptionRate(slot, resourceType));
+            }
+        }
+
+        void tick(
+            final float seconds
+        ) {
+            for (var resource : _resources) {
+                resource.tick(seconds);
+            }
+        }
+    }
+
+    private static class Resource {
+
+        private final ResourceType _resourceType;
+        private final float _production;
+        private final float _consumption;
+        private float _stock;
+        private float _price;
+
+        Resource(
+            final ResourceType resourceType,
+            final float stock,
+            final float production,
+            final float consumption
+        ) {
+            _resourceType = resourceType;
+            _stock = stock;
+            _production = production;
+            _consumption = consumption;
+        }
+
+        void tick(
+            final float seconds
+        ) {
+            _stock = Math.min(PortEconomy.MAX_STOCK, Math.max(0.0f, _stock + (_production - _consumption) * seconds));
+            var basePrice = _resourceType._basePrice;
+            _price = basePrice * PortEconomy.EMPTY_PRICE_FACTOR
+                - basePrice * (PortEconomy.EMPTY_PRICE_FACTOR - PortEconomy.FULL_PRICE_FACTOR) / PortEconomy.MAX_STOCK * _stock;
+        }
+    }
+}
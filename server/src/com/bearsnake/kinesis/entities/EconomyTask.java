@@ -0,0 +1,58 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the port economy of each cluster on every tick, and has it written to the database every so often.
+ * A crash loses at most the economy's drift since it was last marked dirty - nothing a player has done.
+ */
+public class EconomyTask implements TickEngine.TickTask {
+
+    public static final long DEFAULT_PERSIST_INTERVAL_SECONDS = 60;
+
+    private final float _secondsPerTick;
+    private final long _persistIntervalTicks;
+
+    /**
+     * @param periodNanos length of a tick
+     * @param persistIntervalSeconds how often (in game time) each cluster's economy is marked dirty
+     */
+    public EconomyTask(
+        final long periodNanos,
+        final long persistIntervalSeconds
+    ) {
+        _secondsPerTick = (float) periodNanos / TimeUnit.SECONDS.toNanos(1);
+        _persistIntervalTicks = Math.max(1, TimeUnit.SECONDS.toNanos(persistIntervalSeconds) / periodNanos);
+    }
+
+    @Override
+    public void update(
+        final Cluster cluster,
+        final long tickNumber
+    ) {
+        cluster.getEconomy().tick(_secondsPerTick);
+    }
+
+    @Override
+    public void complete(
+        final Cluster cluster,
+        final long tickNumber
+    ) {
+        if (tickNumber % _persistIntervalTicks == 0) {
+            cluster.getEconomy().markDirty();
+        }
+    }
+
+    /**
+     * Marks every cluster's economy dirty, so that its current state is written with the next flush.
+     * Invoked once the tick engine has stopped.
+     */
+    public static void markAllDirty() {
+        Cluster.getClusters().forEach(cluster -> cluster.getEconomy().markDirty());
+    }
+}
@@ -7,6 +7,8 @@ package com.bearsnake.kinesis.entities;
 
 public class FighterShip extends Ship {
 
+    private String _name;   // formatted on first use - see Ship.getShipName
+
     protected FighterShip(
         final ShipId shipId,
         final Player owner,
@@ -19,7 +21,12 @@ public class FighterShip extends Ship {
 
     @Override
     public String getShipName() {
-        return String.format("fighter%s", getShipId());
+        var name = _name;
+        if (name == null) {
+            name = String.format("fighter%s", getShipId());
+            _name = name;
+        }
+        return name;
     }
 
     public static FighterShip createShip(
@@ -28,9 +35,9 @@ public class FighterShip extends Ship {
         final float fuelAmount,
         final float shieldsLevel
     ) {
-        synchronized (Ship.class) {
-            var shipId = getNextShipId();
-            return new FighterShip(shipId, owner, location, fuelAmount, shieldsLevel);
-        }
+        var shipId = getNextShipId();
+        var ship = register(new FighterShip(shipId, owner, location, fuelAmount, shieldsLevel));
+        WriteBehindFlusher.markDirty(ship);
+        return ship;
     }
 }
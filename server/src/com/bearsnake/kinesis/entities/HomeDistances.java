@@ -0,0 +1,129 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the number of hops from every sector of a cluster to the home sector (sector 1).
+ * The field is built with one breadth-first search from the home sector over the reverse links,
+ * and is then patched as links are added - a new link can only ever shorten distances, so we only
+ * have to push the improvement back through the predecessors of the sector which gained the link.
+ * <p>
+ * Distances may be read from any thread. A rebuilt field is published only once it is complete; patches for
+ * new links are made in place, and only ever lower a distance. Rebuilds and patches are serialized.
+ */
+final class HomeDistances {
+
+    static final int HOME_SECTOR_NUMBER = 1;
+
+    private final Cluster _cluster;
+    private volatile int[] _distances = null;
+    private int[] _queue = new int[0];          // guarded by this
+
+    HomeDistances(
+        final Cluster cluster
+    ) {
+        _cluster = cluster;
+    }
+
+    /**
+     * Retrieves the number of hops from the given sector to the home sector,
+     * or Cluster.NO_PATH if the home sector cannot be reached from there.
+     */
+    int getDistance(
+        final int sectorNumber
+    ) {
+        var distances = _distances;
+        if (distances == null) {
+            distances = rebuild();
+        }
+
+        return ((sectorNumber >= 0) && (sectorNumber < distances.length)) ? distances[sectorNumber] : Cluster.NO_PATH;
+    }
+
+    /**
+     * Discards the field; it is rebuilt at the next query
+     */
+    void invalidate() {
+        _distances = null;
+    }
+
+    /**
+     * Recomputes the entire field
+     * @return the new field
+     */
+    synchronized int[] rebuild() {
+        var size = _cluster.getHighestSectorNumber() + 1;
+        var distances = new int[size];
+        Arrays.fill(distances, Cluster.NO_PATH);
+        if (_queue.length < size) {
+            _queue = new int[size];
+        }
+
+        if (HOME_SECTOR_NUMBER < size) {
+            distances[HOME_SECTOR_NUMBER] = 0;
+            propagate(distances, HOME_SECTOR_NUMBER);
+        }
+
+        _distances = distances;
+        return distances;
+    }
+
+    /**
+     * Updates the field to account for a new link.
+     * Does nothing if the field has not yet been built.
+     */
+    synchronized void linkAdded(
+        final int fromSectorNumber,
+        final int toSectorNumber
+    ) {
+        var distances = _distances;
+        if (distances == null) {
+            return;
+        }
+
+        var toDistance = distances[toSectorNumber];
+        if (toDistance == Cluster.NO_PATH) {
+            return;
+        }
+
+        var fromDistance = distances[fromSectorNumber];
+        if ((fromDistance == Cluster.NO_PATH) || (fromDistance > toDistance + 1)) {
+            distances[fromSectorNumber] = toDistance + 1;
+            propagate(distances, fromSectorNumber);
+        }
+    }
+
+    /**
+     * Breadth-first pass backward over the links into the given sector (whose distance has just been set),
+     * lowering the distance of any predecessor which can now get home more quickly.
+     * Since every sector reached is reached along a shortest path from the starting sector,
+     * no sector is queued more than once.
+     */
+    private void propagate(
+        final int[] distances,
+        final int sectorNumber
+    ) {
+        var reverseLinks = _cluster._reverseLinks;
+        var head = 0;
+        var tail = 0;
+        _queue[tail++] = sectorNumber;
+        while (head < tail) {
+            var sx = _queue[head++];
+            var nextDistance = distances[sx] + 1;
+            var linkCount = reverseLinks.getLinkCount(sx);
+            for (int lx = 0; lx < linkCount; lx++) {
+                var predecessor = reverseLinks.getLinkTarget(sx, lx);
+                var distance = distances[predecessor];
+                if ((distance == Cluster.NO_PATH) || (distance > nextDistance)) {
+                    distances[predecessor] = nextDistance;
+                    _queue[tail++] = predecessor;
+                }
+            }
+        }
+    }
+}
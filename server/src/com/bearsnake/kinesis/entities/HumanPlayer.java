@@ -21,8 +21,6 @@ public class HumanPlayer extends Player {
         final String password,
         final String gameName
     ) {
-        synchronized (Player.class) {
-            return new HumanPlayer(getNextPlayerId(), username, password, gameName);
-        }
+        return addPlayer(new HumanPlayer(getNextPlayerId(), username, password, gameName));
     }
 }
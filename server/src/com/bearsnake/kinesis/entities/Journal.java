@@ -0,0 +1,683 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import com.bearsnake.kinesis.DatabaseWrapper;
+import com.bearsnake.kinesis.exceptions.DatabaseException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32C;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Append-only journal of changes made during play, so that changes not yet written to the database
+ * by the WriteBehindFlusher survive a crash.
+ * Each change is recorded as the new state of the changed entity (or the new link), which makes replay
+ * a matter of applying the records in order. Records are gathered in memory and written by a background
+ * thread every few milliseconds, with one fsync for the whole group (group commit); sync() waits until
+ * everything appended so far is on disk.
+ * The journal is a sequence of numbered segment files alongside the database. Each flush of the
+ * WriteBehindFlusher starts a new segment before it collects the dirty entities, and once the flush is
+ * committed to the database, the segments before that are no longer needed and are deleted.
+ * On start-up, replay() applies whatever segments remain to the loaded universe, writes the result to the
+ * database, and deletes them.
+ * <p>
+ * Each record is: length of the body, CRC32C of the body, then the body - a record type and its fields.
+ * A record which is incomplete or fails its CRC (as the last record may, after a crash) ends the segment.
+ * A reference to another entity is recorded as its id, with zero standing for none - an unowned planet, say.
+ * Ships, ports, planets and players are recorded in full, so that one created since the last flush - and so not yet
+ * in the database - is created again by replay.
+ */
+public class Journal implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger("Journal");
+    public static final long DEFAULT_GROUP_COMMIT_MSECS = 5;
+
+    private static final byte SHIP_RECORD = 1;
+    private static final byte PORT_RECORD = 2;
+    private static final byte PLANET_RECORD = 3;
+    private static final byte LINK_RECORD = 4;
+    private static final byte ECONOMY_RECORD = 5;
+    private static final byte PLAYER_RECORD = 6;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    private final String _basePath;
+    private final long _groupCommitMsecs;
+    private final Thread _thread;
+    private volatile boolean _terminate = false;
+
+    // guarded by this
+    private ByteBuffer _pending = ByteBuffer.allocate(1 << 16);
+    private ByteBuffer _spare = ByteBuffer.allocate(1 << 16);
+    private long _appendedCount = 0;
+    private long _durableCount = 0;
+
+    // guarded by _writeLock
+    private final ReentrantLock _writeLock = new ReentrantLock();
+    private FileChannel _channel;
+    private long _segmentNumber;
+    private long _oldestSegmentNumber;
+    private long _segmentBytes = 0;
+    private long _syncCount = 0;
+
+    private Journal(
+        final String basePath,
+        final long groupCommitMsecs
+    ) throws IOException {
+        _basePath = basePath;
+        _groupCommitMsecs = groupCommitMsecs;
+        _segmentNumber = 1;
+        _oldestSegmentNumber = 1;
+        _channel = openSegment(_segmentNumber);
+        _thread = new Thread(this::run, "Journal");
+        _thread.setDaemon(true);
+    }
+
+    public synchronized long getAppendedCount() { return _appendedCount; }
+    public synchronized long getDurableCount() { return _durableCount; }
+
+    public long getSyncCount() {
+        _writeLock.lock();
+        try {
+            return _syncCount;
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    private static String getBasePath(
+        final DatabaseWrapper databaseWrapper
+    ) {
+        return databaseWrapper.getPath() + ".journal";
+    }
+
+    private Path getSegmentPath(
+        final long segmentNumber
+    ) {
+        return getSegmentPath(_basePath, segmentNumber);
+    }
+
+    private static Path getSegmentPath(
+        final String basePath,
+        final long segmentNumber
+    ) {
+        return Path.of(String.format("%s.%08d", basePath, segmentNumber));
+    }
+
+    /**
+     * Finds the segment files for the journal with the given base path, in order
+     */
+    private static List<Path> findSegments(
+        final String basePath
+    ) throws IOException {
+        var result = new ArrayList<Path>();
+        var base = Path.of(basePath);
+        var directory = base.toAbsolutePath().getParent();
+        var prefix = base.getFileName().toString() + ".";
+        try (var stream = Files.list(directory)) {
+            stream.filter(path -> path.getFileName().toString().startsWith(prefix)
+                                  && path.getFileName().toString().substring(prefix.length()).matches("\\d+"))
+                  .sorted()
+                  .forEach(result::add);
+        }
+        return result;
+    }
+
+    private FileChannel openSegment(
+        final long segmentNumber
+    ) throws IOException {
+        return FileChannel.open(getSegmentPath(segmentNumber),
+                                StandardOpenOption.CREATE_NEW,
+                                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * Opens a new journal for the given database. Any journal left from an earlier run must have been replayed.
+     */
+    public static Journal open(
+        final DatabaseWrapper databaseWrapper,
+        final long groupCommitMsecs
+    ) throws DatabaseException {
+        var basePath = getBasePath(databaseWrapper);
+        try {
+            if (!findSegments(basePath).isEmpty()) {
+                throw new DatabaseException("Journal " + basePath + " has not been replayed");
+            }
+
+            var journal = new Journal(basePath, groupCommitMsecs);
+            journal._thread.start();
+            return journal;
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+            throw new DatabaseException(ex.getMessage());
+        }
+    }
+
+    /**
+     * Appends a record of the current state of the given entity (a Ship, Port, Planet, PortEconomy, or Sector.LinkRow).
+     * The record reaches the disk with the next group commit - see sync().
+     */
+    void append(
+        final Object entity
+    ) {
+        var record = encode(entity);
+        synchronized (this) {
+            if (_pending.remaining() < record.remaining()) {
+                var larger = ByteBuffer.allocate(Math.max(2 * _pending.capacity(), _pending.position() + record.remaining()));
+                _pending.flip();
+                larger.put(_pending);
+                _pending = larger;
+            }
+            _pending.put(record);
+            _appendedCount++;
+        }
+    }
+
+    private static ByteBuffer encode(
+        final Object entity
+    ) {
+        ByteBuffer buffer;
+        if (entity instanceof Ship ship) {
+            var name = (ship.getShipName() == null) ? null : ship.getShipName().getBytes(StandardCharsets.UTF_8);
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 42 + (name == null ? 0 : name.length));
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(SHIP_RECORD);
+            buffer.putLong(ship.getShipId().getValue());
+            buffer.put((byte) ship.getShipType()._code.charAt(0));
+            buffer.putLong(ship.getOwner() == null ? 0 : ship.getOwner().getPlayerId().getValue());
+            buffer.putLong(ship.getLocation() == null ? 0 : ship.getLocation().getSectorId().getValue());
+            buffer.putFloat(ship.getFuelAmount());
+            buffer.putFloat(ship.getShieldsLevel());
+            buffer.putInt(ship.getCargoHoldCount());
+            buffer.putInt(name == null ? -1 : name.length);
+            if (name != null) {
+                buffer.put(name);
+            }
+        } else if (entity instanceof Port port) {
+            // with the port's own resources, which a port created since the last economy record would otherwise lack
+            var name = port.getPortName().getBytes(StandardCharsets.UTF_8);
+            var resourceTypes = ResourceType.values();
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 30 + name.length + 12 * resourceTypes.length);
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(PORT_RECORD);
+            buffer.putLong(port.getPortId().getValue());
+            buffer.putLong(port.hasOwner() ? port.getOwner().getPlayerId().getValue() : 0);
+            buffer.putLong(port.getLocation().getSectorId().getValue());
+            buffer.putInt(name.length);
+            buffer.put(name);
+            buffer.put((byte) resourceTypes.length);
+            for (var resourceType : resourceTypes) {
+                buffer.putFloat(port.getStock(resourceType));
+                buffer.putFloat(port.getProductionRate(resourceType));
+                buffer.putFloat(port.getConsumptionRate(resourceType));
+            }
+        } else if (entity instanceof Planet planet) {
+            var name = planet.getPlanetName().getBytes(StandardCharsets.UTF_8);
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 29 + name.length);
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(PLANET_RECORD);
+            buffer.putLong(planet.getPlanetId().getValue());
+            buffer.putLong(planet.getLocation() == null ? 0 : planet.getLocation().getSectorId().getValue());
+            buffer.putLong(planet.getOwner() == null ? 0 : planet.getOwner().getPlayerId().getValue());
+            buffer.putInt(name.length);
+            buffer.put(name);
+        } else if (entity instanceof Sector.LinkRow link) {
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 17);
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(LINK_RECORD);
+            buffer.putLong(link.fromSectorId());
+            buffer.putLong(link.toSectorId());
+        } else if (entity instanceof Player player) {
+            // everything needed to restore a player created during play
+            var strings = new byte[][] { player.getPlayerType()._code.getBytes(StandardCharsets.UTF_8),
+                                         player.getUsername().getBytes(StandardCharsets.UTF_8),
+                                         player.getPassword().getBytes(StandardCharsets.UTF_8),
+                                         player.getGameName().getBytes(StandardCharsets.UTF_8) };
+            var size = 9;
+            for (var string : strings) {
+                size += 4 + string.length;
+            }
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + size);
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(PLAYER_RECORD);
+            buffer.putLong(player.getPlayerId().getValue());
+            for (var string : strings) {
+                buffer.putInt(string.length);
+                buffer.put(string);
+            }
+        } else if (entity instanceof PortEconomy economy) {
+            // the stock and rates of every resource at every port of the cluster
+            var resourceTypes = ResourceType.values();
+            var portCount = economy.getPortCount();
+            buffer = ByteBuffer.allocate(RECORD_HEADER_SIZE + 6 + portCount * (8 + 12 * resourceTypes.length));
+            buffer.position(RECORD_HEADER_SIZE);
+            buffer.put(ECONOMY_RECORD);
+            buffer.put((byte) resourceTypes.length);
+            buffer.putInt(portCount);
+            for (int slot = 0; slot < portCount; slot++) {
+                var port = economy.getPort(slot);
+                buffer.putLong(port == null ? 0 : port.getPortId().getValue());
+                for (var resourceType : resourceTypes) {
+                    buffer.putFloat(economy.getStock(slot, resourceType));
+                    buffer.putFloat(economy.getProductionRate(slot, resourceType));
+                    buffer.putFloat(economy.getConsumptionRate(slot, resourceType));
+                }
+            }
+        } else {
+            throw new RuntimeException("Cannot journal " + entity.getClass().getSimpleName());
+        }
+
+        var crc = new CRC32C();
+        crc.update(buffer.array(), RECORD_HEADER_SIZE, buffer.position() - RECORD_HEADER_SIZE);
+        buffer.putInt(0, buffer.position() - RECORD_HEADER_SIZE);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private void run() {
+        while (!_terminate) {
+            try {
+                Thread.sleep(_groupCommitMsecs);
+            } catch (InterruptedException ex) {
+                // we are being closed
+            }
+
+            try {
+                commit();
+            } catch (UncheckedIOException ex) {
+                // already logged - the records are still pending, so try again next time
+            }
+        }
+    }
+
+    /**
+     * Writes whatever has been appended to the current segment, with a single fsync
+     */
+    private void commit() {
+        _writeLock.lock();
+        try {
+            ByteBuffer buffer;
+            long count;
+            synchronized (this) {
+                if (_pending.position() == 0) {
+                    return;
+                }
+                buffer = _pending;
+                _pending = _spare;
+                _spare = buffer;
+                count = _appendedCount;
+            }
+
+            buffer.flip();
+            _segmentBytes += buffer.remaining();
+            while (buffer.hasRemaining()) {
+                _channel.write(buffer);
+            }
+            _channel.force(false);
+            _syncCount++;
+            buffer.clear();
+
+            synchronized (this) {
+                _durableCount = count;
+                notifyAll();
+            }
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+            throw new UncheckedIOException(ex);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Waits until everything appended so far is on disk
+     */
+    public void sync() {
+        long target;
+        synchronized (this) {
+            target = _appendedCount;
+        }
+
+        commit();
+        synchronized (this) {
+            while (_durableCount < target) {
+                try {
+                    wait();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Commits what has been appended to the current segment, and starts a new one, unless the current segment
+     * is empty. Everything appended before this call is in a segment numbered lower than the result.
+     * @return the number of the segment now being written
+     */
+    long roll() {
+        _writeLock.lock();
+        try {
+            commit();
+            if (_segmentBytes > 0) {
+                _channel.close();
+                _segmentNumber++;
+                _channel = openSegment(_segmentNumber);
+                _segmentBytes = 0;
+            }
+            return _segmentNumber;
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+            throw new UncheckedIOException(ex);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Deletes the segments numbered lower than the given segment, their content being in the database
+     */
+    void truncate(
+        final long segmentNumber
+    ) {
+        _writeLock.lock();
+        try {
+            for (; _oldestSegmentNumber < segmentNumber; _oldestSegmentNumber++) {
+                Files.deleteIfExists(getSegmentPath(_oldestSegmentNumber));
+            }
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Commits everything appended, and closes the journal. Segments which have not been truncated are kept.
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        _terminate = true;
+        _thread.interrupt();
+        try {
+            _thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        _writeLock.lock();
+        try {
+            commit();
+            _channel.close();
+            if (_segmentBytes == 0) {
+                Files.deleteIfExists(getSegmentPath(_segmentNumber));
+            }
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+        } finally {
+            _writeLock.unlock();
+        }
+    }
+
+    /**
+     * Applies any journal left by an earlier run (which must have ended without a final checkpoint)
+     * to the universe as loaded from the database, writes the affected rows to the database,
+     * and then deletes the journal.
+     */
+    public static void replay(
+        final DatabaseWrapper databaseWrapper
+    ) throws DatabaseException {
+        LOGGER.trace("replay()");
+        var basePath = getBasePath(databaseWrapper);
+        List<Path> segments;
+        try {
+            segments = findSegments(basePath);
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+            throw new DatabaseException(ex.getMessage());
+        }
+
+        if (segments.isEmpty()) {
+            return;
+        }
+
+        var changed = new LinkedHashSet<Object>();
+        var linkedClusters = new HashSet<Cluster>();
+        var recordCount = 0;
+        for (var segment : segments) {
+            ByteBuffer buffer;
+            try {
+                buffer = ByteBuffer.wrap(Files.readAllBytes(segment));
+            } catch (IOException ex) {
+                LOGGER.catching(ex);
+                throw new DatabaseException(ex.getMessage());
+            }
+
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                var length = buffer.getInt();
+                var expectedCrc = buffer.getInt();
+                if ((length <= 0) || (length > buffer.remaining())) {
+                    LOGGER.warn("Incomplete record at end of {}", segment);
+                    break;
+                }
+
+                var crc = new CRC32C();
+                crc.update(buffer.array(), buffer.position(), length);
+                if ((int) crc.getValue() != expectedCrc) {
+                    LOGGER.warn("Damaged record at end of {}", segment);
+                    break;
+                }
+
+                var body = buffer.slice(buffer.position(), length);
+                buffer.position(buffer.position() + length);
+                var entity = apply(body);
+                if (entity != null) {
+                    changed.add(entity);
+                    if (entity instanceof Port port) {
+                        changed.add(port.getEconomy());
+                    }
+                    if (entity instanceof Sector.LinkRow link) {
+                        linkedClusters.add(Sector.getSector(link.fromSectorId()).getCluster());
+                    }
+                }
+                recordCount++;
+            }
+        }
+
+        linkedClusters.forEach(Cluster::buildDefaultLandmarkIndex);
+        var batchSize = databaseWrapper.getBatchSize();
+        databaseWrapper.write(conn -> {
+            WriteBehindFlusher.dbWrite(conn, batchSize, changed);
+            return null;
+        });
+
+        try {
+            for (var segment : segments) {
+                Files.delete(segment);
+            }
+        } catch (IOException ex) {
+            LOGGER.catching(ex);
+            throw new DatabaseException(ex.getMessage());
+        }
+
+        var msg = String.format("Replayed %d journal record(s) from %d segment(s), updating %d row(s)...",
+                                recordCount,
+                                segments.size(),
+                                changed.size());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    /**
+     * Applies one record, creating the entity it describes if it is not already loaded
+     * @return the entity (or link) changed or created, or null if the record refers to an owner, sector, or port
+     *         which cannot be found, or cannot otherwise be applied
+     */
+    private static Object apply(
+        final ByteBuffer body
+    ) {
+        switch (body.get()) {
+            case SHIP_RECORD -> {
+                var shipId = body.getLong();
+                var shipType = String.valueOf((char) body.get());
+                var ship = Ship.getShip(shipId);
+                var ownerId = body.getLong();
+                var owner = ownerId == 0 ? null : Player.getPlayer(ownerId);
+                var locationId = body.getLong();
+                var location = locationId == 0 ? null : Sector.getSector(locationId);
+                var fuel = body.getFloat();
+                var shields = body.getFloat();
+                var cargoHolds = body.getInt();
+                var nameLength = body.getInt();
+                String name = null;
+                if (nameLength >= 0) {
+                    var bytes = new byte[nameLength];
+                    body.get(bytes);
+                    name = new String(bytes, StandardCharsets.UTF_8);
+                }
+
+                if (((ownerId != 0) && (owner == null)) || ((locationId != 0) && (location == null))) {
+                    return null;
+                } else if (ship == null) {
+                    return Ship.restore(new Ship.Row(shipId, shipType, name, ownerId, locationId, fuel, shields, cargoHolds));
+                }
+                ship.setShipName(name);
+                ship.setOwner(owner);
+                ship.setLocation(location);
+                ship.setFuelAmount(fuel);
+                ship.setShieldsLevel(shields);
+                ship.setCargoHoldCount(cargoHolds);
+                return ship;
+            }
+
+            case PORT_RECORD -> {
+                var portId = body.getLong();
+                var ownerId = body.getLong();
+                var owner = ownerId == 0 ? null : Player.getPlayer(ownerId);
+                var locationId = body.getLong();
+                var name = getString(body);
+                var resourceTypes = ResourceType.values();
+                if (body.get() != resourceTypes.length) {
+                    LOGGER.warn("Ignoring port record for a different set of resources");
+                    return null;
+                }
+
+                var port = Port.getPort(portId);
+                if ((ownerId != 0) && (owner == null)) {
+                    return null;
+                } else if (port == null) {
+                    if (Sector.getSector(locationId) == null) {
+                        return null;
+                    }
+                    port = Port.restore(new Port.Row(portId, name, locationId, (owner == null) ? null : ownerId));
+                } else {
+                    port.setOwnerId(owner);
+                }
+
+                for (var resourceType : resourceTypes) {
+                    port.getEconomy().set(port.getEconomySlot(), resourceType, body.getFloat(), body.getFloat(), body.getFloat());
+                }
+                return port;
+            }
+
+            case PLANET_RECORD -> {
+                var planetId = body.getLong();
+                var planet = Planet.getPlanet(planetId);
+                var locationId = body.getLong();
+                var location = locationId == 0 ? null : Sector.getSector(locationId);
+                var ownerId = body.getLong();
+                var owner = ownerId == 0 ? null : Player.getPlayer(ownerId);
+                var name = getString(body);
+                if (((locationId != 0) && (location == null)) || ((ownerId != 0) && (owner == null))) {
+                    return null;
+                } else if (planet == null) {
+                    return Planet.restore(new Planet.Row(planetId, name, locationId, ownerId));
+                }
+                planet.setLocation(location);
+                planet.setOwner(owner);
+                return planet;
+            }
+
+            case LINK_RECORD -> {
+                var link = new Sector.LinkRow(body.getLong(), body.getLong());
+                var from = Sector.getSector(link.fromSectorId());
+                var to = Sector.getSector(link.toSectorId());
+                if ((from == null) || (to == null)) {
+                    return null;
+                }
+                from.createLinkTo(to);
+                return link;
+            }
+
+            case ECONOMY_RECORD -> {
+                var resourceTypes = ResourceType.values();
+                if (body.get() != resourceTypes.length) {
+                    LOGGER.warn("Ignoring economy record for a different set of resources");
+                    return null;
+                }
+
+                PortEconomy economy = null;
+                for (int px = body.getInt(); px > 0; px--) {
+                    var port = Port.getPort(body.getLong());
+                    for (var resourceType : resourceTypes) {
+                        var stock = body.getFloat();
+                        var productionRate = body.getFloat();
+                        var consumptionRate = body.getFloat();
+                        if (port != null) {
+                            port.getEconomy().set(port.getEconomySlot(), resourceType, stock, productionRate, consumptionRate);
+                            economy = port.getEconomy();
+                        }
+                    }
+                }
+                return economy;
+            }
+
+            case PLAYER_RECORD -> {
+                var row = new Player.Row(body.getLong(), getString(body), getString(body), getString(body), getString(body));
+                var player = Player.getPlayer(row.playerId());
+                if (player == null) {
+                    return Player.restore(row);
+                }
+
+                try {
+                    player.setGameName(row.gameName());
+                } catch (RuntimeException ex) {
+                    LOGGER.warn("Ignoring rename of {}:{}", player, ex.getMessage());
+                    return null;
+                }
+                return player;
+            }
+
+            default -> {
+                LOGGER.warn("Unknown journal record type");
+                return null;
+            }
+        }
+    }
+
+    private static String getString(
+        final ByteBuffer body
+    ) {
+        var bytes = new byte[body.getInt()];
+        body.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
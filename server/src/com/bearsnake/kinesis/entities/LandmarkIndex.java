@@ -0,0 +1,192 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.IntStream;
+
+/**
+ * Landmark index for A* routing with the ALT heuristic (A*, landmarks, triangle inequality).
+ * For each landmark sector we keep the number of hops from the landmark to every sector, and from every
+ * sector to the landmark. For any sector v and goal g, the triangle inequality gives two lower bounds
+ * on the distance from v to g:
+ *      d(v,L) - d(g,L)     and     d(L,g) - d(L,v)
+ * and the largest such bound over all landmarks is an admissible (and consistent) heuristic.
+ * A cluster need not be strongly connected, so a landmark may be unable to reach a sector, or be reached from it;
+ * such distances are stored as UNREACHABLE. A bound involving an UNREACHABLE distance is either no bound at all
+ * (and is skipped), or proves that the goal cannot be reached - see estimate().
+ * The index describes the links as they were when it was built. Adding links can only shorten distances,
+ * which would make the bounds unsafe, so an index whose link version no longer matches its cluster is not used.
+ */
+final class LandmarkIndex {
+
+    static final int DEFAULT_LANDMARK_COUNT = 8;
+    static final int UNREACHABLE = 1 << 20;
+
+    private final long _linkVersion;
+    private final int[] _landmarks;
+    private final int _stride;
+    private final int[] _distances;
+    private final AtomicLong _queryCount = new AtomicLong();
+    private final AtomicLong _expandedCount = new AtomicLong();
+
+    private LandmarkIndex(
+        final long linkVersion,
+        final int[] landmarks,
+        final int[] distances
+    ) {
+        _linkVersion = linkVersion;
+        _landmarks = landmarks;
+        _stride = 2 * landmarks.length;
+        _distances = distances;
+    }
+
+    long getExpandedCount() { return _expandedCount.get(); }
+    int[] getLandmarks() { return _landmarks.clone(); }
+    int getRowSize() { return _stride; }
+    long getLinkVersion() { return _linkVersion; }
+    long getQueryCount() { return _queryCount.get(); }
+
+    void recordQuery(
+        final int expanded
+    ) {
+        _queryCount.incrementAndGet();
+        _expandedCount.addAndGet(expanded);
+    }
+
+    /**
+     * Builds an index for the cluster as it currently stands.
+     * Sector 1 is always the first landmark. The rest are spread over the range of sector numbers
+     * (which, for a standard cluster, follows the geometry of the cluster), taking from each band the sector
+     * which is furthest from sector 1. The distance arrays for the landmarks are computed in parallel,
+     * then interleaved so that all the distances for one sector sit together - each sector has a row holding
+     * d(L,v) for each landmark, followed by d(v,L) for each landmark.
+     */
+    static LandmarkIndex build(
+        final Cluster cluster,
+        final int landmarkCount
+    ) {
+        var linkVersion = cluster.getLinkVersion();
+        var highestSectorNumber = cluster.getHighestSectorNumber();
+        var landmarks = new int[Math.max(1, Math.min(landmarkCount, highestSectorNumber))];
+        landmarks[0] = HomeDistances.HOME_SECTOR_NUMBER;
+        var bandSize = (double) highestSectorNumber / (landmarks.length - 1);
+        for (int lx = 1; lx < landmarks.length; lx++) {
+            var low = (int) ((lx - 1) * bandSize) + 1;
+            var high = (int) (lx * bandSize);
+            landmarks[lx] = HomeDistances.HOME_SECTOR_NUMBER;
+            var furthest = 0;
+            for (int sx = low; sx <= high; sx++) {
+                var distance = cluster.getDistanceToHome(sx);
+                if ((cluster.getSector(sx) != null) && (distance > furthest)) {
+                    landmarks[lx] = sx;
+                    furthest = distance;
+                }
+            }
+        }
+
+        var fromLandmark = new int[landmarks.length][];
+        var toLandmark = new int[landmarks.length][];
+        IntStream.range(0, 2 * landmarks.length).parallel().forEach(tx -> {
+            var lx = tx >> 1;
+            if ((tx & 1) == 0) {
+                fromLandmark[lx] = computeDistances(cluster._links, landmarks[lx], highestSectorNumber + 1);
+            } else {
+                toLandmark[lx] = computeDistances(cluster._reverseLinks, landmarks[lx], highestSectorNumber + 1);
+            }
+        });
+
+        var size = highestSectorNumber + 1;
+        var stride = 2 * landmarks.length;
+        var distances = new int[size * stride];
+        for (int sx = 0; sx < size; sx++) {
+            for (int lx = 0; lx < landmarks.length; lx++) {
+                distances[sx * stride + lx] = fromLandmark[lx][sx];
+                distances[sx * stride + landmarks.length + lx] = toLandmark[lx][sx];
+            }
+        }
+
+        return new LandmarkIndex(linkVersion, landmarks, distances);
+    }
+
+    /**
+     * Breadth-first search from the origin over the given link store
+     */
+    private static int[] computeDistances(
+        final SectorLinks links,
+        final int origin,
+        final int size
+    ) {
+        var distances = new int[size];
+        Arrays.fill(distances, UNREACHABLE);
+        var queue = new int[size];
+        var head = 0;
+        var tail = 0;
+        distances[origin] = 0;
+        queue[tail++] = origin;
+        while (head < tail) {
+            var sx = queue[head++];
+            var linkCount = links.getLinkCount(sx);
+            for (int lx = 0; lx < linkCount; lx++) {
+                var target = links.getLinkTarget(sx, lx);
+                if (distances[target] == UNREACHABLE) {
+                    distances[target] = distances[sx] + 1;
+                    queue[tail++] = target;
+                }
+            }
+        }
+        return distances;
+    }
+
+    /**
+     * Copies the row of landmark distances for the given (goal) sector into the given buffer,
+     * which must be at least getRowSize() entries long.
+     */
+    void loadRow(
+        final int sectorNumber,
+        final int[] row
+    ) {
+        System.arraycopy(_distances, sectorNumber * _stride, row, 0, _stride);
+    }
+
+    /**
+     * Lower bound on the number of hops from the given sector to the goal sector,
+     * given the row of landmark distances for the goal sector.
+     * If L reaches the sector but not the goal, the sector cannot reach the goal either (or L would, through it);
+     * likewise if the goal reaches L but the sector does not. Either way the result is Cluster.NO_PATH.
+     * A bound whose subtracted distance is UNREACHABLE tells us nothing, and is skipped. Every other bound
+     * is a difference of two real distances, so a result other than NO_PATH is less than the number of sectors.
+     */
+    int estimate(
+        final int sectorNumber,
+        final int[] goalRow
+    ) {
+        var result = 0;
+        var base = sectorNumber * _stride;
+        var landmarkCount = _landmarks.length;
+        for (int lx = 0; lx < landmarkCount; lx++) {
+            var fromLandmarkToSector = _distances[base + lx];
+            var fromLandmarkToGoal = goalRow[lx];
+            if (fromLandmarkToSector != UNREACHABLE) {
+                if (fromLandmarkToGoal == UNREACHABLE) {
+                    return Cluster.NO_PATH;
+                }
+                result = Math.max(result, fromLandmarkToGoal - fromLandmarkToSector);
+            }
+
+            var fromSectorToLandmark = _distances[base + landmarkCount + lx];
+            var fromGoalToLandmark = goalRow[landmarkCount + lx];
+            if (fromGoalToLandmark != UNREACHABLE) {
+                if (fromSectorToLandmark == UNREACHABLE) {
+                    return Cluster.NO_PATH;
+                }
+                result = Math.max(result, fromSectorToLandmark - fromGoalToLandmark);
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * The result of a k-hop neighbourhood query - the sectors which can be reached from an origin sector within
+ * some number of hops, in order of increasing hop count, each with its hop count. The origin itself is the
+ * first entry, with a hop count of zero.
+ * An instance is meant to be kept by its owner (a scanner, say) and passed to query after query;
+ * its arrays only ever grow, so once they are large enough a query allocates nothing.
+ */
+public class Neighbourhood {
+
+    private Cluster _cluster = null;
+    private int _count = 0;
+    private int[] _sectorNumbers = new int[64];
+    private int[] _hopCounts = new int[64];
+    private final BitSet _members = new BitSet();
+
+    public Cluster getCluster() { return _cluster; }
+    public int getCount() { return _count; }
+    public int getHopCount(final int index) { return _hopCounts[index]; }
+    public Sector getSector(final int index) { return _cluster.getSector(_sectorNumbers[index]); }
+    public int getSectorNumber(final int index) { return _sectorNumbers[index]; }
+    public boolean contains(final int sectorNumber) { return _members.get(sectorNumber); }
+    public boolean contains(final Sector sector) { return (sector.getCluster() == _cluster) && contains(sector.getSectorNumber()); }
+
+    /**
+     * Empties the result, in preparation for a query in the given cluster
+     */
+    void reset(
+        final Cluster cluster
+    ) {
+        for (int sx = 0; sx < _count; sx++) {
+            _members.clear(_sectorNumbers[sx]);
+        }
+        _cluster = cluster;
+        _count = 0;
+    }
+
+    void add(
+        final int sectorNumber,
+        final int hopCount
+    ) {
+        if (_count == _sectorNumbers.length) {
+            _sectorNumbers = Arrays.copyOf(_sectorNumbers, _count * 2);
+            _hopCounts = Arrays.copyOf(_hopCounts, _count * 2);
+        }
+
+        _sectorNumbers[_count] = sectorNumber;
+        _hopCounts[_count] = hopCount;
+        _members.set(sectorNumber);
+        _count++;
+    }
+}
@@ -0,0 +1,308 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+
+/**
+ * Shortest path engine for the sectors of a cluster.
+ * Routes are found by breadth-first search, or by A* search when the cluster has a current landmark index.
+ * Each thread gets its own engine, and the engine keeps its scratch buffers from one query to the next,
+ * so a query allocates nothing but the resulting path.
+ * Scratch buffers are indexed by sector number; a visited marker is considered set only if it holds the
+ * current generation, which saves us from clearing the buffers before each query.
+ */
+final class PathEngine {
+
+    private static final ThreadLocal<PathEngine> _engines = ThreadLocal.withInitial(PathEngine::new);
+
+    private int _generation = 0;
+    private int[] _visited = new int[0];
+    private int[] _parent = new int[0];
+    private int[] _queue = new int[0];
+    private int[] _cost = new int[0];
+    private int[] _goalRow = new int[0];
+
+    // Bucket queue for A*, indexed by estimated total cost. Each bucket is a stack of entries (a sector number
+    // and its cost so far) chained through _entryNext. A bucket is empty unless its stamp is the current generation.
+    private int[] _bucketHead = new int[0];
+    private int[] _bucketStamp = new int[0];
+    private int[] _entrySector = new int[0];
+    private int[] _entryCost = new int[0];
+    private int[] _entryNext = new int[0];
+    private int _entryCount = 0;
+
+    private PathEngine() {}
+
+    static PathEngine getEngine() { return _engines.get(); }
+
+    /**
+     * Finds the shortest path from start to goal, with no avoidance list.
+     * Contract is that of Cluster.getShortestPath().
+     */
+    LinkedList<Sector> findShortestPath(
+        final Sector start,
+        final Sector goal
+    ) {
+        var index = start.getCluster().getLandmarkIndex();
+        if (index == null) {
+            return findShortestPath(start, goal, Collections.emptyList());
+        } else {
+            return findLandmarkPath(start, goal, index);
+        }
+    }
+
+    /**
+     * Finds the shortest path from start to goal, never passing through any sector in the avoid collection.
+     * Contract is that of Cluster.getShortestPath().
+     */
+    LinkedList<Sector> findShortestPath(
+        final Sector start,
+        final Sector goal,
+        final Collection<Sector> avoid
+    ) {
+        if (avoid.contains(goal)) {
+            return null;
+        }
+
+        if (start.equals(goal)) {
+            return new LinkedList<>();
+        }
+
+        var cluster = start.getCluster();
+        var links = cluster._links;
+        prepare(cluster.getHighestSectorNumber() + 1);
+        for (var sector : avoid) {
+            if (sector.getCluster() == cluster) {
+                _visited[sector.getSectorNumber()] = _generation;
+            }
+        }
+
+        var startNumber = start.getSectorNumber();
+        var goalNumber = goal.getSectorNumber();
+        _visited[startNumber] = _generation;
+        var head = 0;
+        var tail = 0;
+        _queue[tail++] = startNumber;
+        while (head < tail) {
+            var sectorNumber = _queue[head++];
+            var linkCount = links.getLinkCount(sectorNumber);
+            for (int lx = 0; lx < linkCount; lx++) {
+                var linkNumber = links.getLinkTarget(sectorNumber, lx);
+                if (_visited[linkNumber] != _generation) {
+                    _visited[linkNumber] = _generation;
+                    _parent[linkNumber] = sectorNumber;
+                    if (linkNumber == goalNumber) {
+                        return buildPath(cluster, startNumber, goalNumber);
+                    }
+                    _queue[tail++] = linkNumber;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Finds the shortest path from start to goal which honours the given constraints.
+     * Contract is that of Cluster.getShortestPath().
+     */
+    LinkedList<Sector> findConstrainedPath(
+        final Sector start,
+        final Sector goal,
+        final RouteConstraints constraints
+    ) {
+        if (constraints.isAvoided(goal)) {
+            return null;
+        }
+
+        if (start.equals(goal)) {
+            return new LinkedList<>();
+        }
+
+        var cluster = start.getCluster();
+        var links = cluster._links;
+        prepare(cluster.getHighestSectorNumber() + 1);
+
+        var checkLinks = constraints.hasBlockedLinks();
+        var startNumber = start.getSectorNumber();
+        var goalNumber = goal.getSectorNumber();
+        _visited[startNumber] = _generation;
+        var head = 0;
+        var tail = 0;
+        _queue[tail++] = startNumber;
+        while (head < tail) {
+            var sectorNumber = _queue[head++];
+            var linkCount = links.getLinkCount(sectorNumber);
+            for (int lx = 0; lx < linkCount; lx++) {
+                var linkNumber = links.getLinkTarget(sectorNumber, lx);
+                if ((_visited[linkNumber] != _generation)
+                    && !constraints.isAvoided(linkNumber)
+                    && !(checkLinks && constraints.isBlocked(sectorNumber, linkNumber))) {
+                    _visited[linkNumber] = _generation;
+                    _parent[linkNumber] = sectorNumber;
+                    if (linkNumber == goalNumber) {
+                        return buildPath(cluster, startNumber, goalNumber);
+                    }
+                    _queue[tail++] = linkNumber;
+                }
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * A* search guided by the landmark index. Only those sectors which might lie on a shortest path
+     * get expanded, which for point-to-point routes in a large cluster is a small fraction of the cluster.
+     * Since every link costs one hop and the heuristic is consistent, the estimated total cost of the entries
+     * we take from the queue never decreases, so a bucket queue with a cursor serves as the priority queue.
+     * Costs and estimates are each less than the number of sectors, so the buckets never overflow; a sector
+     * from which the goal is provably unreachable is never queued.
+     */
+    private LinkedList<Sector> findLandmarkPath(
+        final Sector start,
+        final Sector goal,
+        final LandmarkIndex index
+    ) {
+        if (start.equals(goal)) {
+            return new LinkedList<>();
+        }
+
+        var cluster = start.getCluster();
+        var links = cluster._links;
+        prepare(cluster.getHighestSectorNumber() + 1);
+
+        var startNumber = start.getSectorNumber();
+        var goalNumber = goal.getSectorNumber();
+        _visited[startNumber] = _generation;
+        _cost[startNumber] = 0;
+        if (_goalRow.length < index.getRowSize()) {
+            _goalRow = new int[index.getRowSize()];
+        }
+        index.loadRow(goalNumber, _goalRow);
+        _entryCount = 0;
+        var cursor = index.estimate(startNumber, _goalRow);
+        if (cursor == Cluster.NO_PATH) {
+            index.recordQuery(0);
+            return null;
+        }
+        push(startNumber, cursor, 0);
+
+        var expanded = 0;
+        while (true) {
+            while ((cursor < _bucketHead.length) && (_bucketStamp[cursor] != _generation)) {
+                cursor++;
+            }
+            if (cursor >= _bucketHead.length) {
+                break;
+            }
+
+            var entry = _bucketHead[cursor];
+            if (_entryNext[entry] < 0) {
+                _bucketStamp[cursor] = 0;
+            } else {
+                _bucketHead[cursor] = _entryNext[entry];
+            }
+
+            var sectorNumber = _entrySector[entry];
+            var cost = _entryCost[entry];
+            if (cost != _cost[sectorNumber]) {
+                continue; // stale entry - we found a cheaper way to this sector after queueing it
+            }
+
+            if (sectorNumber == goalNumber) {
+                index.recordQuery(expanded);
+                return buildPath(cluster, startNumber, goalNumber);
+            }
+
+            expanded++;
+            var nextCost = cost + 1;
+            var linkCount = links.getLinkCount(sectorNumber);
+            for (int lx = 0; lx < linkCount; lx++) {
+                var linkNumber = links.getLinkTarget(sectorNumber, lx);
+                if ((_visited[linkNumber] != _generation) || (nextCost < _cost[linkNumber])) {
+                    _visited[linkNumber] = _generation;
+                    _cost[linkNumber] = nextCost;
+                    _parent[linkNumber] = sectorNumber;
+                    var estimate = index.estimate(linkNumber, _goalRow);
+                    if (estimate != Cluster.NO_PATH) {
+                        push(linkNumber, nextCost + estimate, nextCost);
+                    }
+                }
+            }
+        }
+
+        index.recordQuery(expanded);
+        return null;
+    }
+
+    private LinkedList<Sector> buildPath(
+        final Cluster cluster,
+        final int startNumber,
+        final int goalNumber
+    ) {
+        var path = new LinkedList<Sector>();
+        for (var sectorNumber = goalNumber; sectorNumber != startNumber; sectorNumber = _parent[sectorNumber]) {
+            path.addFirst(cluster.getSector(sectorNumber));
+        }
+        return path;
+    }
+
+    /**
+     * Makes sure the scratch buffers can hold the given number of sectors, and starts a new generation.
+     */
+    private void prepare(
+        final int size
+    ) {
+        if (_visited.length < size) {
+            _visited = new int[size];
+            _parent = new int[size];
+            _queue = new int[size];
+            _cost = new int[size];
+            _bucketHead = new int[2 * size];
+            _bucketStamp = new int[2 * size];
+            _generation = 0;
+        }
+
+        _generation++;
+        if (_generation == 0) {
+            Arrays.fill(_visited, 0);
+            Arrays.fill(_bucketStamp, 0);
+            _generation = 1;
+        }
+    }
+
+    /**
+     * Pushes an entry onto the bucket for the given estimated total cost
+     */
+    private void push(
+        final int sectorNumber,
+        final int estimate,
+        final int cost
+    ) {
+        if (_entryCount == _entrySector.length) {
+            var newSize = Math.max(64, _entryCount * 2);
+            _entrySector = Arrays.copyOf(_entrySector, newSize);
+            _entryCost = Arrays.copyOf(_entryCost, newSize);
+            _entryNext = Arrays.copyOf(_entryNext, newSize);
+        }
+
+        var entry = _entryCount++;
+        _entrySector[entry] = sectorNumber;
+        _entryCost[entry] = cost;
+        if (_bucketStamp[estimate] == _generation) {
+            _entryNext[entry] = _bucketHead[estimate];
+        } else {
+            _entryNext[entry] = -1;
+            _bucketStamp[estimate] = _generation;
+        }
+        _bucketHead[estimate] = entry;
+    }
+}
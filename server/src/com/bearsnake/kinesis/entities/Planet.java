@@ -5,10 +5,15 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -19,25 +24,30 @@ import org.apache.logging.log4j.Logger;
 public class Planet {
 
     private static final Logger LOGGER = LogManager.getLogger("Planet");
-    private static final Map<PlanetId, Planet> _inventory = new HashMap<>();
-    private static long _nextPlanetId = 1;
+    private static final LongHashMap<Planet> _inventory = new LongHashMap<>();
+    private static final IdAllocator _planetIds = new IdAllocator();
 
     private static final String CREATE_TABLE_SQL = "CREATE TABLE planets ("
         + "  planetId integer PRIMARY KEY,"
         + "  planetName text NOT NULL,"
         + "  locationId integer NOT NULL,"
-        + "  ownerId integer NOT NULL,"
+        + "  ownerId integer,"
         + "  FOREIGN KEY (locationId) REFERENCES sectors(sectorId),"
         + "  FOREIGN KEY (ownerId) REFERENCES players(playerId)"
         + ") WITHOUT ROWID;";
 
-    private static final String INSERT_SQL =
-        "INSERT INTO ports (planetId, planetName, locationId, ownerId)"
-            + " VALUES (%s, \"%s\", %s, %s);";
+    static final String INSERT_SQL =
+        "INSERT INTO planets (planetId, planetName, locationId, ownerId)"
+            + " VALUES (?, ?, ?, ?);";
+
+    static final String UPSERT_SQL =
+        "INSERT INTO planets (planetId, planetName, locationId, ownerId)"
+            + " VALUES (?, ?, ?, ?)"
+            + " ON CONFLICT(planetId) DO UPDATE SET locationId = excluded.locationId, ownerId = excluded.ownerId;";
 
     private final PlanetId _planetId;
     private final String _planetName;
-    private Player _owner;
+    private volatile Player _owner;
     private Sector _location;
 
     private Planet(
@@ -50,24 +60,41 @@ public class Planet {
         _planetName = name;
         _owner = owner;
         _location = location;
+        Player.transferAsset(this, null, owner);
     }
 
-    public static Planet getPlanet(final PlanetId plid) { return _inventory.get(plid); }
+    public static Planet getPlanet(final PlanetId plid) { return _inventory.get(plid.getValue()); }
+    public static Planet getPlanet(final long planetId) { return _inventory.get(planetId); }
+    public static Collection<Planet> getPlanets() { return _inventory.values(); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
     public PlanetId getPlanetId() { return _planetId; }
     public String getPlanetName() { return _planetName; }
     public Sector getLocation() { return _location; }
     public Player getOwner() { return _owner; }
-    public void setLocation(final Sector value) { _location = value; }
-    public void setOwner(final Player value) { _owner = value; }
+    public void setLocation(final Sector value) { _location = value; WriteBehindFlusher.markDirty(this); }
+
+    /**
+     * Changes the planet's owner, keeping the players' record of the planets they own up to date
+     */
+    public void setOwner(
+        final Player value
+    ) {
+        synchronized (this) {
+            Player.transferAsset(this, _owner, value);
+            _owner = value;
+        }
+        WriteBehindFlusher.markDirty(this);
+    }
 
     public static Planet createPlanet(
         final String name,
         final Sector location,
         final Player owner
     ) {
-        var pid = new PlanetId(_nextPlanetId++);
+        var pid = new PlanetId(_planetIds.allocate());
         var p = new Planet(pid, name, location, owner);
-        _inventory.put(pid, p);
+        _inventory.put(pid.getValue(), p);
+        WriteBehindFlusher.markDirty(p);
         return p;
     }
 
@@ -86,26 +113,39 @@ public class Planet {
         final Connection conn
     ) throws SQLException {
         LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+    }
 
-        _inventory.clear();
-        var sql = "SELECT * FROM planets ORDER BY planetId;";
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery(sql);
-
-        while (rs.next()) {
-            var pid = rs.getLong("planetId");
-            var planetId = new PlanetId(pid);
-            var planetName = rs.getString("planetName");
-            var sid = new Sector.SectorId(rs.getLong("locationId"));
-            var location = Sector.getSector(sid);
-            var plid = new Player.PlayerId(rs.getLong("ownerId"));
-            var owner = Player.getPlayer(plid);
-            var planet = new Planet(planetId, planetName, location, owner);
-
-            _inventory.put(planetId, planet);
-            _nextPlanetId = pid + 1;
+    /**
+     * Reads the planets table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM planets ORDER BY planetId;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("planetId"),
+                                 rs.getString("planetName"),
+                                 rs.getLong("locationId"),
+                                 rs.getLong("ownerId")));
+            }
+        }
+        return rows;
+    }
 
-            location.setPlanet(planet);
+    /**
+     * Creates Planet entities from raw rows. Sectors and Players MUST be resolved first.
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
+        _inventory.clear();
+        _planetIds.reset();
+        for (var row : rows) {
+            restore(row);
         }
 
         var msg = String.format("Loaded %d planet(s)...", _inventory.size());
@@ -113,14 +153,69 @@ public class Planet {
         LOGGER.info(msg);
     }
 
+    /**
+     * Creates and registers a Planet entity from a raw row, as it was persisted (or journaled), and places it in
+     * its sector. A locationId or ownerId of zero stands for none.
+     */
+    static Planet restore(
+        final Row row
+    ) {
+        var planetId = new PlanetId(row.planetId());
+        var location = Sector.getSector(row.locationId());
+        var owner = Player.getPlayer(row.ownerId());
+        var planet = new Planet(planetId, row.planetName(), location, owner);
+
+        _inventory.put(planetId.getValue(), planet);
+        _planetIds.advancePast(row.planetId());
+
+        if (location != null) {
+            location.setPlanet(planet);
+        }
+        return planet;
+    }
+
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SQL, _planetId, _planetName, _location.getSectorId(), _owner.getPlayerId());
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        try (var batch = new BatchStatement(conn, INSERT_SQL, 1)) {
+            dbPersist(batch);
+        }
     }
 
+    /**
+     * Adds the row for this planet to a batch of INSERT_SQL statements
+     */
+    void dbPersist(
+        final BatchStatement batch
+    ) throws SQLException {
+        var statement = batch.getStatement();
+        var owner = _owner;
+        statement.setLong(1, _planetId.getValue());
+        statement.setString(2, _planetName);
+        statement.setLong(3, _location.getSectorId().getValue());
+        if (owner != null) {
+            statement.setLong(4, owner.getPlayerId().getValue());
+        } else {
+            statement.setNull(4, Types.INTEGER);
+        }
+        batch.addBatch();
+    }
+
+    /**
+     * Adds the row for this planet - inserted if the planet is new, otherwise updated - to a batch of UPSERT_SQL
+     * statements, which take the same columns as INSERT_SQL
+     */
+    void dbUpsert(
+        final BatchStatement batch
+    ) throws SQLException {
+        dbPersist(batch);
+    }
+
+    /**
+     * Raw content of one row of the planets table
+     */
+    public record Row(long planetId, String planetName, long locationId, long ownerId) {}
+
     public static class PlanetId {
 
         private final long _value;
@@ -131,6 +226,8 @@ public class Planet {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
@@ -5,11 +5,21 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -35,8 +45,11 @@ public abstract class Player {
     }
 
     private static final Logger LOGGER = LogManager.getLogger("Player");
-    private static final Map<PlayerId, Player> _inventory = new HashMap<>();
-    private static int _nextPlayerIdentifier = 1;
+    private static final LongHashMap<Player> _inventory = new LongHashMap<>();
+    private static final IdAllocator _playerIds = new IdAllocator();
+    private static final ConcurrentHashMap<String, Player> _usernameIndex = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, Player> _gameNameIndex = new ConcurrentHashMap<>();
+    private static volatile boolean _caseInsensitiveNames = false;
 
     private static final String CREATE_TABLE_SQL = "CREATE TABLE players ("
         + "  playerId integer PRIMARY KEY,"
@@ -48,13 +61,23 @@ public abstract class Player {
 
     private static final String INSERT_SQL =
         "INSERT INTO players (playerId, playerType, username, password, gamename)"
-            + " VALUES (%s, \"%s\", \"%s\", \"%s\", \"%s\");";
+            + " VALUES (?, ?, ?, ?, ?);";
+
+    static final String UPSERT_SQL =
+        "INSERT INTO players (playerId, playerType, username, password, gamename)"
+            + " VALUES (?, ?, ?, ?, ?)"
+            + " ON CONFLICT(playerId) DO UPDATE SET gamename = excluded.gamename;";
 
     private final PlayerId _playerId;
     private final PlayerType _playerType;
     private final String _username;
     private final String _password;
-    private String _gameName;
+    private volatile String _gameName;
+
+    // Assets owned by this player, kept up to date by the assets as they are created and change hands
+    private final Set<Ship> _ships = ConcurrentHashMap.newKeySet();
+    private final Set<Planet> _planets = ConcurrentHashMap.newKeySet();
+    private final Set<Port> _ports = ConcurrentHashMap.newKeySet();
 
     protected Player(
         final PlayerId playerId,
@@ -68,25 +91,66 @@ public abstract class Player {
         _username = username;
         _password = password;
         _gameName = gameName;
+    }
+
+    /**
+     * Adds a newly created player to the inventory, provided no other player is using its username or game name
+     */
+    protected static <T extends Player> T addPlayer(
+        final T player
+    ) {
+        var usernameKey = indexKey(player.getUsername());
+        var holder = _usernameIndex.putIfAbsent(usernameKey, player);
+        if (holder != null) {
+            throw new RuntimeException(String.format("Username %s is already in use", player.getUsername()));
+        }
+
+        holder = _gameNameIndex.putIfAbsent(indexKey(player.getGameName()), player);
+        if (holder != null) {
+            _usernameIndex.remove(usernameKey, player);
+            throw new RuntimeException(String.format("Game name %s is already in use", player.getGameName()));
+        }
 
-        _inventory.put(playerId, this);
+        _inventory.put(player.getPlayerId().getValue(), player);
+        WriteBehindFlusher.markDirty(player);
+        return player;
     }
 
     public static PlayerId getNextPlayerId() {
-        synchronized (Player.class) {
-            var result = new PlayerId(_nextPlayerIdentifier);
-            _nextPlayerIdentifier++;
-            return result;
-        }
+        return new PlayerId(_playerIds.allocate());
     }
 
     public String getGameName() { return _gameName; }
+    public Collection<Planet> getOwnedPlanets() { return Collections.unmodifiableSet(_planets); }
+    public Collection<Port> getOwnedPorts() { return Collections.unmodifiableSet(_ports); }
+    public Collection<Ship> getOwnedShips() { return Collections.unmodifiableSet(_ships); }
+    public static Collection<Player> getPlayers() { return _inventory.values(); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
     public PlayerId getPlayerId() { return _playerId; }
     public PlayerType getPlayerType() { return _playerType; }
     public String getUsername() { return _username; }
     public String getPassword() { return _password; }
     public boolean isAdministrator() { return _playerType == PlayerType.ADMINISTRATOR; }
-    public void setGameName(final String value) { _gameName = _gameName; }
+
+    /**
+     * Changes the player's game name, provided no other player is using it, and has the change persisted
+     */
+    public synchronized void setGameName(
+        final String value
+    ) {
+        var oldKey = indexKey(_gameName);
+        var newKey = indexKey(value);
+        var holder = _gameNameIndex.putIfAbsent(newKey, this);
+        if ((holder != null) && (holder != this)) {
+            throw new RuntimeException(String.format("Game name %s is already in use", value));
+        }
+
+        _gameName = value;
+        if (!newKey.equals(oldKey)) {
+            _gameNameIndex.remove(oldKey, this);
+        }
+        WriteBehindFlusher.markDirty(this);
+    }
 
     @Override
     public String toString() {
@@ -98,32 +162,103 @@ public abstract class Player {
     public static Player getPlayer(
         final PlayerId plid
     ) {
-        return _inventory.get(plid);
+        return _inventory.get(plid.getValue());
+    }
+
+    public static Player getPlayer(
+        final long playerId
+    ) {
+        return _inventory.get(playerId);
+    }
+
+    /**
+     * Records a change of ownership of a ship. Either player may be null.
+     */
+    static void transferAsset(
+        final Ship ship,
+        final Player from,
+        final Player to
+    ) {
+        if (from != null) {
+            from._ships.remove(ship);
+        }
+        if (to != null) {
+            to._ships.add(ship);
+        }
+    }
+
+    /**
+     * Records a change of ownership of a planet. Either player may be null.
+     */
+    static void transferAsset(
+        final Planet planet,
+        final Player from,
+        final Player to
+    ) {
+        if (from != null) {
+            from._planets.remove(planet);
+        }
+        if (to != null) {
+            to._planets.add(planet);
+        }
+    }
+
+    /**
+     * Records a change of ownership of a port. Either player may be null.
+     */
+    static void transferAsset(
+        final Port port,
+        final Player from,
+        final Player to
+    ) {
+        if (from != null) {
+            from._ports.remove(port);
+        }
+        if (to != null) {
+            to._ports.add(port);
+        }
     }
 
     public static Player getPlayerByGameName(
         final String gameName
     ) {
-        synchronized (Player.class) {
-            for (var p : _inventory.values()) {
-                if (p.getGameName().equals(gameName)) {
-                    return p;
-                }
-            }
-            return null;
-        }
+        return _gameNameIndex.get(indexKey(gameName));
     }
 
     public static Player getPlayerByUserName(
         final String username
     ) {
-        synchronized (Player.class) {
-            for (var p : _inventory.values()) {
-                if (p.getUsername().equals(username)) {
-                    return p;
-                }
-            }
-            return null;
+        return _usernameIndex.get(indexKey(username));
+    }
+
+    public static boolean isCaseInsensitiveNames() { return _caseInsensitiveNames; }
+
+    /**
+     * Selects whether usernames and game names are matched without regard to case, and rebuilds the name indexes
+     * accordingly. Where two players' names differ only in case, lookups find the one with the lower identifier.
+     * This is meant to be chosen at startup - players created or renamed during the rebuild may be missed.
+     */
+    public static synchronized void setCaseInsensitiveNames(
+        final boolean value
+    ) {
+        _caseInsensitiveNames = value;
+        rebuildNameIndexes();
+    }
+
+    private static String indexKey(
+        final String name
+    ) {
+        return _caseInsensitiveNames ? name.toLowerCase(Locale.ROOT) : name;
+    }
+
+    private static void rebuildNameIndexes() {
+        _usernameIndex.clear();
+        _gameNameIndex.clear();
+        var players = new ArrayList<>(_inventory.values());
+        players.sort(Comparator.comparingLong(p -> p._playerId.getValue()));
+        for (var p : players) {
+            _usernameIndex.putIfAbsent(indexKey(p._username), p);
+            _gameNameIndex.putIfAbsent(indexKey(p._gameName), p);
         }
     }
 
@@ -138,36 +273,104 @@ public abstract class Player {
     public static void dbLoad(
         final Connection conn
     ) throws SQLException {
-        var sql = "SELECT * FROM players ORDER BY playerId;";
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery(sql);
-
-        while (rs.next()) {
-            var playerId = new PlayerId(rs.getLong("playerId"));
-            var playerType = rs.getString("playerType");
-            var username = rs.getString("username");
-            var password = rs.getString("password");
-            var gameName = rs.getString("gameName");
-
-            switch (PlayerType.getPlayerType(playerType)) {
-                case ADMINISTRATOR -> new AdminPlayer(playerId, username, password, gameName);
-                case HUMAN -> new HumanPlayer(playerId, username, password, gameName);
+        dbResolve(dbReadRows(conn));
+    }
+
+    /**
+     * Reads the players table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM players ORDER BY playerId;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("playerId"),
+                                 rs.getString("playerType"),
+                                 rs.getString("username"),
+                                 rs.getString("password"),
+                                 rs.getString("gameName")));
             }
         }
+        return rows;
+    }
+
+    /**
+     * Creates Player entities from raw rows
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
+        _inventory.clear();
+        _usernameIndex.clear();
+        _gameNameIndex.clear();
+        _playerIds.reset();
+        for (var row : rows) {
+            restore(row);
+        }
 
         var msg = String.format("Loaded %d player(s)...", _inventory.size());
         System.out.println(msg);
         LOGGER.info(msg);
     }
 
+    /**
+     * Creates a Player entity from a raw row, as it was persisted. Where names clash (as names which differ only
+     * in case may, once names are case-insensitive) lookups find the player restored first, which is the one with
+     * the lower identifier when rows are restored in order.
+     */
+    static Player restore(
+        final Row row
+    ) {
+        var playerId = new PlayerId(row.playerId());
+        var player = switch (PlayerType.getPlayerType(row.playerType())) {
+            case ADMINISTRATOR -> new AdminPlayer(playerId, row.username(), row.password(), row.gameName());
+            case HUMAN -> new HumanPlayer(playerId, row.username(), row.password(), row.gameName());
+        };
+        _inventory.put(row.playerId(), player);
+        _usernameIndex.putIfAbsent(indexKey(row.username()), player);
+        _gameNameIndex.putIfAbsent(indexKey(row.gameName()), player);
+        _playerIds.advancePast(row.playerId());
+        return player;
+    }
+
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SQL, _playerId, _playerType._code, _username, _password, _gameName);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        try (var statement = conn.prepareStatement(INSERT_SQL)) {
+            bindRow(statement);
+            statement.execute();
+        }
     }
 
+    /**
+     * Adds the row for this player - inserted if the player is new, otherwise given the current game name -
+     * to a batch of UPSERT_SQL statements
+     */
+    void dbUpsert(
+        final BatchStatement batch
+    ) throws SQLException {
+        bindRow(batch.getStatement());
+        batch.addBatch();
+    }
+
+    private void bindRow(
+        final PreparedStatement statement
+    ) throws SQLException {
+        statement.setLong(1, _playerId.getValue());
+        statement.setString(2, _playerType._code);
+        statement.setString(3, _username);
+        statement.setString(4, _password);
+        statement.setString(5, _gameName);
+    }
+
+    /**
+     * Raw content of one row of the players table
+     */
+    public record Row(long playerId, String playerType, String username, String password, String gameName) {}
+
     public static class PlayerId {
 
         private final long _value;
@@ -178,6 +381,8 @@ public abstract class Player {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
@@ -5,24 +5,30 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.Map;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
 
 /**
  * Represents a port within our universe.
  * Ports are assigned to a particular sector (never more than one per) and never move.
  * Ports *may* be owned by a player.
+ * The stock, rates, and prices of a port's resources are held by its cluster's PortEconomy, in the port's slot.
  */
 public class Port {
 
     private static final Logger LOGGER = LogManager.getLogger("Port");
-    private static final Map<PortId, Port> _inventory = new HashMap<>();
-    private static long _nextPortIdentifier = 1;
+    private static final LongHashMap<Port> _inventory = new LongHashMap<>();
+    private static final IdAllocator _portIds = new IdAllocator();
 
     private static final String CREATE_TABLE_SQL = "CREATE TABLE ports ("
         + "  portId integer PRIMARY KEY,"
@@ -33,15 +39,21 @@ public class Port {
         + "  FOREIGN KEY (ownerId) REFERENCES players(playerId)"
         + ") WITHOUT ROWID;";
 
-    private static final String INSERT_SQL =
+    static final String INSERT_SQL =
         "INSERT INTO ports (portId, portName, locationId, ownerId)"
-        + " VALUES (%s, \"%s\", %s, %s);";
+        + " VALUES (?, ?, ?, ?);";
+
+    static final String UPSERT_SQL =
+        "INSERT INTO ports (portId, portName, locationId, ownerId)"
+        + " VALUES (?, ?, ?, ?)"
+        + " ON CONFLICT(portId) DO UPDATE SET locationId = excluded.locationId, ownerId = excluded.ownerId;";
 
     private final PortId _portId;
     private final String _portName;
     private final Sector _location;
-    private Player _owner;
-    // TODO resource amounts, production/consumption
+    private volatile Player _owner;
+    private final PortEconomy _economy;
+    private final int _economySlot;
 
     private Port(
         final PortId identifier,
@@ -53,21 +65,53 @@ public class Port {
         _portName = name;
         _location = location;
         _owner = owner;
+        _economy = location.getCluster().getEconomy();
+        _economySlot = _economy.addPort(this);
+        Player.transferAsset(this, null, owner);
     }
 
+    public float getConsumptionRate(final ResourceType resourceType) { return _economy.getConsumptionRate(_economySlot, resourceType); }
+    public PortEconomy getEconomy() { return _economy; }
+    public int getEconomySlot() { return _economySlot; }
     public Sector getLocation() { return _location; }
     public Player getOwner() { return _owner; }
-    public static Port getPort(final PortId portId) { return _inventory.get(portId); }
+    public static Port getPort(final PortId portId) { return _inventory.get(portId.getValue()); }
+    public static Port getPort(final long portId) { return _inventory.get(portId); }
+    public static Collection<Port> getPorts() { return _inventory.values(); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
     public PortId getPortId() { return _portId; }
     public String getPortName() { return _portName; }
+    public float getPrice(final ResourceType resourceType) { return _economy.getPrice(_economySlot, resourceType); }
+    public float getProductionRate(final ResourceType resourceType) { return _economy.getProductionRate(_economySlot, resourceType); }
+    public float getStock(final ResourceType resourceType) { return _economy.getStock(_economySlot, resourceType); }
     public boolean hasOwner() { return _owner != null; }
-    public void setOwnerId(final Player value) { _owner = value; }
+
+    /**
+     * Changes the port's owner (null for none), keeping the players' record of the ports they own up to date
+     */
+    public void setOwnerId(
+        final Player value
+    ) {
+        synchronized (this) {
+            Player.transferAsset(this, _owner, value);
+            _owner = value;
+        }
+        WriteBehindFlusher.markDirty(this);
+    }
 
     @Override
     public String toString() {
         var sb = new StringBuilder();
         sb.append(_portName).append(" (").append(_portId).append(")");
-        //TODO show production/consumption levels and resource amounts when we have them.
+        for (var resourceType : ResourceType.values()) {
+            var net = getProductionRate(resourceType) - getConsumptionRate(resourceType);
+            sb.append(String.format(" %s:%.0f%s%.2f/s@%.1f",
+                                    resourceType,
+                                    getStock(resourceType),
+                                    (net < 0) ? "" : "+",
+                                    net,
+                                    getPrice(resourceType)));
+        }
         return sb.toString();
     }
 
@@ -76,9 +120,11 @@ public class Port {
         final Player owner
     ) {
         var name = PortNames.selectName();
-        var pid = new PortId(_nextPortIdentifier++);
+        var pid = new PortId(_portIds.allocate());
         var p = new Port(pid, name, location, owner);
-        _inventory.put(pid, p);
+        p._economy.setRandomProfile(p._economySlot);
+        _inventory.put(pid.getValue(), p);
+        WriteBehindFlusher.markDirty(p);
         return p;
     }
 
@@ -97,27 +143,43 @@ public class Port {
         final Connection conn
     ) throws SQLException {
         LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+    }
 
-        _inventory.clear();
-        var sql = String.format("SELECT * FROM ports ORDER BY portId;");
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery(sql);
-
-        while (rs.next()) {
-            var portId = new PortId(rs.getLong("portId"));
-            var portName = rs.getString("portName");
-            var location = Sector.getSector(new Sector.SectorId(rs.getLong("locationId")));
-            Player owner = null;
-            var pid = rs.getLong("ownerId");
-            if (!rs.wasNull()) {
-                owner = Player.getPlayer(new Player.PlayerId(pid));
+    /**
+     * Reads the ports table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM ports ORDER BY portId;");
+            while (rs.next()) {
+                var portId = rs.getLong("portId");
+                var portName = rs.getString("portName");
+                var locationId = rs.getLong("locationId");
+                Long ownerId = rs.getLong("ownerId");
+                if (rs.wasNull()) {
+                    ownerId = null;
+                }
+                rows.add(new Row(portId, portName, locationId, ownerId));
             }
+        }
+        return rows;
+    }
 
-            var p = new Port(portId, portName, location, owner);
-            _inventory.put(portId, p);
-            _nextPortIdentifier = portId._value + 1;
-
-            location.setPort(p);
+    /**
+     * Creates Port entities from raw rows. Players and Sectors MUST be resolved first.
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
+        _inventory.clear();
+        _portIds.reset();
+        for (var row : rows) {
+            restore(row);
         }
 
         var msg = String.format("Loaded %d port(s)...", _inventory.size());
@@ -125,18 +187,67 @@ public class Port {
         LOGGER.info(msg);
     }
 
+    /**
+     * Creates and registers a Port entity from a raw row, as it was persisted (or journaled), and places it in its
+     * sector. The port is given the next slot in its cluster's economy, with no stock or rates until they are set.
+     */
+    static Port restore(
+        final Row row
+    ) {
+        var portId = new PortId(row.portId());
+        var location = Sector.getSector(row.locationId());
+        var owner = row.ownerId() == null ? null : Player.getPlayer(row.ownerId());
+
+        var p = new Port(portId, row.portName(), location, owner);
+        _inventory.put(portId.getValue(), p);
+        _portIds.advancePast(portId._value);
+
+        location.setPort(p);
+        return p;
+    }
+
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SQL,
-                                _portId,
-                                _portName,
-                                _location.getSectorId(),
-                                hasOwner() ? _owner.getPlayerId() : "null");
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        try (var batch = new BatchStatement(conn, INSERT_SQL, 1)) {
+            dbPersist(batch);
+        }
+    }
+
+    /**
+     * Adds the row for this port to a batch of INSERT_SQL statements
+     */
+    void dbPersist(
+        final BatchStatement batch
+    ) throws SQLException {
+        var statement = batch.getStatement();
+        var owner = _owner;
+        statement.setLong(1, _portId.getValue());
+        statement.setString(2, _portName);
+        statement.setLong(3, _location.getSectorId().getValue());
+        if (owner != null) {
+            statement.setLong(4, owner.getPlayerId().getValue());
+        } else {
+            statement.setNull(4, Types.INTEGER);
+        }
+        batch.addBatch();
+    }
+
+    /**
+     * Adds the row for this port - inserted if the port is new, otherwise updated - to a batch of UPSERT_SQL
+     * statements, which take the same columns as INSERT_SQL
+     */
+    void dbUpsert(
+        final BatchStatement batch
+    ) throws SQLException {
+        dbPersist(batch);
     }
 
+    /**
+     * Raw content of one row of the ports table. ownerId is null for an unowned port.
+     */
+    public record Row(long portId, String portName, long locationId, Long ownerId) {}
+
     public static class PortId {
 
         private final long _value;
@@ -147,6 +258,8 @@ public class Port {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
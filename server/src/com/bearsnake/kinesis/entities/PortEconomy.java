@@ -0,0 +1,389 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import com.bearsnake.kinesis.BatchStatement;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * The stock, production, consumption, and prices of the resources at the ports of one cluster.
+ * Rather than fields on each Port, the economy is held as parallel primitive arrays, indexed by the port's slot
+ * in the cluster and the ordinal of the ResourceType. The arrays are laid out resource by resource - all the ports'
+ * Equipment, then all their Ore, and so on - so that a tick is a single pass over contiguous runs of floats,
+ * with no objects touched and nothing in the loop which stops the JIT vectorising it.
+ * <p>
+ * Rates are in units per second. Stock is held between zero and MAX_STOCK, and the price of a resource
+ * falls linearly as its stock rises - from 1.5 times the base price when the port has none, to half
+ * the base price when it is full.
+ * <p>
+ * The stock is changed only by the tick (which the TickEngine runs for one cluster on one thread at a time),
+ * and may be read from any thread. The arrays and the number of slots they are laid out for are published
+ * together as one Layout, which is replaced when the arrays grow; a reader takes the layout once, so that it never
+ * indexes new arrays with the old slot count. Growing, setting and ticking are serialized, so that no tick is lost
+ * in arrays which are being replaced.
+ * The economy is persisted as a whole: it is marked dirty every so often rather than on every change,
+ * and the write-behind flusher then writes every port's rows in one batch.
+ */
+public class PortEconomy {
+
+    private static final Logger LOGGER = LogManager.getLogger("PortEconomy");
+    private static final Random _random = new Random(System.currentTimeMillis());
+
+    public static final float MAX_STOCK = 10000.0f;
+    static final float EMPTY_PRICE_FACTOR = 1.5f;
+    static final float FULL_PRICE_FACTOR = 0.5f;
+    private static final float MIN_RATE = 0.5f;
+    private static final float MAX_RATE = 2.0f;
+    private static final int INITIAL_SLOT_CAPACITY = 16;
+
+    private static final ResourceType[] RESOURCE_TYPES = ResourceType.values();
+    static final int RESOURCE_COUNT = RESOURCE_TYPES.length;
+
+    private static final String CREATE_TABLE_SQL = "CREATE TABLE IF NOT EXISTS port_resources ("
+        + "  portId integer NOT NULL,"
+        + "  resourceType text NOT NULL,"
+        + "  stock real NOT NULL,"
+        + "  productionRate real NOT NULL,"
+        + "  consumptionRate real NOT NULL,"
+        + "  PRIMARY KEY (portId, resourceType),"
+        + "  FOREIGN KEY (portId) REFERENCES ports(portId)"
+        + ") WITHOUT ROWID;";
+
+    static final String WRITE_SQL =
+        "INSERT OR REPLACE INTO port_resources (portId, resourceType, stock, productionRate, consumptionRate)"
+        + " VALUES (?, ?, ?, ?, ?);";
+
+    /**
+     * The arrays, laid out for a given number of slots. Replaced as a whole when the economy outgrows it.
+     */
+    private static final class Layout {
+
+        private final int _slotCapacity;
+        private final Port[] _ports;
+        private final float[] _stock;
+        private final float[] _production;
+        private final float[] _consumption;
+        private final float[] _price;
+
+        private Layout(
+            final int slotCapacity
+        ) {
+            _slotCapacity = slotCapacity;
+            _ports = new Port[slotCapacity];
+            _stock = new float[slotCapacity * RESOURCE_COUNT];
+            _production = new float[slotCapacity * RESOURCE_COUNT];
+            _consumption = new float[slotCapacity * RESOURCE_COUNT];
+            _price = new float[slotCapacity * RESOURCE_COUNT];
+        }
+
+        private int index(
+            final int slot,
+            final ResourceType resourceType
+        ) {
+            return resourceType.ordinal() * _slotCapacity + slot;
+        }
+    }
+
+    private volatile Layout _layout = new Layout(INITIAL_SLOT_CAPACITY);
+    private volatile int _portCount = 0;
+
+    Port getPort(final int slot) { return _layout._ports[slot]; }
+    public int getPortCount() { return _portCount; }
+
+    public float getConsumptionRate(
+        final int slot,
+        final ResourceType resourceType
+    ) {
+        var layout = _layout;
+        return layout._consumption[layout.index(slot, resourceType)];
+    }
+
+    public float getPrice(
+        final int slot,
+        final ResourceType resourceType
+    ) {
+        var layout = _layout;
+        return layout._price[layout.index(slot, resourceType)];
+    }
+
+    public float getProductionRate(
+        final int slot,
+        final ResourceType resourceType
+    ) {
+        var layout = _layout;
+        return layout._production[layout.index(slot, resourceType)];
+    }
+
+    public float getStock(
+        final int slot,
+        final ResourceType resourceType
+    ) {
+        var layout = _layout;
+        return layout._stock[layout.index(slot, resourceType)];
+    }
+
+    /**
+     * Adds a port to the economy, with no stock, production or consumption
+     * @param port the port, or null for a slot which is never persisted (as in EconomyBenchmark)
+     * @return the port's slot
+     */
+    synchronized int addPort(
+        final Port port
+    ) {
+        var slot = _portCount;
+        if (slot == _layout._slotCapacity) {
+            grow(2 * _layout._slotCapacity);
+        }
+        _layout._ports[slot] = port;
+        for (var resourceType : RESOURCE_TYPES) {
+            set(slot, resourceType, 0.0f, 0.0f, 0.0f);
+        }
+        _portCount = slot + 1;
+        return slot;
+    }
+
+    /**
+     * Re-lays the arrays out for a larger number of slots - each resource's run of slots moves to its new start -
+     * and publishes the new layout. Invoked holding the lock.
+     */
+    private void grow(
+        final int slotCapacity
+    ) {
+        var from = _layout;
+        var to = new Layout(slotCapacity);
+        System.arraycopy(from._ports, 0, to._ports, 0, _portCount);
+        regrow(from._stock, from._slotCapacity, to._stock, slotCapacity);
+        regrow(from._production, from._slotCapacity, to._production, slotCapacity);
+        regrow(from._consumption, from._slotCapacity, to._consumption, slotCapacity);
+        regrow(from._price, from._slotCapacity, to._price, slotCapacity);
+        _layout = to;
+    }
+
+    private void regrow(
+        final float[] from,
+        final int fromCapacity,
+        final float[] to,
+        final int toCapacity
+    ) {
+        for (int rx = 0; rx < RESOURCE_COUNT; rx++) {
+            System.arraycopy(from, rx * fromCapacity, to, rx * toCapacity, _portCount);
+        }
+    }
+
+    /**
+     * Sets the stock and rates of one resource at one port, and prices it accordingly
+     */
+    synchronized void set(
+        final int slot,
+        final ResourceType resourceType,
+        final float stock,
+        final float productionRate,
+        final float consumptionRate
+    ) {
+        var layout = _layout;
+        var ix = layout.index(slot, resourceType);
+        layout._stock[ix] = Math.min(MAX_STOCK, Math.max(0.0f, stock));
+        layout._production[ix] = productionRate;
+        layout._consumption[ix] = consumptionRate;
+        layout._price[ix] = priceOf(resourceType, layout._stock[ix]);
+    }
+
+    /**
+     * Gives a new port a random trading profile - each resource is either produced (and sold) or consumed
+     * (and bought), at a random rate, starting with the port half full
+     */
+    void setRandomProfile(
+        final int slot
+    ) {
+        for (var resourceType : RESOURCE_TYPES) {
+            var rate = MIN_RATE + (MAX_RATE - MIN_RATE) * _random.nextFloat();
+            var produces = _random.nextBoolean();
+            set(slot, resourceType, MAX_STOCK / 2, produces ? rate : 0.0f, produces ? 0.0f : rate);
+        }
+    }
+
+    private static float priceOf(
+        final ResourceType resourceType,
+        final float stock
+    ) {
+        var basePrice = resourceType._basePrice;
+        return basePrice * EMPTY_PRICE_FACTOR - basePrice * (EMPTY_PRICE_FACTOR - FULL_PRICE_FACTOR) * stock / MAX_STOCK;
+    }
+
+    /**
+     * Advances the economy by the given number of seconds: each port's stock of each resource moves by its net
+     * production, within the limits, and is repriced.
+     * Invoked by the TickEngine for this cluster only, so the lock is normally uncontended - it is taken once
+     * per tick, not per port.
+     */
+    public synchronized void tick(
+        final float seconds
+    ) {
+        var layout = _layout;
+        var stock = layout._stock;
+        var production = layout._production;
+        var consumption = layout._consumption;
+        var price = layout._price;
+        var slotCapacity = layout._slotCapacity;
+        var portCount = _portCount;
+        for (int rx = 0; rx < RESOURCE_COUNT; rx++) {
+            var basePrice = RESOURCE_TYPES[rx]._basePrice;
+            var emptyPrice = basePrice * EMPTY_PRICE_FACTOR;
+            var pricePerUnit = basePrice * (EMPTY_PRICE_FACTOR - FULL_PRICE_FACTOR) / MAX_STOCK;
+            var from = rx * slotCapacity;
+            var to = from + portCount;
+            for (int ix = from; ix < to; ix++) {
+                var level = Math.min(MAX_STOCK, Math.max(0.0f, stock[ix] + (production[ix] - consumption[ix]) * seconds));
+                stock[ix] = level;
+                price[ix] = emptyPrice - pricePerUnit * level;
+            }
+        }
+    }
+
+    /**
+     * Notes that the economy should be written by the write-behind flusher (if one is running)
+     */
+    public void markDirty() {
+        if (_portCount > 0) {
+            WriteBehindFlusher.markDirty(this);
+        }
+    }
+
+    public static void dbCreateTable(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace(CREATE_TABLE_SQL);
+        var statement = conn.createStatement();
+        statement.execute(CREATE_TABLE_SQL);
+    }
+
+    /**
+     * Loads port resources from the database. MUST load Ports first.
+     */
+    public static void dbLoad(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+    }
+
+    /**
+     * Reads the port_resources table into raw rows
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM port_resources ORDER BY portId, resourceType;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("portId"),
+                                 rs.getString("resourceType"),
+                                 rs.getFloat("stock"),
+                                 rs.getFloat("productionRate"),
+                                 rs.getFloat("consumptionRate")));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Applies raw rows to the economies of the ports they belong to. Ports MUST be resolved first.
+     * A port with no rows - one from a database which predates the economy - is given a random profile,
+     * which is written when the economy is next persisted.
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
+        var unstocked = new HashSet<>(Port.getPorts());
+        var count = 0;
+        for (var row : rows) {
+            var port = Port.getPort(row.portId());
+            ResourceType resourceType;
+            try {
+                resourceType = ResourceType.valueOf(row.resourceType());
+            } catch (IllegalArgumentException ex) {
+                resourceType = null;
+            }
+
+            if ((port == null) || (resourceType == null)) {
+                LOGGER.warn("Ignoring resource {} for port {}", row.resourceType(), row.portId());
+            } else {
+                port.getEconomy().set(port.getEconomySlot(),
+                                      resourceType,
+                                      row.stock(),
+                                      row.productionRate(),
+                                      row.consumptionRate());
+                unstocked.remove(port);
+                count++;
+            }
+        }
+
+        for (var port : unstocked) {
+            port.getEconomy().setRandomProfile(port.getEconomySlot());
+        }
+
+        var msg = String.format("Loaded %d port resource(s)...", count);
+        System.out.println(msg);
+        LOGGER.info(msg);
+        if (!unstocked.isEmpty()) {
+            msg = String.format("Gave %d port(s) with no resources a random profile...", unstocked.size());
+            System.out.println(msg);
+            LOGGER.info(msg);
+        }
+    }
+
+    /**
+     * Adds the rows for every port in the economy to a batch of WRITE_SQL statements
+     */
+    void dbPersist(
+        final BatchStatement batch
+    ) throws SQLException {
+        var portCount = _portCount;
+        for (int slot = 0; slot < portCount; slot++) {
+            dbPersist(batch, slot);
+        }
+    }
+
+    /**
+     * Adds the rows for the port in one slot to a batch of WRITE_SQL statements. A slot with no port is skipped.
+     */
+    void dbPersist(
+        final BatchStatement batch,
+        final int slot
+    ) throws SQLException {
+        var layout = _layout;
+        var port = layout._ports[slot];
+        if (port == null) {
+            return;
+        }
+
+        var statement = batch.getStatement();
+        var portId = port.getPortId().getValue();
+        for (var resourceType : RESOURCE_TYPES) {
+            var ix = layout.index(slot, resourceType);
+            statement.setLong(1, portId);
+            statement.setString(2, resourceType.name());
+            statement.setFloat(3, layout._stock[ix]);
+            statement.setFloat(4, layout._production[ix]);
+            statement.setFloat(5, layout._consumption[ix]);
+            batch.addBatch();
+        }
+    }
+
+    /**
+     * Raw content of one row of the port_resources table
+     */
+    public record Row(long portId, String resourceType, float stock, float productionRate, float consumptionRate) {}
+}
@@ -7,6 +7,8 @@ package com.bearsnake.kinesis.entities;
 
 public class ProbeShip extends Ship {
 
+    private String _name;   // formatted on first use - see Ship.getShipName
+
     protected ProbeShip(
         final ShipId shipId,
         final Player owner,
@@ -18,7 +20,23 @@ public class ProbeShip extends Ship {
 
     @Override
     public String getShipName() {
-        return String.format("probe%s", getShipId());
+        var name = _name;
+        if (name == null) {
+            name = String.format("probe%s", getShipId());
+            _name = name;
+        }
+        return name;
+    }
+
+    /**
+     * Scans the sectors within the given number of hops of the probe's location, into the given result object
+     */
+    public Neighbourhood scan(
+        final int maxHops,
+        final Neighbourhood result
+    ) {
+        var location = getLocation();
+        return location.getCluster().getNeighbourhood(location, maxHops, result);
     }
 
     public static ProbeShip createShip(
@@ -26,9 +44,9 @@ public class ProbeShip extends Ship {
         final Sector location,
         final float fuelAmount
     ) {
-        synchronized (Ship.class) {
-            var shipId = getNextShipId();
-            return new ProbeShip(shipId, owner, location, fuelAmount);
-        }
+        var shipId = getNextShipId();
+        var ship = register(new ProbeShip(shipId, owner, location, fuelAmount));
+        WriteBehindFlusher.markDirty(ship);
+        return ship;
     }
 }
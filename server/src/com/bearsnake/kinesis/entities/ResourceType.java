@@ -5,8 +5,16 @@
 
 package com.bearsnake.kinesis.entities;
 
+/**
+ * The commodities traded at ports, each with the price (in credits per unit) it fetches at a port
+ * whose stock is half full
+ */
 public enum ResourceType {
-    Equipment,
-    Ore,
-    Organics,
+    Equipment(50.0f),
+    Ore(20.0f),
+    Organics(30.0f);
+
+    public final float _basePrice;
+
+    ResourceType(final float basePrice) { _basePrice = basePrice; }
 }
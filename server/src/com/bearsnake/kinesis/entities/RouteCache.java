@@ -0,0 +1,99 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Bounded least-recently-used cache of shortest paths, keyed by the sector ids of the starting and goal sectors.
+ * Each entry remembers the link version of its cluster at the time it was computed, and is discarded
+ * (and counted as a miss) if the cluster's links have changed since then.
+ */
+public class RouteCache {
+
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private record RouteKey(long startId, long goalId) {}
+
+    private record Route(Sector[] path, long linkVersion) {}
+
+    private final LinkedHashMap<RouteKey, Route> _routes = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(
+            final Map.Entry<RouteKey, Route> eldest
+        ) {
+            return size() > _capacity;
+        }
+    };
+
+    private int _capacity;
+    private long _hitCount = 0;
+    private long _missCount = 0;
+
+    RouteCache(
+        final int capacity
+    ) {
+        _capacity = capacity;
+    }
+
+    public synchronized int getCapacity() { return _capacity; }
+    public synchronized long getHitCount() { return _hitCount; }
+    public synchronized long getMissCount() { return _missCount; }
+    public synchronized int getSize() { return _routes.size(); }
+
+    public synchronized void clear() {
+        _routes.clear();
+        _hitCount = 0;
+        _missCount = 0;
+    }
+
+    /**
+     * Changes the maximum number of routes held in the cache, evicting the least-recently-used routes
+     * if necessary. A capacity of zero disables the cache.
+     */
+    public synchronized void setCapacity(
+        final int value
+    ) {
+        _capacity = Math.max(value, 0);
+        var iter = _routes.entrySet().iterator();
+        while (_routes.size() > _capacity) {
+            iter.next();
+            iter.remove();
+        }
+    }
+
+    /**
+     * Retrieves the shortest path from start to goal, using the cached route if we have a current one.
+     * Contract is that of Cluster.getShortestPath().
+     */
+    LinkedList<Sector> getShortestPath(
+        final Sector start,
+        final Sector goal
+    ) {
+        var key = new RouteKey(start.getSectorId().getValue(), goal.getSectorId().getValue());
+        var linkVersion = start.getCluster().getLinkVersion();
+        synchronized (this) {
+            var route = _routes.get(key);
+            if ((route != null) && (route.linkVersion() == linkVersion)) {
+                _hitCount++;
+                return route.path() == null ? null : new LinkedList<>(Arrays.asList(route.path()));
+            }
+            _missCount++;
+        }
+
+        var path = PathEngine.getEngine().findShortestPath(start, goal);
+        synchronized (this) {
+            if (_capacity > 0) {
+                _routes.put(key, new Route(path == null ? null : path.toArray(new Sector[0]), linkVersion));
+            }
+        }
+
+        return path;
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A reusable set of constraints for routing within a cluster - sectors which a route must not pass through,
+ * and individual (one-way) links which a route must not use. Sectors are identified by sector number,
+ * so a set of constraints is meaningful only for the cluster it was built for.
+ * Checks are constant-time, so a route query under constraints is still O(V+E).
+ * Callers are encouraged to keep an instance and clear() it between uses, rather than build a new one per query.
+ */
+public class RouteConstraints {
+
+    private static final long EMPTY = 0;
+
+    private final BitSet _avoidedSectors = new BitSet();
+
+    // open-addressed hash set of blocked links, each packed as (fromSectorNumber << 32) | toSectorNumber.
+    // Sector numbers start at 1, so a packed link is never zero, and zero marks an empty slot.
+    private long[] _blockedLinks = new long[16];
+    private int _blockedLinkCount = 0;
+
+    public int getBlockedLinkCount() { return _blockedLinkCount; }
+    public boolean hasBlockedLinks() { return _blockedLinkCount > 0; }
+    public boolean isAvoided(final int sectorNumber) { return _avoidedSectors.get(sectorNumber); }
+    public boolean isAvoided(final Sector sector) { return _avoidedSectors.get(sector.getSectorNumber()); }
+
+    public RouteConstraints allowSector(
+        final Sector sector
+    ) {
+        _avoidedSectors.clear(sector.getSectorNumber());
+        return this;
+    }
+
+    public RouteConstraints avoidSector(
+        final int sectorNumber
+    ) {
+        _avoidedSectors.set(sectorNumber);
+        return this;
+    }
+
+    public RouteConstraints avoidSector(
+        final Sector sector
+    ) {
+        return avoidSector(sector.getSectorNumber());
+    }
+
+    /**
+     * Prevents routes from using the one-way link from one sector to another
+     */
+    public RouteConstraints blockLink(
+        final Sector from,
+        final Sector to
+    ) {
+        var key = pack(from.getSectorNumber(), to.getSectorNumber());
+        if (2 * (_blockedLinkCount + 1) > _blockedLinks.length) {
+            var oldLinks = _blockedLinks;
+            _blockedLinks = new long[oldLinks.length * 2];
+            for (var oldKey : oldLinks) {
+                if (oldKey != EMPTY) {
+                    insert(oldKey);
+                }
+            }
+        }
+
+        if (insert(key)) {
+            _blockedLinkCount++;
+        }
+        return this;
+    }
+
+    /**
+     * Removes all constraints, keeping the storage for reuse
+     */
+    public void clear() {
+        _avoidedSectors.clear();
+        clearBlockedLinks();
+    }
+
+    public void clearBlockedLinks() {
+        if (_blockedLinkCount > 0) {
+            Arrays.fill(_blockedLinks, EMPTY);
+            _blockedLinkCount = 0;
+        }
+    }
+
+    public boolean isBlocked(
+        final int fromSectorNumber,
+        final int toSectorNumber
+    ) {
+        if (_blockedLinkCount == 0) {
+            return false;
+        }
+
+        var key = pack(fromSectorNumber, toSectorNumber);
+        var mask = _blockedLinks.length - 1;
+        for (int sx = slot(key, mask); _blockedLinks[sx] != EMPTY; sx = (sx + 1) & mask) {
+            if (_blockedLinks[sx] == key) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Inserts a key into the blocked link table, which must have room for it
+     * @return true if the key was added, false if it was already present
+     */
+    private boolean insert(
+        final long key
+    ) {
+        var mask = _blockedLinks.length - 1;
+        var sx = slot(key, mask);
+        while (_blockedLinks[sx] != EMPTY) {
+            if (_blockedLinks[sx] == key) {
+                return false;
+            }
+            sx = (sx + 1) & mask;
+        }
+        _blockedLinks[sx] = key;
+        return true;
+    }
+
+    private static long pack(
+        final int fromSectorNumber,
+        final int toSectorNumber
+    ) {
+        return ((long) fromSectorNumber << 32) | (toSectorNumber & 0xFFFFFFFFL);
+    }
+
+    private static int slot(
+        final long key,
+        final int mask
+    ) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+}
@@ -5,18 +5,22 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashSet;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
 import java.sql.Connection;
 import java.sql.SQLException;
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
 
 public class Sector {
 
@@ -37,41 +41,40 @@ public class Sector {
             + "  PRIMARY KEY (fromSectorId, toSectorId)"
             + ") WITHOUT ROWID;";
 
-    private static final String INSERT_SECTOR_SQL =
-        "INSERT INTO sectors (sectorId, clusterId, sectorNumber) VALUES (%s, %s, %d);";
+    static final String INSERT_SECTOR_SQL =
+        "INSERT INTO sectors (sectorId, clusterId, sectorNumber) VALUES (?, ?, ?);";
 
-    private static final String INSERT_SECTOR_LINK_SQL =
-        "INSERT INTO sectorLinks (fromSectorId, toSectorId) VALUES (%s, %s);";
+    static final String INSERT_SECTOR_LINK_SQL =
+        "INSERT INTO sectorLinks (fromSectorId, toSectorId) VALUES (?, ?);";
 
-    private static final String UPDATE_SECTOR_SQL =
-        "UPDATE sectors"
-            + "  SET planetId = %s,"
-            + "  SET portId = %s,"
-            + "  WHERE sectorId = %s;";
+    static final String INSERT_OR_IGNORE_SECTOR_LINK_SQL =
+        "INSERT OR IGNORE INTO sectorLinks (fromSectorId, toSectorId) VALUES (?, ?);";
 
     private static final Logger LOGGER = LogManager.getLogger("Sector");
-    private static final Map<SectorId, Sector> _inventory = new HashMap<>();
-    private static long _nextSectorId = 1;
+    private static final LongHashMap<Sector> _inventory = new LongHashMap<>();
+    private static final IdAllocator _sectorIds = new IdAllocator();
+    private static final Ship[] NO_SHIPS = new Ship[0];
 
     private final Cluster _cluster;
-    private final Set<Sector> _links = new HashSet<>();
     private Planet _planet; // only if there is a planet in this sector
     private Port _port;     // only if there is a port in this sector
     private final SectorId _sectorId;
     private final int _sectorNumber;
 
+    // Ships in this sector. The array is replaced rather than modified, so readers need no lock;
+    // replacements are made while holding this sector's monitor.
+    private volatile Ship[] _ships = NO_SHIPS;
+
     private Sector (
         final SectorId sid,
         final int sectorNumber,
         final Cluster cluster,
-        final Set<Sector> links,
         final Planet planet,
         final Port port
     ) {
         _sectorId = sid;
         _sectorNumber = sectorNumber;
         _cluster = cluster;
-        _links.addAll(links);
         _planet = planet;
         _port = port;
     }
@@ -81,65 +84,161 @@ public class Sector {
         final Integer sectorNumber
     ) {
         // cannot put a planet or port into a sector until it exists, so we always set planet and port to null
-        SectorId sid = new SectorId(_nextSectorId++);
-        var s = new Sector(sid, sectorNumber, cluster, Collections.emptySet(), null, null);
-        _inventory.put(sid, s);
+        SectorId sid = new SectorId(_sectorIds.allocate());
+        var s = new Sector(sid, sectorNumber, cluster, null, null);
+        _inventory.put(sid.getValue(), s);
         return s;
     }
 
-    public static Sector getSector(final SectorId sectorId) { return _inventory.get(sectorId); }
+    public static Sector getSector(final SectorId sectorId) { return _inventory.get(sectorId.getValue()); }
+    public static Sector getSector(final long sectorId) { return _inventory.get(sectorId); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
 
     public Cluster getCluster() { return _cluster; }
-    public Collection<Sector> getLinkedSectors() { return new LinkedList<>(_links); }
-    public int getLinkCount() { return _links.size(); }
+    public int getDistanceToHome() { return _cluster.getDistanceToHome(_sectorNumber); }
+    public int getLinkCount() { return _cluster._links.getLinkCount(_sectorNumber); }
+    public int getLinkedSectorNumber(final int index) { return _cluster._links.getLinkTarget(_sectorNumber, index); }
     public Planet getPlanet() { return _planet; }
     public Port getPort() { return _port; }
     public SectorId getSectorId() { return _sectorId; }
     public int getSectorNumber() { return _sectorNumber; }
-    public boolean hasLinkTo(final Sector target) { return _links.contains(target); }
 
-    public void setPlanet(final Planet value) { _planet = value; }
-    public void setPort(final Port value) { _port = value; }
+    /**
+     * Creates a new collection of the sectors to which this sector links.
+     * Traversals which need to avoid the allocation should iterate with getLinkCount() and getLinkedSectorNumber().
+     */
+    public Collection<Sector> getLinkedSectors() {
+        var result = new LinkedList<Sector>();
+        var linkCount = getLinkCount();
+        for (int lx = 0; lx < linkCount; lx++) {
+            result.add(_cluster.getSector(getLinkedSectorNumber(lx)));
+        }
+        return result;
+    }
 
-    public static void createBidirectionalLink(
-        final Sector sector1,
-        final Sector sector2
+    public boolean hasLinkTo(
+        final Sector target
     ) {
-        sector1._links.add(sector2);
-        sector2._links.add(sector1);
+        return (target._cluster == _cluster) && _cluster._links.hasLink(_sectorNumber, target._sectorNumber);
     }
 
-    public void createLinkTo(
-        final Sector target
+    public int getShipCount() { return _ships.length; }
+    public List<Ship> getShips() { return Collections.unmodifiableList(Arrays.asList(_ships)); }
+
+    /**
+     * Creates a new set of the players who own ships in this sector
+     */
+    public Set<Player> getShipOwners() {
+        var result = new HashSet<Player>();
+        for (var ship : _ships) {
+            result.add(ship.getOwner());
+        }
+        return result;
+    }
+
+    /**
+     * Indicates whether any ship in this sector is owned by someone other than the given player
+     */
+    public boolean hasHostileShips(
+        final Player player
     ) {
-        _links.add(target);
+        for (var ship : _ships) {
+            if (ship.getOwner() != player) {
+                return true;
+            }
+        }
+        return false;
     }
 
-    public static void dbCreateBidirectionalLink(
-        final Connection conn,
-        final Sector sector1,
-        final Sector sector2
-    ) throws SQLException {
-        sector1._links.add(sector2);
-        sector2._links.add(sector1);
+    synchronized void addShip(
+        final Ship ship
+    ) {
+        var ships = Arrays.copyOf(_ships, _ships.length + 1);
+        ships[ships.length - 1] = ship;
+        _ships = ships;
+    }
 
-        var sql = String.format(INSERT_SECTOR_LINK_SQL, sector1._sectorId, sector2._sectorId);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+    synchronized void removeShip(
+        final Ship ship
+    ) {
+        var ships = _ships;
+        for (int sx = 0; sx < ships.length; sx++) {
+            if (ships[sx] == ship) {
+                var result = new Ship[ships.length - 1];
+                System.arraycopy(ships, 0, result, 0, sx);
+                System.arraycopy(ships, sx + 1, result, sx, ships.length - sx - 1);
+                _ships = ships.length == 1 ? NO_SHIPS : result;
+                return;
+            }
+        }
+    }
 
-        sql = String.format(INSERT_SECTOR_LINK_SQL, sector2._sectorId, sector1._sectorId);
-        statement.execute(sql);
+    /**
+     * Moves a ship from one sector to another (either of which may be null), holding both sectors' monitors
+     * so that the ship is never seen in both sectors, nor in neither. The monitors are taken in sector id order
+     * to avoid deadlock with a move in the opposite direction.
+     */
+    static void moveShip(
+        final Ship ship,
+        final Sector from,
+        final Sector to
+    ) {
+        if (from == to) {
+            return;
+        } else if (from == null) {
+            to.addShip(ship);
+        } else if (to == null) {
+            from.removeShip(ship);
+        } else {
+            var fromFirst = from._sectorId.getValue() < to._sectorId.getValue();
+            var first = fromFirst ? from : to;
+            var second = fromFirst ? to : from;
+            synchronized (first) {
+                synchronized (second) {
+                    from.removeShip(ship);
+                    to.addShip(ship);
+                }
+            }
+        }
     }
 
-    public void dbCreateLinkTo(
-        final Connection conn,
-        final Sector target
-    ) throws SQLException {
-        _links.add(target);
 
-        var sql = String.format(INSERT_SECTOR_LINK_SQL, _sectorId, target._sectorId);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+    /**
+     * Places a planet in this sector. Where a planet or port is located is recorded on the planet or port
+     * (the sectors table does not refer to them), so it is the planet or port which is marked for update.
+     */
+    public void setPlanet(
+        final Planet value
+    ) {
+        _planet = value;
+        if (value != null) {
+            WriteBehindFlusher.markDirty(value);
+        }
+    }
+
+    public void setPort(
+        final Port value
+    ) {
+        _port = value;
+        if (value != null) {
+            WriteBehindFlusher.markDirty(value);
+        }
+    }
+
+    public static void createBidirectionalLink(
+        final Sector sector1,
+        final Sector sector2
+    ) {
+        sector1.createLinkTo(sector2);
+        sector2.createLinkTo(sector1);
+    }
+
+    public void createLinkTo(
+        final Sector target
+    ) {
+        if (_cluster.addLink(this, target)) {
+            WriteBehindFlusher.markDirty(new LinkRow(_sectorId.getValue(), target._sectorId.getValue()));
+        }
     }
 
     public static void dbCreateTables(
@@ -161,36 +260,86 @@ public class Sector {
         final Connection conn
     ) throws SQLException {
         LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+        dbResolveLinks(dbReadLinkRows(conn));
+    }
+
+    /**
+     * Reads the sectors table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM sectors ORDER BY sectorId;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("sectorId"), rs.getLong("clusterId"), rs.getInt("sectorNumber")));
+            }
+        }
+        return rows;
+    }
 
+    /**
+     * Reads the sectorLinks table into raw rows
+     */
+    public static List<LinkRow> dbReadLinkRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadLinkRows()");
+        var rows = new ArrayList<LinkRow>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM sectorLinks;");
+            while (rs.next()) {
+                rows.add(new LinkRow(rs.getLong("fromSectorId"), rs.getLong("toSectorId")));
+            }
+        }
+        return rows;
+    }
+
+    /**
+     * Creates Sector entities from raw rows, and adds them to their clusters. Clusters MUST be resolved first.
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
         _inventory.clear();
-        var sql = "SELECT * FROM sectors ORDER BY sectorId;";
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery(sql);
-
-        while (rs.next()) {
-            var sid = rs.getLong("sectorId");
-            var sectorId = new Sector.SectorId(sid);
-            var clusterId = new Cluster.ClusterId(rs.getLong("clusterId"));
-            var cluster = Cluster.getCluster(clusterId);
-            var sectorNumber = rs.getInt("sectorNumber");
-            var sector = new Sector(sectorId, sectorNumber, cluster, Collections.emptySet(), null, null);
-            _inventory.put(sectorId, sector);
-            _nextSectorId = sid + 1;
+        _sectorIds.reset();
+        for (var row : rows) {
+            var sectorId = new Sector.SectorId(row.sectorId());
+            var cluster = Cluster.getCluster(row.clusterId());
+            var sector = new Sector(sectorId, row.sectorNumber(), cluster, null, null);
+            _inventory.put(sectorId.getValue(), sector);
+            _sectorIds.advancePast(row.sectorId());
 
             cluster.addSector(sector);
         }
 
-        sql = "SELECT * FROM sectorLinks;";
-        rs = statement.executeQuery(sql);
-        var linkCount = 0;
-        while (rs.next()) {
-            var fromId = new Sector.SectorId(rs.getLong("fromSectorId"));
-            var toId = new Sector.SectorId(rs.getLong("toSectorId"));
-            Sector.getSector(fromId).createLinkTo(Sector.getSector(toId));
-            linkCount++;
+        var msg = String.format("Loaded %d sector(s)...", _inventory.size());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    /**
+     * Creates links from raw rows, then rebuilds the link indexes of every cluster (in parallel, since clusters
+     * are independent of each other). Sectors MUST be resolved first.
+     */
+    public static void dbResolveLinks(
+        final List<LinkRow> rows
+    ) {
+        for (var row : rows) {
+            var from = Sector.getSector(row.fromSectorId());
+            var to = Sector.getSector(row.toSectorId());
+            from.createLinkTo(to);
         }
 
-        var msg = String.format("Loaded %d sector(s) with %d link(s)...", _inventory.size(), linkCount);
+        Cluster.getClusters().parallelStream().forEach(cluster -> {
+            cluster.rebuildLinkIndexes();
+            cluster.buildDefaultLandmarkIndex();
+        });
+
+        var msg = String.format("Loaded %d link(s)...", rows.size());
         System.out.println(msg);
         LOGGER.info(msg);
     }
@@ -198,25 +347,71 @@ public class Sector {
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SECTOR_SQL, _sectorId, _cluster.getClusterId(), _sectorNumber);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        try (var sectorBatch = new BatchStatement(conn, INSERT_SECTOR_SQL, 1);
+             var linkBatch = new BatchStatement(conn, INSERT_SECTOR_LINK_SQL, getLinkCount())) {
+            dbPersist(sectorBatch);
+            dbPersistLinks(linkBatch);
+        }
+    }
+
+    /**
+     * Adds the row for this sector (but not its links) to a batch of INSERT_SECTOR_SQL statements
+     */
+    void dbPersist(
+        final BatchStatement batch
+    ) throws SQLException {
+        var statement = batch.getStatement();
+        statement.setLong(1, _sectorId.getValue());
+        statement.setLong(2, _cluster.getClusterId().getValue());
+        statement.setInt(3, _sectorNumber);
+        batch.addBatch();
+    }
 
-        for (var link : _links) {
-            sql = String.format(INSERT_SECTOR_LINK_SQL, _sectorId, link.getSectorId());
-            statement.execute(sql);
+    /**
+     * Adds the rows for the links from this sector to a batch of INSERT_SECTOR_LINK_SQL statements
+     */
+    void dbPersistLinks(
+        final BatchStatement batch
+    ) throws SQLException {
+        var linkCount = getLinkCount();
+        for (int lx = 0; lx < linkCount; lx++) {
+            dbPersistLink(batch, this, _cluster.getSector(getLinkedSectorNumber(lx)));
         }
     }
 
-    public void dbUpdate(
-        final Connection conn
+    private static void dbPersistLink(
+        final BatchStatement batch,
+        final Sector from,
+        final Sector to
     ) throws SQLException {
-        var sql = String.format(UPDATE_SECTOR_SQL,
-                                _planet == null ? "null" : _planet.getPlanetId(),
-                                _port == null ? "null" : _port.getPortId(),
-                                _sectorId);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        var statement = batch.getStatement();
+        statement.setLong(1, from._sectorId.getValue());
+        statement.setLong(2, to._sectorId.getValue());
+        batch.addBatch();
+    }
+
+    /**
+     * Raw content of one row of the sectors table
+     */
+    public record Row(long sectorId, long clusterId, int sectorNumber) {}
+
+    /**
+     * Raw content of one row of the sectorLinks table.
+     * Also stands for a newly-created link in the write-behind flusher and the journal.
+     */
+    public record LinkRow(long fromSectorId, long toSectorId) {
+
+        /**
+         * Adds this link to a batch of INSERT_OR_IGNORE_SECTOR_LINK_SQL statements
+         */
+        void dbPersist(
+            final BatchStatement batch
+        ) throws SQLException {
+            var statement = batch.getStatement();
+            statement.setLong(1, fromSectorId);
+            statement.setLong(2, toSectorId);
+            batch.addBatch();
+        }
     }
 
     public static class SectorId {
@@ -229,6 +424,8 @@ public class Sector {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
@@ -0,0 +1,160 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.Arrays;
+
+/**
+ * Compressed-sparse-row adjacency store for the links of the sectors in one cluster.
+ * Sectors are identified by their sector number. The links from a given sector occupy a contiguous row
+ * of the targets array, starting at _rowStart[sectorNumber] and running for _rowCount[sectorNumber] entries.
+ * Each row carries a little slack so that links can be patched in place. When a row fills up, it is moved
+ * to the end of the targets array with twice the room, and once the abandoned space outweighs the live
+ * links the whole store is compacted back into ordinary CSR form.
+ */
+final class SectorLinks {
+
+    private static final int MINIMUM_ROW_CAPACITY = 4;
+
+    private int[] _rowStart = new int[1];
+    private int[] _rowCount = new int[1];
+    private int[] _rowCapacity = new int[1];
+    private int[] _targets = new int[64];
+    private int _targetsUsed = 0;
+    private int _targetsWasted = 0;
+    private int _linkCount = 0;
+
+    int getLinkCount() { return _linkCount; }
+    int getLinkCount(final int sectorNumber) { return sectorNumber < _rowCount.length ? _rowCount[sectorNumber] : 0; }
+
+    /**
+     * Retrieves the sector number of the index'th link from the given sector.
+     * index must be between zero and getLinkCount(sectorNumber) - 1.
+     */
+    int getLinkTarget(
+        final int sectorNumber,
+        final int index
+    ) {
+        return _targets[_rowStart[sectorNumber] + index];
+    }
+
+    /**
+     * Adds a sector to the store, with an empty row of links
+     */
+    void addSector(
+        final int sectorNumber
+    ) {
+        ensureSectorCapacity(sectorNumber + 1);
+    }
+
+    /**
+     * Adds a one-way link between two sectors.
+     * @return true if the link was added, false if it already existed
+     */
+    boolean addLink(
+        final int fromSectorNumber,
+        final int toSectorNumber
+    ) {
+        ensureSectorCapacity(Math.max(fromSectorNumber, toSectorNumber) + 1);
+        if (hasLink(fromSectorNumber, toSectorNumber)) {
+            return false;
+        }
+
+        if (_rowCount[fromSectorNumber] == _rowCapacity[fromSectorNumber]) {
+            relocateRow(fromSectorNumber);
+        }
+
+        _targets[_rowStart[fromSectorNumber] + _rowCount[fromSectorNumber]++] = toSectorNumber;
+        _linkCount++;
+        return true;
+    }
+
+    boolean hasLink(
+        final int fromSectorNumber,
+        final int toSectorNumber
+    ) {
+        if (fromSectorNumber >= _rowCount.length) {
+            return false;
+        }
+
+        var start = _rowStart[fromSectorNumber];
+        var end = start + _rowCount[fromSectorNumber];
+        for (int tx = start; tx < end; tx++) {
+            if (_targets[tx] == toSectorNumber) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the targets array so that all rows are contiguous, in sector number order,
+     * each with a small amount of slack.
+     */
+    void compact() {
+        var newSize = 0;
+        for (int sx = 0; sx < _rowCount.length; sx++) {
+            newSize += initialRowCapacity(_rowCount[sx]);
+        }
+
+        var newTargets = new int[Math.max(newSize, 64)];
+        var position = 0;
+        for (int sx = 0; sx < _rowCount.length; sx++) {
+            System.arraycopy(_targets, _rowStart[sx], newTargets, position, _rowCount[sx]);
+            _rowStart[sx] = position;
+            _rowCapacity[sx] = _rowCount[sx] == 0 ? 0 : initialRowCapacity(_rowCount[sx]);
+            position += _rowCapacity[sx];
+        }
+
+        _targets = newTargets;
+        _targetsUsed = position;
+        _targetsWasted = 0;
+    }
+
+    private void ensureSectorCapacity(
+        final int size
+    ) {
+        if (size > _rowStart.length) {
+            var newSize = Math.max(size, _rowStart.length * 2);
+            _rowStart = Arrays.copyOf(_rowStart, newSize);
+            _rowCount = Arrays.copyOf(_rowCount, newSize);
+            _rowCapacity = Arrays.copyOf(_rowCapacity, newSize);
+        }
+    }
+
+    private static int initialRowCapacity(
+        final int count
+    ) {
+        return count == 0 ? 0 : Math.max(MINIMUM_ROW_CAPACITY, count + count / 2);
+    }
+
+    /**
+     * Moves a full row to the end of the targets array, giving it room to grow.
+     * Compacts the store instead, if enough space has been abandoned by earlier moves.
+     */
+    private void relocateRow(
+        final int sectorNumber
+    ) {
+        var count = _rowCount[sectorNumber];
+        var newCapacity = Math.max(MINIMUM_ROW_CAPACITY, count * 2);
+        if (_targetsWasted > _linkCount) {
+            compact();
+            if (_rowCapacity[sectorNumber] > count) {
+                return;
+            }
+        }
+
+        if (_targetsUsed + newCapacity > _targets.length) {
+            _targets = Arrays.copyOf(_targets, Math.max(_targets.length * 2, _targetsUsed + newCapacity));
+        }
+
+        System.arraycopy(_targets, _rowStart[sectorNumber], _targets, _targetsUsed, count);
+        _targetsWasted += _rowCapacity[sectorNumber];
+        _rowStart[sectorNumber] = _targetsUsed;
+        _rowCapacity[sectorNumber] = newCapacity;
+        _targetsUsed += newCapacity;
+    }
+}
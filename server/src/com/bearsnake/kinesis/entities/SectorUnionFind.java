@@ -0,0 +1,71 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+/**
+ * Disjoint-set structure over the sector numbers of a cluster, used to track which sectors are
+ * connected to each other while a cluster is being generated.
+ * Uses union by size and path halving, so any sequence of operations runs in near-linear time,
+ * and nothing here recurses.
+ */
+final class SectorUnionFind {
+
+    private final int[] _parent;
+    private final int[] _size;
+
+    SectorUnionFind(
+        final int sectorCount
+    ) {
+        _parent = new int[sectorCount];
+        _size = new int[sectorCount];
+        for (int sx = 0; sx < sectorCount; sx++) {
+            _parent[sx] = sx;
+            _size[sx] = 1;
+        }
+    }
+
+    /**
+     * Finds the representative sector number for the set containing the given sector number
+     */
+    int find(
+        final int sectorNumber
+    ) {
+        var sx = sectorNumber;
+        while (_parent[sx] != sx) {
+            _parent[sx] = _parent[_parent[sx]];
+            sx = _parent[sx];
+        }
+        return sx;
+    }
+
+    int getSetSize(final int sectorNumber) { return _size[find(sectorNumber)]; }
+    boolean isConnected(final int sectorNumber1, final int sectorNumber2) { return find(sectorNumber1) == find(sectorNumber2); }
+
+    /**
+     * Merges the sets containing the two given sector numbers.
+     * @return true if they were in different sets, false if they were already connected
+     */
+    boolean union(
+        final int sectorNumber1,
+        final int sectorNumber2
+    ) {
+        var root1 = find(sectorNumber1);
+        var root2 = find(sectorNumber2);
+        if (root1 == root2) {
+            return false;
+        }
+
+        if (_size[root1] < _size[root2]) {
+            var temp = root1;
+            root1 = root2;
+            root2 = temp;
+        }
+
+        _parent[root2] = root1;
+        _size[root1] += _size[root2];
+        return true;
+    }
+}
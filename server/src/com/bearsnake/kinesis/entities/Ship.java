@@ -5,11 +5,17 @@
 
 package com.bearsnake.kinesis.entities;
 
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.util.IdAllocator;
+import com.bearsnake.kinesis.util.LongHashMap;
 import java.sql.Connection;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Collection;
+import java.util.List;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 
@@ -33,15 +39,15 @@ public abstract class Ship {
     }
 
     private static final Logger LOGGER = LogManager.getLogger("Ship");
-    private static final Map<ShipId, Ship> _inventory = new HashMap<>();
-    private static int _nextShipIdentifier = 1;
+    private static final LongHashMap<Ship> _inventory = new LongHashMap<>();
+    private static final IdAllocator _shipIds = new IdAllocator();
 
     private static final String CREATE_TABLE_SQL = "CREATE TABLE ships ("
         + "  shipId integer PRIMARY KEY,"
         + "  shipType text NOT NULL,"
         + "  shipName text NOT NULL,"
-        + "  ownerId integer NOT NULL,"
-        + "  locationId integer NOT NULL,"
+        + "  ownerId integer,"
+        + "  locationId integer,"
         + "  fuel real NOT NULL,"
         + "  shields real NOT NULL,"
         + "  cargoHolds integer NOT NULL,"
@@ -51,13 +57,20 @@ public abstract class Ship {
 
     private static final String INSERT_SQL =
         "INSERT INTO ships (shipId, shipType, shipName, ownerId, locationId, fuel, shields, cargoHolds)"
-            + " VALUES (%s, \"%s\", \"%s\", %s, %s, %f, %f, %d);";
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?);";
+
+    static final String UPSERT_SQL =
+        "INSERT INTO ships (shipId, shipType, shipName, ownerId, locationId, fuel, shields, cargoHolds)"
+            + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)"
+            + " ON CONFLICT(shipId) DO UPDATE SET shipName = excluded.shipName, ownerId = excluded.ownerId,"
+            + " locationId = excluded.locationId, fuel = excluded.fuel, shields = excluded.shields,"
+            + " cargoHolds = excluded.cargoHolds;";
 
     private final ShipId _shipId;
     private String _shipName;
     private final ShipType _shipType;
-    private Player _owner;
-    private Sector _location;
+    private volatile Player _owner;
+    private volatile Sector _location;
     private float _fuel;
     private float _shields;
     private int _cargoHolds;
@@ -82,12 +95,34 @@ public abstract class Ship {
         _cargoHolds = cargoHolds;
     }
 
-    public static ShipId getNextShipId() {
-        synchronized (Ship.class) {
-            var result = new ShipId(_nextShipIdentifier);
-            _nextShipIdentifier++;
-            return result;
+    /**
+     * Adds a newly built ship to the inventory, to its owner's assets, and to the sector it is in.
+     * Invoked by the factories and by dbResolve once the ship is fully constructed, so that no other thread
+     * can see it half built.
+     */
+    protected static <T extends Ship> T register(
+        final T ship
+    ) {
+        _inventory.put(ship.getShipId().getValue(), ship);
+        Player.transferAsset(ship, null, ship.getOwner());
+        var location = ship.getLocation();
+        if (location != null) {
+            location.addShip(ship);
         }
+        return ship;
+    }
+
+    /**
+     * The ship's name. Probes, drones and fighters derive theirs from the id and format it on first use only, as it
+     * appears in every sector report. They cache it in a plain field: a thread which races the first use formats
+     * its own, equal, copy, and a String is safely published even through a data race.
+     */
+    public String getShipName() {
+        return _shipName;
+    }
+
+    public static ShipId getNextShipId() {
+        return new ShipId(_shipIds.allocate());
     }
 
     public int getCargoHoldCount() { return _cargoHolds; }
@@ -95,16 +130,42 @@ public abstract class Ship {
     public Sector getLocation() { return _location; }
     public Player getOwner() { return _owner; }
     public float getShieldsLevel() { return _shields; }
-    public static Ship getShip(final ShipId sid) { return _inventory.get(sid); }
+    public static Ship getShip(final ShipId sid) { return _inventory.get(sid.getValue()); }
+    public static Ship getShip(final long shipId) { return _inventory.get(shipId); }
+    public static Collection<Ship> getShips() { return _inventory.values(); }
+    public static LongHashMap.Footprint getInventoryFootprint() { return _inventory.getFootprint(); }
     public ShipId getShipId() { return _shipId; }
-    public String getShipName() { return _shipName; }
     public ShipType getShipType() { return _shipType; }
-    public void setCargoHoldCount(final int value) { _cargoHolds = value; }
-    public void setFuelAmount(final float value) { _fuel = value; }
-    public void setLocation(final Sector value) { _location = value; }
-    public void setOwner(final Player value) { _owner = value; }
-    public void setShieldsLevel(final float value) { _shields = value; }
-    public void setShipName(final String value) { _shipName = value; }
+    public void setCargoHoldCount(final int value) { _cargoHolds = value; WriteBehindFlusher.markDirty(this); }
+    public void setFuelAmount(final float value) { _fuel = value; WriteBehindFlusher.markDirty(this); }
+    public void setShieldsLevel(final float value) { _shields = value; WriteBehindFlusher.markDirty(this); }
+    public void setShipName(final String value) { _shipName = value; WriteBehindFlusher.markDirty(this); }
+
+    /**
+     * Changes the ship's owner, keeping the players' record of the ships they own up to date
+     */
+    public void setOwner(
+        final Player value
+    ) {
+        synchronized (this) {
+            Player.transferAsset(this, _owner, value);
+            _owner = value;
+        }
+        WriteBehindFlusher.markDirty(this);
+    }
+
+    /**
+     * Moves the ship, keeping the sectors' record of the ships in them up to date
+     */
+    public void setLocation(
+        final Sector value
+    ) {
+        synchronized (this) {
+            Sector.moveShip(this, _location, value);
+            _location = value;
+        }
+        WriteBehindFlusher.markDirty(this);
+    }
 
     public static void dbCreateTable(
         final Connection conn
@@ -121,51 +182,130 @@ public abstract class Ship {
         final Connection conn
     ) throws SQLException {
         LOGGER.trace("dbLoad()");
+        dbResolve(dbReadRows(conn));
+    }
 
-        _inventory.clear();
-        var statement = conn.createStatement();
-        var rs = statement.executeQuery("SELECT * FROM ships ORDER BY shipId;");
-
-        while (rs.next()) {
-            var ident = rs.getInt("shipId");
-            var shipId = new ShipId(ident);
-            var shipType = rs.getString("shipType");
-            var shipName = rs.getString("shipName");
-            var owner = Player.getPlayer(new Player.PlayerId(rs.getLong("ownerId")));
-            var location = Sector.getSector(new Sector.SectorId(rs.getLong("locationId")));
-            var fuel = rs.getFloat("fuel");
-            var shields = rs.getFloat("shields");
-            var cargoHolds = rs.getInt("cargoHolds");
-
-            switch (ShipType.getShipType(shipType)) {
-                case CRUISER -> new CruiserShip(shipId, shipName, owner, location, fuel, shields, cargoHolds);
-                case DRONE -> new DroneShip(shipId, owner, location, fuel, shields);
-                case FIGHTER -> new FighterShip(shipId, owner, location, fuel, shields);
-                case PROBE -> new ProbeShip(shipId, owner, location, fuel);
+    /**
+     * Reads the ships table into raw rows, without creating any entities
+     */
+    public static List<Row> dbReadRows(
+        final Connection conn
+    ) throws SQLException {
+        LOGGER.trace("dbReadRows()");
+        var rows = new ArrayList<Row>();
+        try (var statement = conn.createStatement()) {
+            var rs = statement.executeQuery("SELECT * FROM ships ORDER BY shipId;");
+            while (rs.next()) {
+                rows.add(new Row(rs.getLong("shipId"),
+                                 rs.getString("shipType"),
+                                 rs.getString("shipName"),
+                                 rs.getLong("ownerId"),
+                                 rs.getLong("locationId"),
+                                 rs.getFloat("fuel"),
+                                 rs.getFloat("shields"),
+                                 rs.getInt("cargoHolds")));
             }
         }
+        return rows;
+    }
+
+    /**
+     * Creates Ship entities from raw rows. Players and Sectors MUST be resolved first.
+     */
+    public static void dbResolve(
+        final List<Row> rows
+    ) {
+        _inventory.clear();
+        _shipIds.reset();
+        for (var row : rows) {
+            restore(row);
+        }
 
         var msg = String.format("Loaded %d ship(s)...", _inventory.size());
         System.out.println(msg);
         LOGGER.info(msg);
     }
 
+    /**
+     * Creates and registers a Ship entity from a raw row, as it was persisted (or journaled).
+     * An ownerId or locationId of zero stands for none.
+     */
+    static Ship restore(
+        final Row row
+    ) {
+        var shipId = new ShipId(row.shipId());
+        var owner = Player.getPlayer(row.ownerId());
+        var location = Sector.getSector(row.locationId());
+        var fuel = row.fuel();
+        var shields = row.shields();
+
+        var ship = register(switch (ShipType.getShipType(row.shipType())) {
+            case CRUISER -> new CruiserShip(shipId, row.shipName(), owner, location, fuel, shields, row.cargoHolds());
+            case DRONE -> new DroneShip(shipId, owner, location, fuel, shields);
+            case FIGHTER -> new FighterShip(shipId, owner, location, fuel, shields);
+            case PROBE -> new ProbeShip(shipId, owner, location, fuel);
+        });
+        _shipIds.advancePast(row.shipId());
+        return ship;
+    }
+
     public void dbPersist(
         final Connection conn
     ) throws SQLException {
-        var sql = String.format(INSERT_SQL,
-                                _shipId,
-                                _shipType._code,
-                                _shipName,
-                                _owner.getPlayerId(),
-                                _location.getSectorId(),
-                                _fuel,
-                                _shields,
-                                _cargoHolds);
-        var statement = conn.createStatement();
-        statement.execute(sql);
+        try (var statement = conn.prepareStatement(INSERT_SQL)) {
+            bindRow(statement);
+            statement.execute();
+        }
     }
 
+    /**
+     * Adds the row for this ship - inserted if the ship is new, otherwise updated - to a batch of UPSERT_SQL statements
+     */
+    void dbUpsert(
+        final BatchStatement batch
+    ) throws SQLException {
+        bindRow(batch.getStatement());
+        batch.addBatch();
+    }
+
+    /**
+     * Binds the columns of INSERT_SQL (or UPSERT_SQL), with NULL for a missing owner or location
+     */
+    private void bindRow(
+        final PreparedStatement statement
+    ) throws SQLException {
+        var owner = _owner;
+        var location = _location;
+        statement.setLong(1, _shipId.getValue());
+        statement.setString(2, _shipType._code);
+        statement.setString(3, getShipName());
+        if (owner != null) {
+            statement.setLong(4, owner.getPlayerId().getValue());
+        } else {
+            statement.setNull(4, Types.INTEGER);
+        }
+        if (location != null) {
+            statement.setLong(5, location.getSectorId().getValue());
+        } else {
+            statement.setNull(5, Types.INTEGER);
+        }
+        statement.setFloat(6, _fuel);
+        statement.setFloat(7, _shields);
+        statement.setInt(8, _cargoHolds);
+    }
+
+    /**
+     * Raw content of one row of the ships table
+     */
+    public record Row(long shipId,
+                      String shipType,
+                      String shipName,
+                      long ownerId,
+                      long locationId,
+                      float fuel,
+                      float shields,
+                      int cargoHolds) {}
+
     public static class ShipId {
 
         private final long _value;
@@ -176,6 +316,8 @@ public abstract class Ship {
             _value = id;
         }
 
+        public long getValue() { return _value; }
+
         @Override
         public boolean equals(
             final Object obj
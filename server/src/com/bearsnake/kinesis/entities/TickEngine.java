@@ -0,0 +1,370 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Advances game time in fixed-rate ticks.
+ * Each tick has two phases. In the update phase, every registered task is run for every cluster, with the clusters
+ * spread across a fork-join pool - clusters are independent, so they are updated in parallel, and the tasks for any one
+ * cluster run in the order in which they were registered. In the completion phase, each task's complete() is run on
+ * the tick thread, cluster by cluster in order of cluster id; anything which crosses clusters, or must happen in the
+ * same order every time, belongs there. So a tick always finishes in the same order, however the update phase was
+ * scheduled.
+ * A tick which takes longer than the tick period is an overrun. The next tick starts at once, but if a whole period
+ * or more has been lost, the missed ticks are skipped rather than run back to back. Tick durations are kept in a
+ * histogram, which is logged periodically and reported when the engine is closed - a universe whose ticks
+ * regularly approach the period has outgrown the machine.
+ */
+public class TickEngine implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger("TickEngine");
+    public static final int DEFAULT_TICKS_PER_SECOND = 10;
+    private static final long REPORT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(5);
+
+    /**
+     * Work done in each tick
+     */
+    public interface TickTask {
+
+        /**
+         * Updates one cluster. Runs in parallel with the updates of other clusters, so must touch nothing
+         * which belongs to any other cluster.
+         */
+        void update(
+            final Cluster cluster,
+            final long tickNumber
+        );
+
+        /**
+         * Finishes the tick for one cluster, after every cluster has been updated.
+         * Runs on the tick thread, for each cluster in turn in order of cluster id.
+         */
+        default void complete(
+            final Cluster cluster,
+            final long tickNumber
+        ) {}
+    }
+
+    private final int _ticksPerSecond;
+    private final long _periodNanos;
+    private final List<TickTask> _tasks = new CopyOnWriteArrayList<>();
+    private final ForkJoinPool _pool;
+    private final TickHistogram _histogram = new TickHistogram();
+    private volatile Thread _thread;    // created by start()
+    private volatile boolean _terminate = false;
+    private volatile long _tickNumber = 0;
+    private volatile long _overrunCount = 0;
+    private volatile long _skippedCount = 0;
+    private volatile long _busyNanos = 0;
+    private long _startNanos;
+
+    // the clusters, in order of id - rebuilt when clusters are added
+    private Cluster[] _clusters = new Cluster[0];
+
+    public TickEngine(
+        final int ticksPerSecond
+    ) {
+        this(ticksPerSecond, Runtime.getRuntime().availableProcessors());
+    }
+
+    public TickEngine(
+        final int ticksPerSecond,
+        final int parallelism
+    ) {
+        _ticksPerSecond = ticksPerSecond;
+        _periodNanos = TimeUnit.SECONDS.toNanos(1) / ticksPerSecond;
+        var threadNumber = new AtomicLong();
+        _pool = new ForkJoinPool(parallelism, pool -> {
+            var thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+            thread.setName("tick-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }, null, false);
+    }
+
+    public TickHistogram getHistogram() { return _histogram; }
+    public long getOverrunCount() { return _overrunCount; }
+    public long getPeriodNanos() { return _periodNanos; }
+    public long getSkippedCount() { return _skippedCount; }
+    public long getTickNumber() { return _tickNumber; }
+    public int getTicksPerSecond() { return _ticksPerSecond; }
+
+    /**
+     * Adds a task, to be run from the next tick on. Tasks run in the order in which they were added.
+     */
+    public void addTask(
+        final TickTask task
+    ) {
+        _tasks.add(task);
+    }
+
+    public void start() {
+        _startNanos = System.nanoTime();
+        _thread = new Thread(this::run, "TickEngine");
+        _thread.start();
+
+        var msg = String.format("Tick engine running at %d tick(s) per second on %d thread(s)",
+                                _ticksPerSecond,
+                                _pool.getParallelism());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    private void run() {
+        var nextTickNanos = System.nanoTime();
+        var nextReportNanos = nextTickNanos + REPORT_INTERVAL_NANOS;
+        while (!_terminate) {
+            var waitNanos = nextTickNanos - System.nanoTime();
+            if (waitNanos > 0) {
+                LockSupport.parkNanos(waitNanos);
+                continue;
+            }
+
+            var startNanos = System.nanoTime();
+            tick(_tickNumber + 1);
+            var endNanos = System.nanoTime();
+            var elapsed = endNanos - startNanos;
+            _histogram.record(elapsed);
+            _busyNanos += elapsed;
+            _tickNumber++;
+
+            nextTickNanos += _periodNanos;
+            if (elapsed > _periodNanos) {
+                _overrunCount++;
+                if (LOGGER.isDebugEnabled()) {
+                    LOGGER.debug("Tick {} overran:{} usec", _tickNumber, elapsed / 1000);
+                }
+            }
+            if (endNanos - nextTickNanos >= _periodNanos) {
+                var missed = (endNanos - nextTickNanos) / _periodNanos;
+                _skippedCount += missed;
+                nextTickNanos += missed * _periodNanos;
+            }
+
+            if (endNanos >= nextReportNanos) {
+                LOGGER.info(getSummary());
+                nextReportNanos = endNanos + REPORT_INTERVAL_NANOS;
+            }
+        }
+    }
+
+    /**
+     * Runs one tick: the update phase on the pool, then the completion phase here
+     */
+    void tick(
+        final long tickNumber
+    ) {
+        var clusters = getClusters();
+        var tasks = _tasks.toArray(new TickTask[0]);
+        if ((clusters.length == 0) || (tasks.length == 0)) {
+            return;
+        }
+
+        _pool.invoke(new UpdateAction(clusters, 0, clusters.length, tasks, tickNumber));
+
+        for (var cluster : clusters) {
+            for (var task : tasks) {
+                try {
+                    task.complete(cluster, tickNumber);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Tick {} completion failed for cluster {}", tickNumber, cluster.getClusterName(), ex);
+                }
+            }
+        }
+    }
+
+    private Cluster[] getClusters() {
+        var clusters = _clusters;
+        var inventory = Cluster.getClusters();
+        if (inventory.size() != clusters.length) {
+            var list = new ArrayList<>(inventory);
+            list.sort(Comparator.comparingLong(c -> c.getClusterId().getValue()));
+            clusters = list.toArray(new Cluster[0]);
+            _clusters = clusters;
+        }
+        return clusters;
+    }
+
+    /**
+     * Updates a range of clusters, splitting it until each piece is a single cluster
+     */
+    private static class UpdateAction extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final Cluster[] _clusters;
+        private final int _from;
+        private final int _to;
+        private final TickTask[] _tasks;
+        private final long _tickNumber;
+
+        UpdateAction(
+            final Cluster[] clusters,
+            final int from,
+            final int to,
+            final TickTask[] tasks,
+            final long tickNumber
+        ) {
+            _clusters = clusters;
+            _from = from;
+            _to = to;
+            _tasks = tasks;
+            _tickNumber = tickNumber;
+        }
+
+        @Override
+        protected void compute() {
+            if (_to - _from > 1) {
+                var middle = (_from + _to) >>> 1;
+                invokeAll(new UpdateAction(_clusters, _from, middle, _tasks, _tickNumber),
+                          new UpdateAction(_clusters, middle, _to, _tasks, _tickNumber));
+                return;
+            }
+
+            var cluster = _clusters[_from];
+            for (var task : _tasks) {
+                try {
+                    task.update(cluster, _tickNumber);
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Tick {} update failed for cluster {}", _tickNumber, cluster.getClusterName(), ex);
+                }
+            }
+        }
+    }
+
+    /**
+     * Ticks run, overruns, how busy the tick thread has been, and the distribution of tick durations
+     */
+    public String getSummary() {
+        var elapsed = System.nanoTime() - _startNanos;
+        return String.format("Ticks: %d run, %d overrun, %d skipped, %.1f%% busy, period %d usec, %s",
+                             _tickNumber,
+                             _overrunCount,
+                             _skippedCount,
+                             (elapsed == 0) ? 0.0 : 100.0 * _busyNanos / elapsed,
+                             _periodNanos / 1000,
+                             _histogram.getSummary());
+    }
+
+    /**
+     * Stops the engine once the tick in progress (if any) has finished, and reports
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        _terminate = true;
+        var thread = _thread;
+        if (thread != null) {
+            LockSupport.unpark(thread);
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        _pool.shutdown();
+
+        var msg = getSummary();
+        System.out.println(msg);
+        LOGGER.info(msg);
+        var histogram = _histogram.format();
+        System.out.print(histogram);
+        LOGGER.info("Tick durations:\n{}", histogram);
+    }
+
+    /**
+     * Histogram of tick durations, in power-of-two buckets of microseconds: bucket n counts durations
+     * of less than 2^n usec (and at least 2^(n-1) usec). Recorded by the tick thread; may be read from any thread.
+     */
+    public static class TickHistogram {
+
+        private static final int BUCKET_COUNT = 32;
+
+        private final AtomicLongArray _counts = new AtomicLongArray(BUCKET_COUNT);
+        private volatile long _maxNanos = 0;
+
+        void record(
+            final long nanos
+        ) {
+            var micros = nanos / 1000;
+            var bucket = Math.min(BUCKET_COUNT - 1, 64 - Long.numberOfLeadingZeros(micros));
+            _counts.incrementAndGet(bucket);
+            if (nanos > _maxNanos) {
+                _maxNanos = nanos;
+            }
+        }
+
+        public long[] getCounts() {
+            var counts = new long[BUCKET_COUNT];
+            for (int bx = 0; bx < BUCKET_COUNT; bx++) {
+                counts[bx] = _counts.get(bx);
+            }
+            return counts;
+        }
+
+        public long getMaxNanos() { return _maxNanos; }
+
+        /**
+         * An upper bound, in microseconds, for the given fraction of tick durations
+         */
+        public long getPercentileMicros(
+            final double fraction
+        ) {
+            var counts = getCounts();
+            var total = Arrays.stream(counts).sum();
+            if (total == 0) {
+                return 0;
+            }
+
+            var target = (long) Math.ceil(fraction * total);
+            var seen = 0L;
+            for (int bx = 0; bx < BUCKET_COUNT; bx++) {
+                seen += counts[bx];
+                if (seen >= target) {
+                    return 1L << bx;
+                }
+            }
+            return 1L << (BUCKET_COUNT - 1);
+        }
+
+        public String getSummary() {
+            return String.format("p50 < %d usec, p99 < %d usec, max %d usec",
+                                 getPercentileMicros(0.50),
+                                 getPercentileMicros(0.99),
+                                 _maxNanos / 1000);
+        }
+
+        /**
+         * One line per non-empty bucket, with a bar scaled to the largest bucket
+         */
+        public String format() {
+            var counts = getCounts();
+            var largest = Arrays.stream(counts).max().orElse(0);
+            var sb = new StringBuilder();
+            for (int bx = 0; bx < BUCKET_COUNT; bx++) {
+                if (counts[bx] > 0) {
+                    var bar = (int) Math.max(1, 50 * counts[bx] / largest);
+                    sb.append(String.format("  < %8d usec %10d %s\n", 1L << bx, counts[bx], "#".repeat(bar)));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import com.bearsnake.kinesis.BatchStatement;
+import com.bearsnake.kinesis.DatabaseWrapper;
+import com.bearsnake.kinesis.exceptions.DatabaseException;
+import java.lang.invoke.VarHandle;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Write-behind persistence for entities changed during play.
+ * Setters on Ship, Port, and Planet (and Sector, for the planet or port placed there) mark the entity dirty,
+ * as does a change of a Player's game name, the creation of any of them during play, or of a link between sectors.
+ * Rows are written as upserts, so an entity created during play is inserted by the same flush which would
+ * otherwise update it. A cluster's PortEconomy is marked dirty as a whole, now and then, and written as a batch
+ * of rows for all its ports.
+ * A dirty entity is held just once no matter how often it changes, and the flusher periodically writes
+ * the current state of every dirty entity in a single transaction - so a ship which moves fifty times
+ * between flushes costs one UPDATE.
+ * The number of dirty entities (including those being written) is bounded; once the bound is reached,
+ * setters block until a flush makes room. Reaching half the bound wakes the flusher early.
+ * Until a flusher is started, changes are not tracked - this is the case while the universe is being
+ * created or loaded, when everything is written (or already is) in the database.
+ * If the flusher has a journal, every change is also appended to the journal, and each flush is a checkpoint:
+ * once it has been committed, the journal segments written before it began are deleted.
+ */
+public class WriteBehindFlusher implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger("WriteBehindFlusher");
+    public static final long DEFAULT_INTERVAL_MSECS = 1000;
+    public static final int DEFAULT_CAPACITY = 10000;
+
+    private static volatile WriteBehindFlusher _instance = null;
+
+    private final DatabaseWrapper _databaseWrapper;
+    private final Journal _journal;
+    private final long _intervalMsecs;
+    private final int _wakeThreshold;
+    private final Set<Object> _dirty = ConcurrentHashMap.newKeySet();
+    private final Semaphore _permits;
+    private final Semaphore _wakeup = new Semaphore(0);
+    private final Thread _thread;
+    private volatile boolean _terminate = false;
+
+    private final LongAdder _changeCount = new LongAdder();
+    private final LongAdder _rowCount = new LongAdder();
+    private final LongAdder _flushCount = new LongAdder();
+
+    private WriteBehindFlusher(
+        final DatabaseWrapper databaseWrapper,
+        final Journal journal,
+        final long intervalMsecs,
+        final int capacity
+    ) {
+        _databaseWrapper = databaseWrapper;
+        _journal = journal;
+        _intervalMsecs = intervalMsecs;
+        _permits = new Semaphore(Math.max(1, capacity));
+        _wakeThreshold = Math.max(1, capacity / 2);
+        _thread = new Thread(this::run, "WriteBehindFlusher");
+        _thread.setDaemon(true);
+    }
+
+    public long getChangeCount() { return _changeCount.sum(); }
+    public long getFlushCount() { return _flushCount.sum(); }
+    public int getPendingCount() { return _dirty.size(); }
+    public long getRowCount() { return _rowCount.sum(); }
+
+    /**
+     * Starts tracking and writing changes. There can be only one flusher at a time.
+     * @param journal journal to which changes are appended, or null to run without one
+     */
+    public static synchronized WriteBehindFlusher start(
+        final DatabaseWrapper databaseWrapper,
+        final Journal journal,
+        final long intervalMsecs,
+        final int capacity
+    ) {
+        if (_instance != null) {
+            throw new RuntimeException("Write-behind flusher is already running");
+        }
+
+        var flusher = new WriteBehindFlusher(databaseWrapper, journal, intervalMsecs, capacity);
+        flusher._thread.start();
+        _instance = flusher;
+        return flusher;
+    }
+
+    /**
+     * Notes that the given entity (a Player, Ship, Port, Planet, PortEconomy, or new Sector.LinkRow) has changed,
+     * if a flusher is running.
+     * Blocks if the flusher has reached its capacity.
+     */
+    static void markDirty(
+        final Object entity
+    ) {
+        var flusher = _instance;
+        if (flusher != null) {
+            flusher.add(entity);
+        }
+    }
+
+    private void add(
+        final Object entity
+    ) {
+        _changeCount.increment();
+
+        // The flusher takes an entity out of the dirty set and then reads its state; we have changed its state
+        // and now look for it in the dirty set. The fence ensures that either we see that the entity is gone
+        // (and put it back), or the flusher sees our change.
+        VarHandle.fullFence();
+        if (!_dirty.contains(entity)) {
+            _permits.acquireUninterruptibly();
+            if (!_dirty.add(entity)) {
+                _permits.release();
+            } else if ((_dirty.size() >= _wakeThreshold) && (_wakeup.availablePermits() == 0)) {
+                _wakeup.release();
+            }
+        }
+
+        // Journal only after the entity is in the dirty set, so that a change journaled in a segment
+        // is always included in the flush which truncates that segment.
+        if (_journal != null) {
+            _journal.append(entity);
+        }
+    }
+
+    private void run() {
+        while (!_terminate) {
+            try {
+                _wakeup.tryAcquire(_intervalMsecs, TimeUnit.MILLISECONDS);
+                _wakeup.drainPermits();
+            } catch (InterruptedException ex) {
+                // we are being closed - fall through to flush
+            }
+            flush();
+        }
+    }
+
+    /**
+     * Writes everything which is currently dirty, in one transaction.
+     * Each entity is taken out of the dirty set before its state is read, so a change made while the flush
+     * is in progress marks the entity dirty again, and it is written on the next flush.
+     * If the write fails, the entities are put back to be tried again.
+     */
+    public synchronized void flush() {
+        var segment = (_journal == null) ? 0 : _journal.roll();
+        List<Object> entities = new ArrayList<>(_dirty.size());
+        for (var iter = _dirty.iterator(); iter.hasNext(); ) {
+            entities.add(iter.next());
+            iter.remove();
+        }
+
+        if (entities.isEmpty()) {
+            if (_journal != null) {
+                _journal.truncate(segment);
+            }
+            return;
+        }
+
+        try {
+            var batchSize = _databaseWrapper.getBatchSize();
+            _databaseWrapper.write(conn -> {
+                dbWrite(conn, batchSize, entities);
+                return null;
+            });
+            if (_journal != null) {
+                _journal.truncate(segment);
+            }
+
+            _rowCount.add(entities.size());
+            _flushCount.increment();
+            _permits.release(entities.size());
+            LOGGER.debug("Flushed {} row(s)", entities.size());
+        } catch (DatabaseException ex) {
+            LOGGER.error("Flush of {} row(s) failed, will retry:{}", entities.size(), ex.getMessage());
+            for (var entity : entities) {
+                if (!_dirty.add(entity)) {
+                    _permits.release();
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the current state of the given entities - Players, Ships, Ports, and Planets are inserted or updated,
+     * Sector.LinkRows inserted if they are not already there, and PortEconomies written in full.
+     */
+    static void dbWrite(
+        final Connection conn,
+        final int batchSize,
+        final Collection<Object> entities
+    ) throws SQLException {
+        try (var players = new BatchStatement(conn, Player.UPSERT_SQL, batchSize);
+             var ships = new BatchStatement(conn, Ship.UPSERT_SQL, batchSize);
+             var ports = new BatchStatement(conn, Port.UPSERT_SQL, batchSize);
+             var planets = new BatchStatement(conn, Planet.UPSERT_SQL, batchSize);
+             var links = new BatchStatement(conn, Sector.INSERT_OR_IGNORE_SECTOR_LINK_SQL, batchSize);
+             var resources = new BatchStatement(conn, PortEconomy.WRITE_SQL, batchSize)) {
+            for (var entity : entities) {
+                if (entity instanceof Player player) {
+                    player.dbUpsert(players);
+                } else if (entity instanceof Ship ship) {
+                    ship.dbUpsert(ships);
+                } else if (entity instanceof Port port) {
+                    port.dbUpsert(ports);
+                } else if (entity instanceof Planet planet) {
+                    planet.dbUpsert(planets);
+                } else if (entity instanceof Sector.LinkRow link) {
+                    link.dbPersist(links);
+                } else if (entity instanceof PortEconomy economy) {
+                    economy.dbPersist(resources);
+                }
+            }
+        }
+    }
+
+    /**
+     * Stops tracking changes, and writes everything still dirty
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        synchronized (WriteBehindFlusher.class) {
+            if (_instance == this) {
+                _instance = null;
+            }
+        }
+
+        _terminate = true;
+        _thread.interrupt();
+        try {
+            _thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        flush();
+
+        var msg = String.format("Write-behind: %d change(s) written as %d row update(s) in %d flush(es)",
+                                getChangeCount(),
+                                getRowCount(),
+                                getFlushCount());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+}
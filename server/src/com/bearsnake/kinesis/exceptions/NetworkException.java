@@ -0,0 +1,15 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.exceptions;
+
+public class NetworkException extends KinesisException {
+
+    public NetworkException(
+        final String msg
+    ) {
+        super(msg);
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.exceptions.NetworkException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Network front end which gives each session a thread of its own, doing plain blocking channel I/O.
+ * In VIRTUAL mode each session runs on a new virtual thread; in PLATFORM mode sessions run on a pool of
+ * platform threads, which grows to one thread per connected session and reuses threads as sessions end.
+ * Virtual threads are looked up by reflection, so the server still builds and runs on a JDK without them,
+ * in which case VIRTUAL mode falls back to PLATFORM mode.
+ */
+public class BlockingServer implements NetworkServer {
+
+    private static final Logger LOGGER = LogManager.getLogger("BlockingServer");
+    public static final int ACCEPT_BACKLOG = 1024;
+    private static final long SHUTDOWN_WAIT_MSECS = 5000;
+
+    public enum ThreadingMode {
+        PLATFORM,
+        VIRTUAL,
+    }
+
+    private final int _port;
+    private final CommandHandler _handler;
+    private final ThreadingMode _requestedMode;
+    private final Set<BlockingSession> _sessions = ConcurrentHashMap.newKeySet();
+    private final BufferPool _bufferPool = new BufferPool();
+    private ThreadingMode _mode;
+    private ThreadFactory _virtualThreadFactory = null;
+    private ExecutorService _platformPool = null;
+    private ServerSocketChannel _serverChannel;
+    private Thread _acceptThread;
+    private volatile boolean _terminate = false;
+
+    private final LongAdder _acceptedCount = new LongAdder();
+    private final LongAdder _bytesRead = new LongAdder();
+    private final LongAdder _bytesWritten = new LongAdder();
+
+    public BlockingServer(
+        final int port,
+        final CommandHandler handler,
+        final ThreadingMode mode
+    ) {
+        _port = port;
+        _handler = handler;
+        _requestedMode = mode;
+    }
+
+    public long getAcceptedCount() { return _acceptedCount.sum(); }
+    public long getBytesRead() { return _bytesRead.sum(); }
+    public long getBytesWritten() { return _bytesWritten.sum(); }
+    BufferPool getBufferPool() { return _bufferPool; }
+
+    /**
+     * The mode actually in use - PLATFORM, if VIRTUAL was requested but is not available
+     */
+    public ThreadingMode getMode() { return _mode; }
+
+    @Override
+    public int getSessionCount() { return _sessions.size(); }
+
+    void countBytesRead(final int count) { _bytesRead.add(count); }
+    void countBytesWritten(final int count) { _bytesWritten.add(count); }
+    void sessionClosed(final BlockingSession session) { _sessions.remove(session); }
+
+    /**
+     * Obtains a factory for virtual threads, by reflection
+     * @return the factory, or null if this JDK does not have virtual threads (or has them only as a preview
+     * feature, and that is not enabled)
+     */
+    static ThreadFactory getVirtualThreadFactory(
+        final String namePrefix
+    ) {
+        try {
+            var builderClass = Class.forName("java.lang.Thread$Builder");
+            var builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, namePrefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException | UnsupportedOperationException ex) {
+            return null;
+        }
+    }
+
+    @Override
+    public void start() throws NetworkException {
+        _mode = _requestedMode;
+        if (_mode == ThreadingMode.VIRTUAL) {
+            _virtualThreadFactory = getVirtualThreadFactory("session-");
+            if (_virtualThreadFactory == null) {
+                var msg = "Virtual threads are not available in this JDK - using platform threads";
+                System.out.println(msg);
+                LOGGER.warn(msg);
+                _mode = ThreadingMode.PLATFORM;
+            }
+        }
+
+        if (_mode == ThreadingMode.PLATFORM) {
+            var threadNumber = new AtomicLong();
+            _platformPool = Executors.newCachedThreadPool(r -> {
+                var thread = new Thread(r, "session-" + threadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        try {
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            _serverChannel.bind(new InetSocketAddress(_port), ACCEPT_BACKLOG);
+        } catch (IOException ex) {
+            throw new NetworkException(String.format("Cannot listen on port %d:%s", _port, ex.getMessage()));
+        }
+
+        _acceptThread = new Thread(this::acceptLoop, "BlockingServer");
+        _acceptThread.start();
+
+        var msg = String.format("Listening on port %d with %s threads", _port, _mode.name().toLowerCase(Locale.ROOT));
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    private void acceptLoop() {
+        while (!_terminate) {
+            SocketChannel channel;
+            try {
+                channel = _serverChannel.accept();
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException ex) {
+                if (!_terminate) {
+                    LOGGER.warn("Accept failed:{}", ex.getMessage());
+                }
+                continue;
+            }
+
+            var session = new BlockingSession(this, channel, _handler);
+            _acceptedCount.increment();
+            _sessions.add(session);
+            LOGGER.debug("Accepted {}", session);
+            if (_mode == ThreadingMode.VIRTUAL) {
+                _virtualThreadFactory.newThread(session).start();
+            } else {
+                _platformPool.execute(session);
+            }
+        }
+    }
+
+    /**
+     * Stops accepting connections, ends every session, and waits (briefly) for the session threads to finish
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        if (_acceptThread == null) {
+            return;
+        }
+
+        _terminate = true;
+        try {
+            _serverChannel.close();
+            _acceptThread.join();
+        } catch (IOException ex) {
+            LOGGER.error("Close failed:{}", ex.getMessage());
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        for (var session : new ArrayList<>(_sessions)) {
+            session.terminate();
+        }
+
+        var deadline = System.currentTimeMillis() + SHUTDOWN_WAIT_MSECS;
+        while (!_sessions.isEmpty() && (System.currentTimeMillis() < deadline)) {
+            try {
+                Thread.sleep(10);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+        if (_platformPool != null) {
+            _platformPool.shutdown();
+        }
+
+        var msg = String.format("Network: %d connection(s) accepted, %d byte(s) read, %d byte(s) written, %d output buffer(s) allocated",
+                                getAcceptedCount(),
+                                getBytesRead(),
+                                getBytesWritten(),
+                                _bufferPool.getAllocatedCount());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+}
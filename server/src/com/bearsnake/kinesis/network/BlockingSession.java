@@ -0,0 +1,185 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A session served by a thread of its own, with blocking channel I/O.
+ * Each command passes through the same stages in turn: read and decode a command, run it
+ * (which may hand CPU-heavy work to the CpuExecutor and wait for it), then write the whole response.
+ * The next command is not read until the response to the last has been written, so the work done for
+ * one command never overlaps the next, and nothing a command starts outlives it.
+ */
+class BlockingSession extends Session implements Runnable {
+
+    private static final Logger LOGGER = LogManager.getLogger("BlockingSession");
+    static final int READ_BUFFER_SIZE = 512;
+
+    private final BlockingServer _server;
+    private final SocketChannel _channel;
+    private final CommandHandler _handler;
+    private final String _remoteAddress;
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private volatile Thread _thread;
+    private volatile boolean _closeRequested = false;
+
+    BlockingSession(
+        final BlockingServer server,
+        final SocketChannel channel,
+        final CommandHandler handler
+    ) {
+        super(server.getBufferPool());
+        _server = server;
+        _channel = channel;
+        _handler = handler;
+        _remoteAddress = remoteAddressOf(channel);
+        _readBuffer.flip();
+    }
+
+    @Override
+    public String getRemoteAddress() { return _remoteAddress; }
+
+    /**
+     * The session's own thread writes output when the current command is finished;
+     * if some other thread is sending, the output is written at once.
+     */
+    @Override
+    protected void flushOutput() {
+        if (Thread.currentThread() != _thread) {
+            flush();
+        }
+    }
+
+    @Override
+    protected boolean isClosing() {
+        return _closeRequested;
+    }
+
+    /**
+     * Asks the session to end once the current command is finished.
+     * If some other thread is closing the session, it is ended at once.
+     */
+    @Override
+    public void close() {
+        _closeRequested = true;
+        if (Thread.currentThread() != _thread) {
+            flush();
+            closeChannel();
+        }
+    }
+
+    /**
+     * Discards any output and ends the session at once. Invoked when the server is shutting down.
+     */
+    void terminate() {
+        _closeRequested = true;
+        closeChannel();
+        var thread = _thread;
+        if (thread != null) {
+            thread.interrupt();
+        }
+    }
+
+    @Override
+    public void run() {
+        _thread = Thread.currentThread();
+        try {
+            _handler.onConnect(this);
+            flush();
+            while (!_closeRequested) {
+                var command = nextCommand(_readBuffer);
+                if (command == null) {
+                    if (!fill()) {
+                        break;
+                    }
+                } else {
+                    _handler.onLine(this, command);
+                    flush();
+                }
+            }
+        } catch (IOException ex) {
+            LOGGER.debug("{} failed:{}", this, ex.getMessage());
+        } finally {
+            flush();
+            _closeRequested = true;
+            closeChannel();
+            _outputLock.lock();
+            try {
+                _output.clear();
+            } finally {
+                _outputLock.unlock();
+            }
+            _server.sessionClosed(this);
+            _handler.onDisconnect(this);
+        }
+    }
+
+    /**
+     * Reads more input, blocking until some arrives
+     * @return false if the client has gone
+     */
+    private boolean fill() throws IOException {
+        _readBuffer.compact();
+        if (!_readBuffer.hasRemaining()) {
+            _readBuffer.flip();
+            discardLongCommand(_readBuffer);
+            flush();
+            return true;
+        }
+
+        var count = _channel.read(_readBuffer);
+        _readBuffer.flip();
+        if (count < 0) {
+            return false;
+        }
+
+        _server.countBytesRead(count);
+        return true;
+    }
+
+    /**
+     * Writes whatever output is queued
+     */
+    private void flush() {
+        _outputLock.lock();
+        try {
+            if (_output.isEmpty() || !_channel.isOpen()) {
+                return;
+            }
+
+            _server.countBytesWritten(_output.writeTo(_channel));
+        } catch (IOException ex) {
+            LOGGER.debug("{} write failed:{}", this, ex.getMessage());
+            _output.clear();
+            _closeRequested = true;
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    private void closeChannel() {
+        try {
+            _channel.close();
+        } catch (IOException ex) {
+            LOGGER.debug("{} close failed:{}", this, ex.getMessage());
+        }
+    }
+
+    private static String remoteAddressOf(
+        final SocketChannel channel
+    ) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+}
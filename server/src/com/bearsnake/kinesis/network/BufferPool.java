@@ -0,0 +1,77 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Pool of direct byte buffers, all of one size.
+ * Direct buffers are expensive to allocate and are freed only by the garbage collector, so rather than
+ * each session holding output buffers of its own, output is encoded into buffers taken from here and
+ * the buffers are given back as soon as they have been written to the network.
+ * Up to maxPooled buffers are kept for reuse; beyond that, released buffers are left to the garbage collector.
+ */
+public class BufferPool {
+
+    public static final int DEFAULT_BUFFER_SIZE = 4096;
+    public static final int DEFAULT_MAX_POOLED = 4096;
+
+    private final int _bufferSize;
+    private final int _maxPooled;
+    private final ConcurrentLinkedQueue<ByteBuffer> _free = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger _freeCount = new AtomicInteger();
+    private final LongAdder _allocatedCount = new LongAdder();
+    private final LongAdder _acquiredCount = new LongAdder();
+
+    public BufferPool() {
+        this(DEFAULT_BUFFER_SIZE, DEFAULT_MAX_POOLED);
+    }
+
+    public BufferPool(
+        final int bufferSize,
+        final int maxPooled
+    ) {
+        _bufferSize = bufferSize;
+        _maxPooled = maxPooled;
+    }
+
+    public long getAcquiredCount() { return _acquiredCount.sum(); }
+    public long getAllocatedCount() { return _allocatedCount.sum(); }
+    public int getBufferSize() { return _bufferSize; }
+    public int getFreeCount() { return _freeCount.get(); }
+
+    /**
+     * Takes a buffer from the pool (allocating one, if there are none free), cleared and ready to be filled
+     */
+    public ByteBuffer acquire() {
+        _acquiredCount.increment();
+        var buffer = _free.poll();
+        if (buffer != null) {
+            _freeCount.decrementAndGet();
+            return buffer;
+        }
+
+        _allocatedCount.increment();
+        return ByteBuffer.allocateDirect(_bufferSize);
+    }
+
+    /**
+     * Gives a buffer back. The caller must not use it again.
+     */
+    public void release(
+        final ByteBuffer buffer
+    ) {
+        if (_freeCount.incrementAndGet() <= _maxPooled) {
+            buffer.clear();
+            _free.add(buffer);
+        } else {
+            _freeCount.decrementAndGet();
+        }
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+/**
+ * Destination for encoded output. Multi-byte values are big-endian.
+ */
+public interface ByteSink {
+
+    void put(
+        final int b
+    );
+
+    default void putShort(
+        final int value
+    ) {
+        put(value >>> 8);
+        put(value);
+    }
+
+    default void putInt(
+        final int value
+    ) {
+        put(value >>> 24);
+        put(value >>> 16);
+        put(value >>> 8);
+        put(value);
+    }
+
+    /**
+     * Writes the characters as single bytes, with anything outside US-ASCII written as '?'
+     */
+    default void putAscii(
+        final CharSequence text
+    ) {
+        for (int cx = 0; cx < text.length(); cx++) {
+            var ch = text.charAt(cx);
+            put((ch < 0x80) ? ch : '?');
+        }
+    }
+
+    /**
+     * Writes a non-negative integer as decimal digits, without going through a String
+     */
+    default void putDecimal(
+        final int value
+    ) {
+        if (value >= 10) {
+            putDecimal(value / 10);
+        }
+        put('0' + (value % 10));
+    }
+}
@@ -0,0 +1,316 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.DatabaseWrapper;
+import com.bearsnake.kinesis.UniverseSnapshot;
+import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.ProbeShip;
+import com.bearsnake.kinesis.entities.Sector;
+import com.bearsnake.kinesis.entities.Ship;
+import com.bearsnake.kinesis.exceptions.KinesisException;
+import com.bearsnake.komando.ArgumentSwitch;
+import com.bearsnake.komando.CommandLineHandler;
+import com.bearsnake.komando.Switch;
+import com.bearsnake.komando.exceptions.KomandoException;
+import com.bearsnake.komando.restrictions.RangeRestriction;
+import com.bearsnake.komando.values.FixedPointValue;
+import com.bearsnake.komando.values.StringValue;
+import com.bearsnake.komando.values.ValueType;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
+
+/**
+ * Measures the cost of encoding sector reports. Loads a universe, puts a few ships in each of a sample
+ * of sectors, and encodes reports on those sectors into pooled buffers three ways - by building a String
+ * as the server used to, by writing text straight into the buffers, and in the binary protocol -
+ * reporting time, size, and heap allocation per report. The universe is not saved.
+ */
+public class CodecBenchmark {
+
+    private static final CommandLineHandler _commandLineHandler;
+    private static final Switch _databaseFileSwitch;
+    private static final Switch _reportCountSwitch;
+    private static final Switch _shipCountSwitch;
+
+    private static final int DEFAULT_REPORT_COUNT = 1_000_000;
+    private static final int DEFAULT_SHIP_COUNT = 4;
+    private static final int SAMPLE_SECTOR_COUNT = 1000;
+
+    private interface Codec {
+        void encode(
+            final OutputQueue queue,
+            final Sector sector,
+            final List<Ship> ships
+        );
+    }
+
+    static {
+        try {
+            var reportRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(100_000_000L));
+            var shipRestriction = new RangeRestriction(new FixedPointValue(0L), new FixedPointValue(100L));
+
+            _databaseFileSwitch = new ArgumentSwitch.Builder().setShortName("db")
+                                                              .setLongName("database")
+                                                              .setValueType(ValueType.STRING)
+                                                              .setValueName("fileName")
+                                                              .setIsRequired(true)
+                                                              .addDescription("Path and filename of the kinesis database")
+                                                              .build();
+            _reportCountSwitch = new ArgumentSwitch.Builder().setShortName("n")
+                                                             .setLongName("reports")
+                                                             .setValueType(ValueType.FIXED_POINT)
+                                                             .setValueName("count")
+                                                             .setRestriction(reportRestriction)
+                                                             .addDescription("Number of reports encoded by each codec")
+                                                             .build();
+            _shipCountSwitch = new ArgumentSwitch.Builder().setShortName("sh")
+                                                           .setLongName("ships")
+                                                           .setValueType(ValueType.FIXED_POINT)
+                                                           .setValueName("count")
+                                                           .setRestriction(shipRestriction)
+                                                           .addDescription("Number of ships put in each sampled sector")
+                                                           .build();
+
+            _commandLineHandler = new CommandLineHandler();
+            _commandLineHandler.addCanonicalHelpSwitch()
+                               .addCanonicalVersionSwitch()
+                               .addSwitch(_databaseFileSwitch)
+                               .addSwitch(_reportCountSwitch)
+                               .addSwitch(_shipCountSwitch);
+        } catch (KomandoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(
+        final String[] args
+    ) {
+        System.out.println("Kinesis Codec Benchmark");
+        var result = _commandLineHandler.processCommandLine(args);
+
+        for (var msg : result._messages) {
+            System.err.println(msg);
+        }
+
+        if (result.hasWarnings() || result.hasErrors()) {
+            System.exit(-1);
+        }
+
+        if (result.isHelpRequested()) {
+            _commandLineHandler.displayUsage("codecbenchmark");
+        } else if (result.isVersionRequested()) {
+            System.out.printf("Version %s\n", KINESIS_VERSION);
+        } else {
+            var specs = result._switchSpecifications;
+            var dbPath = ((StringValue) specs.get(_databaseFileSwitch).get(0)).getValue();
+            var reports = specs.containsKey(_reportCountSwitch)
+                ? ((FixedPointValue) specs.get(_reportCountSwitch).get(0)).getValue()
+                : DEFAULT_REPORT_COUNT;
+            var ships = specs.containsKey(_shipCountSwitch)
+                ? ((FixedPointValue) specs.get(_shipCountSwitch).get(0)).getValue()
+                : DEFAULT_SHIP_COUNT;
+
+            try {
+                run(dbPath, (int) reports, (int) ships);
+            } catch (KinesisException ex) {
+                System.err.println("ERROR:" + ex);
+            }
+        }
+    }
+
+    private static void run(
+        final String dbPath,
+        final int reportCount,
+        final int shipCount
+    ) throws KinesisException {
+        try (var databaseWrapper = new DatabaseWrapper(dbPath)) {
+            if (!new UniverseSnapshot(dbPath).load()) {
+                databaseWrapper.loadFromDatabase();
+            }
+        }
+
+        var sectors = getSampleSectors(shipCount);
+        if (sectors.length == 0) {
+            System.err.println("ERROR:The universe has no sectors");
+            return;
+        }
+        verify(sectors);
+
+        var pool = new BufferPool();
+        var lines = new ArrayList<String>();
+        lines.add(measure("string", sectors, reportCount, pool, CodecBenchmark::writeStringText));
+        lines.add(measure("text", sectors, reportCount, pool, WireProtocol::writeSectorText));
+        lines.add(measure("binary", sectors, reportCount, pool, WireProtocol::writeSectorReport));
+
+        System.out.printf("\n%d report(s) on %d sector(s) with %d ship(s) each\n", reportCount, sectors.length, shipCount);
+        System.out.println("codec      nsec/report  bytes/report  allocated bytes/report");
+        lines.forEach(System.out::println);
+    }
+
+    /**
+     * Takes sectors spread evenly through the universe, and puts ships in each
+     */
+    private static Sector[] getSampleSectors(
+        final int shipCount
+    ) {
+        var all = new ArrayList<Sector>();
+        var clusters = new ArrayList<>(Cluster.getClusters());
+        clusters.sort(Comparator.comparingLong(c -> c.getClusterId().getValue()));
+        for (var cluster : clusters) {
+            for (int sn = 1; sn <= cluster.getHighestSectorNumber(); sn++) {
+                var sector = cluster.getSector(sn);
+                if (sector != null) {
+                    all.add(sector);
+                }
+            }
+        }
+
+        var step = Math.max(1, all.size() / SAMPLE_SECTOR_COUNT);
+        var sample = new ArrayList<Sector>();
+        for (int sx = 0; (sx < all.size()) && (sample.size() < SAMPLE_SECTOR_COUNT); sx += step) {
+            sample.add(all.get(sx));
+        }
+
+        var owner = Player.getPlayers().stream()
+                          .min(Comparator.comparingLong(p -> p.getPlayerId().getValue()))
+                          .orElse(null);
+        if (owner != null) {
+            for (var sector : sample) {
+                for (int sx = sector.getShipCount(); sx < shipCount; sx++) {
+                    ProbeShip.createShip(owner, sector, 0.0f);
+                }
+            }
+        }
+        return sample.toArray(new Sector[0]);
+    }
+
+    /**
+     * Decodes a binary report on each sector, and checks it against the sector
+     */
+    private static void verify(
+        final Sector[] sectors
+    ) {
+        var pool = new BufferPool();
+        var queue = new OutputQueue(pool);
+        var buffer = ByteBuffer.allocate(WireProtocol.MAX_FRAME_LENGTH + 2);
+        for (var sector : sectors) {
+            var ships = sector.getShips();
+            WireProtocol.writeSectorReport(queue, sector, ships);
+            buffer.clear();
+            queue.drainTo(buffer);
+            buffer.flip();
+
+            var length = buffer.getShort() & 0xFFFF;
+            var type = buffer.get();
+            var report = WireProtocol.decodeSectorReport(buffer);
+            var warps = new int[sector.getLinkCount()];
+            for (int lx = 0; lx < warps.length; lx++) {
+                warps[lx] = sector.getLinkedSectorNumber(lx);
+            }
+            if ((length != buffer.limit() - 2)
+                || (type != WireProtocol.SECTOR_REPORT)
+                || buffer.hasRemaining()
+                || (report.clusterId() != sector.getCluster().getClusterId().getValue())
+                || (report.sectorNumber() != sector.getSectorNumber())
+                || !Arrays.equals(report.warps(), warps)
+                || (report.shipCount() != ships.size())
+                || (report.ships().size() != ships.size())
+                || (!ships.isEmpty()
+                    && !report.ships().get(ships.size() - 1).shipName().equals(ships.get(ships.size() - 1).getShipName()))) {
+                throw new IllegalStateException("Sector report did not survive a round trip: " + sector);
+            }
+        }
+        System.out.printf("Verified binary reports on %d sector(s)\n", sectors.length);
+    }
+
+    private static String measure(
+        final String name,
+        final Sector[] sectors,
+        final int reportCount,
+        final BufferPool pool,
+        final Codec codec
+    ) {
+        var queue = new OutputQueue(pool);
+        var bytes = 0L;
+        for (int rx = 0; rx < reportCount / 10; rx++) {
+            var sector = sectors[rx % sectors.length];
+            codec.encode(queue, sector, sector.getShips());
+            queue.clear();
+        }
+
+        var allocatedBefore = getAllocatedBytes();
+        var startNanos = System.nanoTime();
+        for (int rx = 0; rx < reportCount; rx++) {
+            var sector = sectors[rx % sectors.length];
+            codec.encode(queue, sector, sector.getShips());
+            bytes += queue.size();
+            queue.clear();
+        }
+        var elapsedNanos = System.nanoTime() - startNanos;
+        var allocated = getAllocatedBytes() - allocatedBefore;
+
+        return String.format("%-9s %12.1f %13.1f %23s",
+                             name,
+                             (double) elapsedNanos / reportCount,
+                             (double) bytes / reportCount,
+                             (allocatedBefore < 0) ? "n/a" : String.format("%.1f", (double) allocated / reportCount));
+    }
+
+    /**
+     * Heap allocated so far by this thread, or -1 if the JVM cannot tell us
+     */
+    private static long getAllocatedBytes() {
+        if (ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean bean) {
+            return bean.getCurrentThreadAllocatedBytes();
+        }
+        return -1;
+    }
+
+    /**
+     * Describes a sector by building the text as a String, then encoding that - as the server used to
+     */
+    private static void writeStringText(
+        final OutputQueue queue,
+        final Sector sector,
+        final List<Ship> ships
+    ) {
+        var sb = new StringBuilder();
+        sb.append("Sector ").append(sector.getSectorNumber())
+          .append(" in ").append(sector.getCluster().getClusterName()).append("\n");
+
+        sb.append("Warps to:");
+        var linkCount = sector.getLinkCount();
+        for (int lx = 0; lx < linkCount; lx++) {
+            sb.append(" ").append(sector.getLinkedSectorNumber(lx));
+        }
+        sb.append("\n");
+
+        var port = sector.getPort();
+        if (port != null) {
+            sb.append("Port: ").append(port.getPortName()).append("\n");
+        }
+
+        var planet = sector.getPlanet();
+        if (planet != null) {
+            sb.append("Planet: ").append(planet.getPlanetName()).append("\n");
+        }
+
+        for (var ship : ships) {
+            sb.append("Ship: ").append(ship.getShipName())
+              .append(" (").append(ship.getOwner().getGameName()).append(")\n");
+        }
+
+        WireProtocol.writeTelnetText(queue, sb.toString());
+    }
+}
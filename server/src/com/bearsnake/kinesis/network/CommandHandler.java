@@ -0,0 +1,25 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+/**
+ * Acts upon what clients send. A handler is shared by all sessions.
+ */
+public interface CommandHandler {
+
+    void onConnect(
+        final Session session
+    );
+
+    void onLine(
+        final Session session,
+        final String line
+    );
+
+    void onDisconnect(
+        final Session session
+    );
+}
@@ -0,0 +1,124 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Runs CPU-heavy work, such as pathfinding, on a fixed number of platform threads.
+ * However many sessions there are, no more than one task per processor runs at once, and no more than
+ * the queue capacity wait; a caller beyond that blocks until there is room. A session thread which waits
+ * on a task is cheap if it is a virtual thread. The NioServer instead hands whole commands over, without waiting.
+ */
+public class CpuExecutor implements AutoCloseable {
+
+    private static final Logger LOGGER = LogManager.getLogger("CpuExecutor");
+    public static final int DEFAULT_QUEUE_CAPACITY = 256;
+
+    private final ExecutorService _executor;
+    private final Semaphore _permits;
+    private final int _threadCount;
+    private final LongAdder _completedCount = new LongAdder();
+
+    public CpuExecutor() {
+        this(Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY);
+    }
+
+    public CpuExecutor(
+        final int threadCount,
+        final int queueCapacity
+    ) {
+        var threadNumber = new AtomicInteger();
+        _threadCount = threadCount;
+        _permits = new Semaphore(threadCount + queueCapacity);
+        _executor = Executors.newFixedThreadPool(threadCount, r -> {
+            var thread = new Thread(r, "cpu-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    public long getCompletedCount() { return _completedCount.sum(); }
+    public int getThreadCount() { return _threadCount; }
+
+    /**
+     * Runs the task and waits for its result. If the waiting thread is interrupted, the task is cancelled.
+     * An exception thrown by the task is rethrown - wrapped in a RuntimeException if it is checked.
+     */
+    public <T> T call(
+        final Callable<T> task
+    ) throws InterruptedException {
+        _permits.acquire();
+        var future = new FutureTask<>(task) {
+            @Override
+            protected void done() {
+                _permits.release();
+                _completedCount.increment();
+            }
+        };
+
+        try {
+            _executor.execute(future);
+        } catch (RuntimeException ex) {
+            _permits.release();
+            throw ex;
+        }
+
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            future.cancel(true);
+            throw ex;
+        } catch (ExecutionException ex) {
+            if (ex.getCause() instanceof RuntimeException rex) {
+                throw rex;
+            } else if (ex.getCause() instanceof Error err) {
+                throw err;
+            }
+            throw new RuntimeException(ex.getCause());
+        }
+    }
+
+    /**
+     * Runs the task without waiting for it, blocking only while the queue is full.
+     * An exception thrown by the task is logged.
+     */
+    public void execute(
+        final Runnable task
+    ) {
+        _permits.acquireUninterruptibly();
+        try {
+            _executor.execute(() -> {
+                try {
+                    task.run();
+                } catch (RuntimeException ex) {
+                    LOGGER.error("Task failed", ex);
+                } finally {
+                    _permits.release();
+                    _completedCount.increment();
+                }
+            });
+        } catch (RuntimeException ex) {
+            _permits.release();
+            throw ex;
+        }
+    }
+
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        _executor.shutdownNow();
+    }
+}
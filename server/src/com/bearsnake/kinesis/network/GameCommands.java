@@ -0,0 +1,258 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.Sector;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
+
+/**
+ * The commands a player can type. Every response ends with a prompt, which tells a client that the server
+ * is ready for the next command. Sector descriptions - the most common response by far - are encoded by the
+ * session straight into its output, in whichever protocol the client has chosen.
+ */
+public class GameCommands implements CommandHandler {
+
+    private static final Logger LOGGER = LogManager.getLogger("GameCommands");
+
+    private static final String HELP_TEXT =
+        "Commands:\n"
+            + "  binary                      switch to the binary protocol\n"
+            + "  help                        show this list\n"
+            + "  login <username> <password> identify yourself\n"
+            + "  look                        describe the current sector\n"
+            + "  move <sector>               move to an adjacent sector\n"
+            + "  plot <sector>               show the shortest route to a sector\n"
+            + "  quit                        disconnect\n"
+            + "  text                        switch to the text protocol\n";
+
+    private final CpuExecutor _cpuExecutor;
+
+    /**
+     * Creates a handler which runs every command on the thread which passes it in
+     */
+    public GameCommands() {
+        this(null);
+    }
+
+    /**
+     * Creates a handler which runs CPU-heavy work on the given executor
+     */
+    public GameCommands(
+        final CpuExecutor cpuExecutor
+    ) {
+        _cpuExecutor = cpuExecutor;
+    }
+
+    @Override
+    public void onConnect(
+        final Session session
+    ) {
+        session.send("Welcome to Kinesis " + KINESIS_VERSION + "\n");
+        session.sendPrompt();
+    }
+
+    @Override
+    public void onDisconnect(
+        final Session session
+    ) {
+        LOGGER.debug("{} disconnected", session);
+    }
+
+    @Override
+    public void onLine(
+        final Session session,
+        final String line
+    ) {
+        var tokens = line.trim().split("\\s+");
+        var command = tokens[0].toLowerCase(Locale.ROOT);
+        switch (command) {
+            case "" -> {}
+            case "binary" -> {
+                session.send("Binary protocol selected\n");
+                session.setProtocol(Session.Protocol.BINARY);
+            }
+            case "help" -> session.send(HELP_TEXT);
+            case "login" -> login(session, tokens);
+            case "look" -> look(session);
+            case "move" -> move(session, tokens);
+            case "plot" -> plot(session, tokens);
+            case "quit" -> {
+                session.send("Goodbye\n");
+                session.close();
+                return;
+            }
+            case "text" -> {
+                session.setProtocol(Session.Protocol.TEXT);
+                session.send("Text protocol selected\n");
+            }
+            default -> session.send("Unknown command - try help\n");
+        }
+
+        session.sendPrompt();
+    }
+
+    private void login(
+        final Session session,
+        final String[] tokens
+    ) {
+        if (tokens.length != 3) {
+            session.send("Usage: login <username> <password>\n");
+            return;
+        }
+
+        var player = Player.getPlayerByUserName(tokens[1]);
+        if ((player == null) || !player.getPassword().equals(tokens[2])) {
+            session.send("Login failed\n");
+            return;
+        }
+
+        session.setPlayer(player);
+        var ship = player.getOwnedShips().stream()
+                         .min(Comparator.comparingLong(s -> s.getShipId().getValue()))
+                         .orElse(null);
+        session.setShip(ship);
+        if (ship == null) {
+            session.setLocation(getStartingSector());
+        }
+
+        session.send("Welcome, " + player.getGameName() + "\n");
+        session.sendSectorReport(session.getLocation());
+    }
+
+    private void look(
+        final Session session
+    ) {
+        if (checkLoggedIn(session)) {
+            session.sendSectorReport(session.getLocation());
+        }
+    }
+
+    private void move(
+        final Session session,
+        final String[] tokens
+    ) {
+        if (!checkLoggedIn(session)) {
+            return;
+        }
+
+        var location = session.getLocation();
+        var target = getTargetSector(session, location, tokens, "move");
+        if (target == null) {
+            return;
+        }
+
+        if (!location.hasLinkTo(target)) {
+            session.send(String.format("There is no warp from sector %d to sector %d\n",
+                                       location.getSectorNumber(),
+                                       target.getSectorNumber()));
+            return;
+        }
+
+        var ship = session.getShip();
+        if (ship != null) {
+            ship.setLocation(target);
+        } else {
+            session.setLocation(target);
+        }
+        session.sendSectorReport(target);
+    }
+
+    private void plot(
+        final Session session,
+        final String[] tokens
+    ) {
+        if (!checkLoggedIn(session)) {
+            return;
+        }
+
+        var location = session.getLocation();
+        var target = getTargetSector(session, location, tokens, "plot");
+        if (target == null) {
+            return;
+        }
+
+        List<Sector> path;
+        try {
+            path = (_cpuExecutor == null)
+                ? Cluster.getShortestPath(location, target)
+                : _cpuExecutor.call(() -> Cluster.getShortestPath(location, target));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            session.send("Interrupted\n");
+            return;
+        }
+
+        if (path == null) {
+            session.send(String.format("There is no route to sector %d\n", target.getSectorNumber()));
+            return;
+        }
+
+        var sb = new StringBuilder();
+        sb.append("Route:");
+        sb.append(" ").append(location.getSectorNumber());
+        for (var sector : path) {
+            sb.append(" > ").append(sector.getSectorNumber());
+        }
+        sb.append("\n");
+        session.send(sb);
+    }
+
+    private static boolean checkLoggedIn(
+        final Session session
+    ) {
+        if (!session.isLoggedIn()) {
+            session.send("You must log in first\n");
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Interprets the command argument as a sector number in the current cluster
+     * @return the sector, or null (having told the client why) if there is no such sector
+     */
+    private static Sector getTargetSector(
+        final Session session,
+        final Sector location,
+        final String[] tokens,
+        final String command
+    ) {
+        if (tokens.length != 2) {
+            session.send("Usage: " + command + " <sector>\n");
+            return null;
+        }
+
+        Sector target = null;
+        try {
+            target = location.getCluster().getSector(Integer.parseInt(tokens[1]));
+        } catch (NumberFormatException ex) {
+            // fall through
+        }
+
+        if (target == null) {
+            session.send("There is no sector " + tokens[1] + " in this cluster\n");
+        }
+        return target;
+    }
+
+    /**
+     * Where a player with no ship starts - sector 1 of the oldest cluster
+     */
+    private static Sector getStartingSector() {
+        return Cluster.getClusters().stream()
+                      .min(Comparator.comparingLong(c -> c.getClusterId().getValue()))
+                      .map(c -> c.getSector(1))
+                      .orElse(null);
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Takes lines of text, as sent by a telnet client, out of a byte buffer.
+ * Lines end with LF (a preceding CR is dropped). Telnet commands and option negotiation (IAC sequences)
+ * are discarded, as are other control characters; bytes outside US-ASCII are replaced with '?'.
+ */
+public class LineDecoder {
+
+    private static final int IAC = 0xFF;
+    private static final int SB = 0xFA;
+    private static final int SE = 0xF0;
+    private static final int WILL = 0xFB;
+    private static final int DONT = 0xFE;
+
+    private LineDecoder() {}
+
+    /**
+     * Takes the next complete line from a buffer which is in read mode, leaving the position after its LF.
+     * @return the line, or null (with the position unchanged) if the buffer does not hold a complete line
+     */
+    public static String nextLine(
+        final ByteBuffer buffer
+    ) {
+        var start = buffer.position();
+        var limit = buffer.limit();
+        var end = -1;
+        for (int bx = start; bx < limit; bx++) {
+            if (buffer.get(bx) == '\n') {
+                end = bx;
+                break;
+            }
+        }
+        if (end < 0) {
+            return null;
+        }
+
+        var chars = new char[end - start];
+        var length = 0;
+        var bx = start;
+        while (bx < end) {
+            var b = buffer.get(bx++) & 0xFF;
+            if (b == IAC) {
+                bx = skipTelnetCommand(buffer, bx, end);
+            } else if (b >= 0x80) {
+                chars[length++] = '?';
+            } else if (b >= 0x20) {
+                chars[length++] = (char) b;
+            } else if (b == '\t') {
+                chars[length++] = ' ';
+            }
+        }
+
+        buffer.position(end + 1);
+        return new String(chars, 0, length);
+    }
+
+    /**
+     * Finds the end of the telnet command whose IAC precedes the given index
+     */
+    private static int skipTelnetCommand(
+        final ByteBuffer buffer,
+        final int index,
+        final int end
+    ) {
+        if (index >= end) {
+            return end;
+        }
+
+        var command = buffer.get(index) & 0xFF;
+        if ((command >= WILL) && (command <= DONT)) {
+            return Math.min(index + 2, end);
+        } else if (command == SB) {
+            for (int bx = index + 1; bx + 1 < end; bx++) {
+                if (((buffer.get(bx) & 0xFF) == IAC) && ((buffer.get(bx + 1) & 0xFF) == SE)) {
+                    return bx + 2;
+                }
+            }
+            return end;
+        } else {
+            return index + 1;
+        }
+    }
+}
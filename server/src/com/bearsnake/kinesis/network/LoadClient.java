@@ -0,0 +1,512 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.komando.ArgumentSwitch;
+import com.bearsnake.komando.CommandLineHandler;
+import com.bearsnake.komando.SimpleSwitch;
+import com.bearsnake.komando.Switch;
+import com.bearsnake.komando.exceptions.KomandoException;
+import com.bearsnake.komando.restrictions.RangeRestriction;
+import com.bearsnake.komando.values.FixedPointValue;
+import com.bearsnake.komando.values.StringValue;
+import com.bearsnake.komando.values.ValueType;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
+
+/**
+ * Load test for a running server, over loopback.
+ * Simulates many players from a single thread: each session connects and logs in, then either sits idle
+ * or issues a series of commands, one at a time, waiting for the prompt after each.
+ * Sessions use the text protocol, or optionally switch to the binary protocol before logging in.
+ * Reports how long the sessions took to connect, the command rate, and the distribution of command latency -
+ * the time from sending a command to receiving the whole response.
+ */
+public class LoadClient {
+
+    private static final CommandLineHandler _commandLineHandler;
+    private static final Switch _portNumberSwitch;
+    private static final Switch _sessionCountSwitch;
+    private static final Switch _idleCountSwitch;
+    private static final Switch _commandCountSwitch;
+    private static final Switch _commandSwitch;
+    private static final Switch _usernameSwitch;
+    private static final Switch _passwordSwitch;
+    private static final Switch _binarySwitch;
+
+    private static final int DEFAULT_SESSION_COUNT = 1000;
+    private static final int DEFAULT_IDLE_COUNT = 0;
+    private static final int DEFAULT_COMMAND_COUNT = 10;
+    private static final String DEFAULT_COMMAND = "look";
+    private static final int MAX_PENDING_CONNECTS = 256;
+    private static final byte[] PROMPT = WireProtocol.TEXT_PROMPT.getBytes(StandardCharsets.US_ASCII);
+
+    private enum Stage {
+        CONNECTED,
+        SWITCHING,
+        LOGGING_IN,
+        READY,
+    }
+
+    static {
+        try {
+            var portRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(32767L));
+            var countRestriction = new RangeRestriction(new FixedPointValue(0L), new FixedPointValue(100000L));
+
+            _portNumberSwitch = new ArgumentSwitch.Builder().setShortName("p")
+                                                            .setLongName("portNumber")
+                                                            .setValueType(ValueType.FIXED_POINT)
+                                                            .setValueName("portNumber")
+                                                            .setRestriction(portRestriction)
+                                                            .setIsRequired(true)
+                                                            .addDescription("Port number of the kinesis server")
+                                                            .build();
+            _sessionCountSwitch = new ArgumentSwitch.Builder().setShortName("s")
+                                                              .setLongName("sessions")
+                                                              .setValueType(ValueType.FIXED_POINT)
+                                                              .setValueName("count")
+                                                              .setRestriction(countRestriction)
+                                                              .addDescription("Number of sessions issuing commands")
+                                                              .build();
+            _idleCountSwitch = new ArgumentSwitch.Builder().setShortName("i")
+                                                           .setLongName("idle")
+                                                           .setValueType(ValueType.FIXED_POINT)
+                                                           .setValueName("count")
+                                                           .setRestriction(countRestriction)
+                                                           .addDescription("Number of additional sessions which log in and sit idle")
+                                                           .build();
+            _commandCountSwitch = new ArgumentSwitch.Builder().setShortName("n")
+                                                              .setLongName("commands")
+                                                              .setValueType(ValueType.FIXED_POINT)
+                                                              .setValueName("count")
+                                                              .setRestriction(countRestriction)
+                                                              .addDescription("Number of commands issued by each session")
+                                                              .build();
+            _commandSwitch = new ArgumentSwitch.Builder().setShortName("c")
+                                                         .setLongName("command")
+                                                         .setValueType(ValueType.STRING)
+                                                         .setValueName("command")
+                                                         .addDescription("Command issued by the sessions (default look)")
+                                                         .build();
+            _usernameSwitch = new ArgumentSwitch.Builder().setShortName("u")
+                                                          .setLongName("username")
+                                                          .setValueType(ValueType.STRING)
+                                                          .setValueName("username")
+                                                          .addDescription("Username with which the sessions log in")
+                                                          .build();
+            _passwordSwitch = new ArgumentSwitch.Builder().setShortName("pw")
+                                                          .setLongName("password")
+                                                          .setValueType(ValueType.STRING)
+                                                          .setValueName("password")
+                                                          .addDescription("Password with which the sessions log in")
+                                                          .build();
+            _binarySwitch = new SimpleSwitch.Builder().setShortName("b")
+                                                      .setLongName("binary")
+                                                      .addDescription("Sessions use the binary protocol")
+                                                      .build();
+
+            _commandLineHandler = new CommandLineHandler();
+            _commandLineHandler.addCanonicalHelpSwitch()
+                               .addCanonicalVersionSwitch()
+                               .addSwitch(_portNumberSwitch)
+                               .addSwitch(_sessionCountSwitch)
+                               .addSwitch(_idleCountSwitch)
+                               .addSwitch(_commandCountSwitch)
+                               .addSwitch(_commandSwitch)
+                               .addSwitch(_usernameSwitch)
+                               .addSwitch(_passwordSwitch)
+                               .addSwitch(_binarySwitch);
+        } catch (KomandoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private final InetSocketAddress _address;
+    private final int _sessionCount;
+    private final int _idleCount;
+    private final int _commandCount;
+    private final String _command;
+    private final String _loginCommand;
+    private final boolean _binary;
+    private final long[] _latencies;
+    private int _latencyCount = 0;
+    private int _readyCount = 0;
+    private int _finishedCount = 0;
+    private int _failedCount = 0;
+
+    public static void main(
+        final String[] args
+    ) {
+        System.out.println("Kinesis Load Client");
+        var result = _commandLineHandler.processCommandLine(args);
+
+        for (var msg : result._messages) {
+            System.err.println(msg);
+        }
+
+        if (result.hasWarnings() || result.hasErrors()) {
+            System.exit(-1);
+        }
+
+        if (result.isHelpRequested()) {
+            _commandLineHandler.displayUsage("loadclient");
+        } else if (result.isVersionRequested()) {
+            System.out.printf("Version %s\n", KINESIS_VERSION);
+        } else {
+            var specs = result._switchSpecifications;
+            var port = ((FixedPointValue) specs.get(_portNumberSwitch).get(0)).getValue();
+            var sessions = specs.containsKey(_sessionCountSwitch)
+                ? ((FixedPointValue) specs.get(_sessionCountSwitch).get(0)).getValue()
+                : DEFAULT_SESSION_COUNT;
+            var idle = specs.containsKey(_idleCountSwitch)
+                ? ((FixedPointValue) specs.get(_idleCountSwitch).get(0)).getValue()
+                : DEFAULT_IDLE_COUNT;
+            var commands = specs.containsKey(_commandCountSwitch)
+                ? ((FixedPointValue) specs.get(_commandCountSwitch).get(0)).getValue()
+                : DEFAULT_COMMAND_COUNT;
+            var command = specs.containsKey(_commandSwitch)
+                ? ((StringValue) specs.get(_commandSwitch).get(0)).getValue()
+                : DEFAULT_COMMAND;
+            var username = specs.containsKey(_usernameSwitch)
+                ? ((StringValue) specs.get(_usernameSwitch).get(0)).getValue()
+                : "admin";
+            var password = specs.containsKey(_passwordSwitch)
+                ? ((StringValue) specs.get(_passwordSwitch).get(0)).getValue()
+                : "admin";
+            var binary = specs.containsKey(_binarySwitch);
+
+            var client = new LoadClient(new InetSocketAddress("localhost", (int) (long) port),
+                                        (int) sessions,
+                                        (int) idle,
+                                        (int) commands,
+                                        command,
+                                        username,
+                                        password,
+                                        binary);
+            try {
+                var loadResult = client.run();
+                System.out.printf("%d session(s) logged in (%d idle), %d failed, in %d msec\n",
+                                  loadResult.loggedInCount(),
+                                  loadResult.idleCount(),
+                                  loadResult.failedCount(),
+                                  loadResult.loginMsecs());
+                System.out.printf("%d command(s) from %d session(s) in %d msec (%.0f commands/sec)\n",
+                                  loadResult.commandCount(),
+                                  loadResult.sessionCount(),
+                                  loadResult.elapsedMsecs(),
+                                  loadResult.getCommandsPerSecond());
+                System.out.printf("Latency usec: avg %d, p50 %d, p99 %d, max %d\n",
+                                  loadResult.averageMicros(),
+                                  loadResult.p50Micros(),
+                                  loadResult.p99Micros(),
+                                  loadResult.maxMicros());
+            } catch (IOException ex) {
+                System.err.println("ERROR:" + ex);
+            }
+        }
+    }
+
+    LoadClient(
+        final InetSocketAddress address,
+        final int sessionCount,
+        final int idleCount,
+        final int commandCount,
+        final String command,
+        final String username,
+        final String password,
+        final boolean binary
+    ) {
+        _address = address;
+        _sessionCount = sessionCount;
+        _idleCount = idleCount;
+        _commandCount = commandCount;
+        _command = command;
+        _loginCommand = String.format("login %s %s", username, password);
+        _binary = binary;
+        _latencies = new long[sessionCount * commandCount];
+    }
+
+    /**
+     * One simulated player
+     */
+    private class Client {
+
+        private final SocketChannel _channel;
+        private final boolean _idle;
+        private final ByteBuffer _input = ByteBuffer.allocate(4096);
+        private ByteBuffer _output = null;
+        private int _promptMatched = 0;     // how many bytes of the prompt we have just received
+        private Stage _stage = Stage.CONNECTED;
+        private boolean _framed = false;    // receiving binary frames, rather than text
+        private boolean _skipToNewline = false;
+        private int _headerBytes = 0;       // how many bytes of the current frame's length we have received
+        private int _frameRemaining = 0;
+        private int _frameType = -1;
+        private int _commandsSent = 0;
+        private long _sentNanos;
+        private boolean _quitting = false;
+
+        Client(
+            final SocketChannel channel,
+            final boolean idle
+        ) {
+            _channel = channel;
+            _idle = idle;
+        }
+
+        /**
+         * Consumes what the server has sent
+         * @return false if the connection has gone
+         */
+        boolean read() throws IOException {
+            _input.clear();
+            var count = _channel.read(_input);
+            if (count < 0) {
+                return false;
+            }
+
+            for (int bx = 0; bx < count; bx++) {
+                var b = _input.get(bx);
+                var last = (bx == count - 1);
+                if (_framed) {
+                    readFramed(b, last);
+                } else if (b == PROMPT[_promptMatched]) {
+                    _promptMatched++;
+                    if (_promptMatched == PROMPT.length) {
+                        _promptMatched = 0;
+                        if (last) {
+                            onPrompt();
+                        }
+                    }
+                } else {
+                    _promptMatched = (b == PROMPT[0]) ? 1 : 0;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Consumes one byte of binary protocol, looking for the PROMPT frame which ends each response
+         */
+        private void readFramed(
+            final byte b,
+            final boolean last
+        ) throws IOException {
+            if (_skipToNewline) {
+                // the reply to the binary command is still in text
+                _skipToNewline = (b != '\n');
+            } else if (_headerBytes < 2) {
+                _frameRemaining = (_frameRemaining << 8) | (b & 0xFF);
+                _headerBytes++;
+                if ((_headerBytes == 2) && (_frameRemaining == 0)) {
+                    _headerBytes = 0;
+                }
+            } else {
+                if (_frameType < 0) {
+                    _frameType = b & 0xFF;
+                }
+                _frameRemaining--;
+                if (_frameRemaining == 0) {
+                    var type = _frameType;
+                    _headerBytes = 0;
+                    _frameType = -1;
+                    if ((type == WireProtocol.PROMPT) && last) {
+                        onPrompt();
+                    }
+                }
+            }
+        }
+
+        private void onPrompt() throws IOException {
+            if (_sentNanos != 0) {
+                var latency = System.nanoTime() - _sentNanos;
+                _sentNanos = 0;
+                if (_stage == Stage.READY) {
+                    _latencies[_latencyCount++] = latency;
+                }
+            }
+
+            switch (_stage) {
+                case CONNECTED -> {
+                    if (_binary) {
+                        send("binary");
+                        _stage = Stage.SWITCHING;
+                        _framed = true;
+                        _skipToNewline = true;
+                    } else {
+                        send(_loginCommand);
+                        _stage = Stage.LOGGING_IN;
+                    }
+                    return;
+                }
+                case SWITCHING -> {
+                    send(_loginCommand);
+                    _stage = Stage.LOGGING_IN;
+                    return;
+                }
+                case LOGGING_IN -> {
+                    _stage = Stage.READY;
+                    _readyCount++;
+                    if (_idle) {
+                        return;
+                    }
+                }
+                case READY -> {}
+            }
+
+            if (_commandsSent < _commandCount) {
+                _commandsSent++;
+                send(_command);
+            } else if (!_quitting) {
+                _quitting = true;
+                _finishedCount++;
+                send("quit");
+            }
+        }
+
+        private void send(
+            final String command
+        ) throws IOException {
+            if (_framed) {
+                _output = ByteBuffer.allocate(command.length() + 3);
+                WireProtocol.writeCommand(b -> _output.put((byte) b), command);
+                _output.flip();
+            } else {
+                _output = ByteBuffer.wrap((command + "\r\n").getBytes(StandardCharsets.US_ASCII));
+            }
+            _sentNanos = System.nanoTime();
+            _channel.write(_output);
+            if (_output.hasRemaining()) {
+                throw new IOException("Socket send buffer is full");
+            }
+        }
+
+        void close() {
+            try {
+                _channel.close();
+            } catch (IOException ex) {
+                // nothing to do
+            }
+        }
+    }
+
+    /**
+     * Outcome of a load test. Times are from the start of the test; latencies are of commands after login.
+     */
+    public record Result(int sessionCount,
+                         int idleCount,
+                         int loggedInCount,
+                         int failedCount,
+                         long loginMsecs,
+                         int commandCount,
+                         long elapsedMsecs,
+                         long averageMicros,
+                         long p50Micros,
+                         long p99Micros,
+                         long maxMicros) {
+
+        public double getCommandsPerSecond() {
+            return (elapsedMsecs == 0) ? 0.0 : commandCount * 1000.0 / elapsedMsecs;
+        }
+    }
+
+    Result run() throws IOException {
+        var totalSessions = _sessionCount + _idleCount;
+        var clients = new ArrayList<Client>(totalSessions);
+        var selector = Selector.open();
+        var toConnect = new ArrayDeque<Boolean>();
+        for (int sx = 0; sx < totalSessions; sx++) {
+            toConnect.add(sx >= _sessionCount);
+        }
+
+        var startNanos = System.nanoTime();
+        var pendingConnects = 0;
+        var loginNanos = 0L;
+        var allLoggedIn = false;
+        while ((_finishedCount + _failedCount < _sessionCount) || !allLoggedIn) {
+            while (!toConnect.isEmpty() && (pendingConnects < MAX_PENDING_CONNECTS)) {
+                var channel = SocketChannel.open();
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+                var client = new Client(channel, toConnect.poll());
+                clients.add(client);
+                if (channel.connect(_address)) {
+                    channel.register(selector, SelectionKey.OP_READ, client);
+                } else {
+                    channel.register(selector, SelectionKey.OP_CONNECT, client);
+                    pendingConnects++;
+                }
+            }
+
+            if (!allLoggedIn && (_readyCount + _failedCount == totalSessions)) {
+                loginNanos = System.nanoTime() - startNanos;
+                allLoggedIn = true;
+                continue;
+            }
+
+            selector.select(1000);
+            for (var key : selector.selectedKeys()) {
+                var client = (Client) key.attachment();
+                try {
+                    if (key.isConnectable()) {
+                        pendingConnects--;
+                        client._channel.finishConnect();
+                        key.interestOps(SelectionKey.OP_READ);
+                    } else if (key.isReadable() && !client.read()) {
+                        key.cancel();
+                        client.close();
+                        if (!client._quitting) {
+                            _failedCount++;
+                        }
+                    }
+                } catch (IOException ex) {
+                    key.cancel();
+                    client.close();
+                    _failedCount++;
+                }
+            }
+            selector.selectedKeys().clear();
+        }
+
+        var elapsedNanos = System.nanoTime() - startNanos;
+        clients.forEach(Client::close);
+        selector.close();
+
+        var latencies = Arrays.copyOf(_latencies, _latencyCount);
+        Arrays.sort(latencies);
+        var count = latencies.length;
+        return new Result(_sessionCount,
+                          _idleCount,
+                          _readyCount,
+                          _failedCount,
+                          loginNanos / 1_000_000,
+                          count,
+                          elapsedNanos / 1_000_000,
+                          (count == 0) ? 0 : (long) Arrays.stream(latencies).average().orElse(0) / 1000,
+                          (count == 0) ? 0 : percentile(latencies, 0.50) / 1000,
+                          (count == 0) ? 0 : percentile(latencies, 0.99) / 1000,
+                          (count == 0) ? 0 : latencies[count - 1] / 1000);
+    }
+
+    private static long percentile(
+        final long[] sorted,
+        final double fraction
+    ) {
+        var index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(index, sorted.length - 1))];
+    }
+}
@@ -0,0 +1,209 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.DatabaseWrapper;
+import com.bearsnake.kinesis.UniverseSnapshot;
+import com.bearsnake.kinesis.exceptions.KinesisException;
+import com.bearsnake.komando.ArgumentSwitch;
+import com.bearsnake.komando.CommandLineHandler;
+import com.bearsnake.komando.SimpleSwitch;
+import com.bearsnake.komando.Switch;
+import com.bearsnake.komando.exceptions.KomandoException;
+import com.bearsnake.komando.restrictions.RangeRestriction;
+import com.bearsnake.komando.values.FixedPointValue;
+import com.bearsnake.komando.values.StringValue;
+import com.bearsnake.komando.values.ValueType;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+
+import static com.bearsnake.kinesis.Kinesis.KINESIS_VERSION;
+
+/**
+ * Compares the network modes over loopback. Loads a universe, then for each mode in turn starts a server
+ * and runs the same LoadClient test against it - by default 10,000 concurrent sessions each issuing
+ * ten look commands - and reports login time, throughput, and command latency side by side.
+ * The universe is not saved; commands which change it should not be used.
+ */
+public class ModeBenchmark {
+
+    private static final CommandLineHandler _commandLineHandler;
+    private static final Switch _databaseFileSwitch;
+    private static final Switch _portNumberSwitch;
+    private static final Switch _sessionCountSwitch;
+    private static final Switch _commandCountSwitch;
+    private static final Switch _commandSwitch;
+    private static final Switch _binarySwitch;
+
+    private static final int DEFAULT_SESSION_COUNT = 10000;
+    private static final int DEFAULT_COMMAND_COUNT = 10;
+    private static final String DEFAULT_COMMAND = "look";
+
+    static {
+        try {
+            var portRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(32767L));
+            var countRestriction = new RangeRestriction(new FixedPointValue(1L), new FixedPointValue(100000L));
+
+            _databaseFileSwitch = new ArgumentSwitch.Builder().setShortName("db")
+                                                              .setLongName("database")
+                                                              .setValueType(ValueType.STRING)
+                                                              .setValueName("fileName")
+                                                              .setIsRequired(true)
+                                                              .addDescription("Path and filename of the kinesis database")
+                                                              .build();
+            _portNumberSwitch = new ArgumentSwitch.Builder().setShortName("p")
+                                                            .setLongName("portNumber")
+                                                            .setValueType(ValueType.FIXED_POINT)
+                                                            .setValueName("portNumber")
+                                                            .setRestriction(portRestriction)
+                                                            .setIsRequired(true)
+                                                            .addDescription("Port number on which to run the servers")
+                                                            .build();
+            _sessionCountSwitch = new ArgumentSwitch.Builder().setShortName("s")
+                                                              .setLongName("sessions")
+                                                              .setValueType(ValueType.FIXED_POINT)
+                                                              .setValueName("count")
+                                                              .setRestriction(countRestriction)
+                                                              .addDescription("Number of concurrent sessions")
+                                                              .build();
+            _commandCountSwitch = new ArgumentSwitch.Builder().setShortName("n")
+                                                              .setLongName("commands")
+                                                              .setValueType(ValueType.FIXED_POINT)
+                                                              .setValueName("count")
+                                                              .setRestriction(countRestriction)
+                                                              .addDescription("Number of commands issued by each session")
+                                                              .build();
+            _commandSwitch = new ArgumentSwitch.Builder().setShortName("c")
+                                                         .setLongName("command")
+                                                         .setValueType(ValueType.STRING)
+                                                         .setValueName("command")
+                                                         .addDescription("Command issued by the sessions (default look)")
+                                                         .build();
+            _binarySwitch = new SimpleSwitch.Builder().setShortName("b")
+                                                      .setLongName("binary")
+                                                      .addDescription("Sessions use the binary protocol")
+                                                      .build();
+
+            _commandLineHandler = new CommandLineHandler();
+            _commandLineHandler.addCanonicalHelpSwitch()
+                               .addCanonicalVersionSwitch()
+                               .addSwitch(_databaseFileSwitch)
+                               .addSwitch(_portNumberSwitch)
+                               .addSwitch(_sessionCountSwitch)
+                               .addSwitch(_commandCountSwitch)
+                               .addSwitch(_commandSwitch)
+                               .addSwitch(_binarySwitch);
+        } catch (KomandoException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    public static void main(
+        final String[] args
+    ) {
+        System.out.println("Kinesis Network Mode Benchmark");
+        var result = _commandLineHandler.processCommandLine(args);
+
+        for (var msg : result._messages) {
+            System.err.println(msg);
+        }
+
+        if (result.hasWarnings() || result.hasErrors()) {
+            System.exit(-1);
+        }
+
+        if (result.isHelpRequested()) {
+            _commandLineHandler.displayUsage("modebenchmark");
+        } else if (result.isVersionRequested()) {
+            System.out.printf("Version %s\n", KINESIS_VERSION);
+        } else {
+            var specs = result._switchSpecifications;
+            var dbPath = ((StringValue) specs.get(_databaseFileSwitch).get(0)).getValue();
+            var port = ((FixedPointValue) specs.get(_portNumberSwitch).get(0)).getValue();
+            var sessions = specs.containsKey(_sessionCountSwitch)
+                ? ((FixedPointValue) specs.get(_sessionCountSwitch).get(0)).getValue()
+                : DEFAULT_SESSION_COUNT;
+            var commands = specs.containsKey(_commandCountSwitch)
+                ? ((FixedPointValue) specs.get(_commandCountSwitch).get(0)).getValue()
+                : DEFAULT_COMMAND_COUNT;
+            var command = specs.containsKey(_commandSwitch)
+                ? ((StringValue) specs.get(_commandSwitch).get(0)).getValue()
+                : DEFAULT_COMMAND;
+            var binary = specs.containsKey(_binarySwitch);
+
+            try {
+                run(dbPath, (int) (long) port, (int) sessions, (int) commands, command, binary);
+            } catch (KinesisException | IOException ex) {
+                System.err.println("ERROR:" + ex);
+            }
+        }
+    }
+
+    private static void run(
+        final String dbPath,
+        final int port,
+        final int sessionCount,
+        final int commandCount,
+        final String command,
+        final boolean binary
+    ) throws KinesisException, IOException {
+        try (var databaseWrapper = new DatabaseWrapper(dbPath)) {
+            if (!new UniverseSnapshot(dbPath).load()) {
+                databaseWrapper.loadFromDatabase();
+            }
+        }
+
+        var lines = new ArrayList<String>();
+        for (var mode : NetworkMode.values()) {
+            var cpuExecutor = new CpuExecutor();
+            var server = mode.createServer(port, cpuExecutor);
+            server.start();
+
+            var client = new LoadClient(new InetSocketAddress("localhost", port),
+                                        sessionCount,
+                                        0,
+                                        commandCount,
+                                        command,
+                                        "admin",
+                                        "admin",
+                                        binary);
+            LoadClient.Result loadResult;
+            try {
+                loadResult = client.run();
+            } finally {
+                server.close();
+                cpuExecutor.close();
+            }
+
+            var label = mode._code;
+            if ((server instanceof BlockingServer bs) && (bs.getMode() != BlockingServer.ThreadingMode.valueOf(mode.name()))) {
+                label += "*";
+            }
+            lines.add(String.format("%-9s %8d %6d %10d %12.0f %9d %9d %9d %9d",
+                                    label,
+                                    loadResult.loggedInCount(),
+                                    loadResult.failedCount(),
+                                    loadResult.loginMsecs(),
+                                    loadResult.getCommandsPerSecond(),
+                                    loadResult.averageMicros(),
+                                    loadResult.p50Micros(),
+                                    loadResult.p99Micros(),
+                                    loadResult.maxMicros()));
+        }
+
+        System.out.printf("\n%d session(s) x %d '%s' command(s), %s protocol\n",
+                          sessionCount,
+                          commandCount,
+                          command,
+                          binary ? "binary" : "text");
+        System.out.println("mode      sessions failed login msec commands/sec  avg usec  p50 usec  p99 usec  max usec");
+        lines.forEach(System.out::println);
+        if (lines.stream().anyMatch(line -> line.contains("*"))) {
+            System.out.println("* virtual threads are not available in this JDK - ran with platform threads");
+        }
+    }
+}
@@ -0,0 +1,48 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * The ways in which the server can serve its sessions
+ */
+public enum NetworkMode {
+    NIO("nio"),             // one selector thread for all sessions' I/O; commands run on a CpuExecutor
+    VIRTUAL("virtual"),     // a virtual thread per session, with CPU-heavy work on a CpuExecutor
+    PLATFORM("platform");   // a pooled platform thread per session, with CPU-heavy work on a CpuExecutor
+
+    public final String _code;
+
+    NetworkMode(final String code) { _code = code; }
+
+    public static NetworkMode getNetworkMode(
+        final String code
+    ) {
+        var lower = code.toLowerCase(Locale.ROOT);
+        return Arrays.stream(values()).filter(nm -> nm._code.equals(lower)).findFirst().orElse(null);
+    }
+
+    public static String[] getCodes() {
+        return Arrays.stream(values()).map(nm -> nm._code).toArray(String[]::new);
+    }
+
+    /**
+     * Creates (but does not start) a server of this kind
+     * @param cpuExecutor executor for CPU-heavy work - in NIO mode, for every command
+     */
+    public NetworkServer createServer(
+        final int port,
+        final CpuExecutor cpuExecutor
+    ) {
+        return switch (this) {
+            case NIO -> new NioServer(port, new GameCommands(), cpuExecutor);
+            case VIRTUAL -> new BlockingServer(port, new GameCommands(cpuExecutor), BlockingServer.ThreadingMode.VIRTUAL);
+            case PLATFORM -> new BlockingServer(port, new GameCommands(cpuExecutor), BlockingServer.ThreadingMode.PLATFORM);
+        };
+    }
+}
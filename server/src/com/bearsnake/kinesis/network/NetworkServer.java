@@ -0,0 +1,27 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.exceptions.NetworkException;
+
+/**
+ * A means of serving players over the network
+ */
+public interface NetworkServer extends AutoCloseable {
+
+    /**
+     * Starts listening for connections
+     */
+    void start() throws NetworkException;
+
+    int getSessionCount();
+
+    /**
+     * Stops listening, and disconnects every session
+     */
+    @Override
+    void close();
+}
@@ -0,0 +1,243 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.exceptions.NetworkException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * Network front end built on a single selector thread.
+ * The selector thread accepts connections, reads input, and writes output as each channel will take it.
+ * Each complete command is run by the command handler on a CpuExecutor, so that a slow command (a long plot, say)
+ * holds up no other session; a session is not read from while its command runs, so its commands are run one
+ * at a time and in order. An idle session costs nothing but its buffers, so a great many of them can be held open
+ * by the one thread. Output sent from other threads is queued on its session, and the selector is woken to write it.
+ */
+public class NioServer implements NetworkServer {
+
+    private static final Logger LOGGER = LogManager.getLogger("NioServer");
+    public static final int ACCEPT_BACKLOG = 1024;
+
+    private final int _port;
+    private final CommandHandler _handler;
+    private final CpuExecutor _cpuExecutor;
+    private final Set<NioSession> _sessions = ConcurrentHashMap.newKeySet();
+    private final ConcurrentLinkedQueue<NioSession> _flushRequests = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<NioSession> _finishedCommands = new ConcurrentLinkedQueue<>();
+    private final BufferPool _bufferPool = new BufferPool();
+    private Selector _selector;
+    private ServerSocketChannel _serverChannel;
+    private Thread _thread;
+    private volatile boolean _terminate = false;
+
+    private final LongAdder _acceptedCount = new LongAdder();
+    private final LongAdder _bytesRead = new LongAdder();
+    private final LongAdder _bytesWritten = new LongAdder();
+
+    public NioServer(
+        final int port,
+        final CommandHandler handler,
+        final CpuExecutor cpuExecutor
+    ) {
+        _port = port;
+        _handler = handler;
+        _cpuExecutor = cpuExecutor;
+    }
+
+    public long getAcceptedCount() { return _acceptedCount.sum(); }
+    public long getBytesRead() { return _bytesRead.sum(); }
+    public long getBytesWritten() { return _bytesWritten.sum(); }
+    public int getPort() { return _port; }
+    BufferPool getBufferPool() { return _bufferPool; }
+
+    @Override
+    public int getSessionCount() { return _sessions.size(); }
+
+    void countBytesRead(final int count) { _bytesRead.add(count); }
+    void countBytesWritten(final int count) { _bytesWritten.add(count); }
+    void sessionClosed(final NioSession session) { _sessions.remove(session); }
+
+    /**
+     * Binds the listening socket and starts the selector thread
+     */
+    @Override
+    public void start() throws NetworkException {
+        try {
+            _selector = Selector.open();
+            _serverChannel = ServerSocketChannel.open();
+            _serverChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+            _serverChannel.bind(new InetSocketAddress(_port), ACCEPT_BACKLOG);
+            _serverChannel.configureBlocking(false);
+            _serverChannel.register(_selector, SelectionKey.OP_ACCEPT);
+        } catch (IOException ex) {
+            throw new NetworkException(String.format("Cannot listen on port %d:%s", _port, ex.getMessage()));
+        }
+
+        _thread = new Thread(this::run, "NioServer");
+        _thread.start();
+
+        var msg = String.format("Listening on port %d", _port);
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+
+    /**
+     * Asks the selector thread to write a session's pending output
+     */
+    void requestFlush(
+        final NioSession session
+    ) {
+        _flushRequests.add(session);
+        if (Thread.currentThread() != _thread) {
+            _selector.wakeup();
+        }
+    }
+
+    /**
+     * Runs a session's command on the CpuExecutor, and tells the selector thread when it has finished.
+     * Invoked only on the selector thread.
+     */
+    void runCommand(
+        final NioSession session,
+        final String command
+    ) {
+        _cpuExecutor.execute(() -> {
+            try {
+                _handler.onLine(session, command);
+            } finally {
+                _finishedCommands.add(session);
+                _selector.wakeup();
+            }
+        });
+    }
+
+    private void run() {
+        while (!_terminate) {
+            try {
+                _selector.select();
+            } catch (IOException ex) {
+                LOGGER.error("Select failed:{}", ex.getMessage());
+                break;
+            }
+
+            var selectedKeys = _selector.selectedKeys();
+            for (var key : selectedKeys) {
+                if (!key.isValid()) {
+                    continue;
+                }
+
+                if (key.isAcceptable()) {
+                    accept();
+                } else {
+                    var session = (NioSession) key.attachment();
+                    if (key.isReadable()) {
+                        session.read(_handler);
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        session.flush(_handler);
+                    }
+                }
+            }
+            selectedKeys.clear();
+
+            NioSession session;
+            while ((session = _finishedCommands.poll()) != null) {
+                session.commandFinished();
+            }
+            while ((session = _flushRequests.poll()) != null) {
+                session.flush(_handler);
+            }
+        }
+
+        for (var session : new ArrayList<>(_sessions)) {
+            session.terminate(_handler);
+        }
+        try {
+            _serverChannel.close();
+            _selector.close();
+        } catch (IOException ex) {
+            LOGGER.error("Close failed:{}", ex.getMessage());
+        }
+    }
+
+    /**
+     * Accepts every pending connection
+     */
+    private void accept() {
+        while (true) {
+            SocketChannel channel;
+            try {
+                channel = _serverChannel.accept();
+                if (channel == null) {
+                    return;
+                }
+                channel.configureBlocking(false);
+                channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException ex) {
+                LOGGER.warn("Accept failed:{}", ex.getMessage());
+                return;
+            }
+
+            var session = new NioSession(this, channel);
+            try {
+                session.setKey(channel.register(_selector, SelectionKey.OP_READ, session));
+            } catch (IOException ex) {
+                LOGGER.warn("Cannot register {}:{}", session, ex.getMessage());
+                try {
+                    channel.close();
+                } catch (IOException ex2) {
+                    // nothing more we can do
+                }
+                continue;
+            }
+
+            _acceptedCount.increment();
+            _sessions.add(session);
+            LOGGER.debug("Accepted {}", session);
+            _handler.onConnect(session);
+        }
+    }
+
+    /**
+     * Stops accepting connections, disconnects every session, and waits for the selector thread to finish
+     */
+    @Override
+    public void close() {
+        LOGGER.trace("close()");
+        if (_thread == null) {
+            return;
+        }
+
+        _terminate = true;
+        _selector.wakeup();
+        try {
+            _thread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+
+        var msg = String.format("Network: %d connection(s) accepted, %d byte(s) read, %d byte(s) written, %d output buffer(s) allocated",
+                                getAcceptedCount(),
+                                getBytesRead(),
+                                getBytesWritten(),
+                                _bufferPool.getAllocatedCount());
+        System.out.println(msg);
+        LOGGER.info(msg);
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * A session served by the NioServer's selector thread.
+ * Input is read into a direct buffer and taken out a command at a time, each command being handed to the server
+ * to run; the channel is not read while a command is running. Output is encoded straight into pooled direct
+ * buffers, which the selector thread writes to the channel as the channel accepts it.
+ * Output may be sent from any thread.
+ */
+class NioSession extends Session {
+
+    private static final Logger LOGGER = LogManager.getLogger("NioSession");
+    static final int READ_BUFFER_SIZE = 512;
+
+    private final NioServer _server;
+    private final SocketChannel _channel;
+    private final String _remoteAddress;
+    private final ByteBuffer _readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private SelectionKey _key;
+    private boolean _commandRunning = false;    // accessed only on the selector thread
+
+    // guarded by _outputLock
+    private boolean _flushRequested = false;
+    private boolean _closeRequested = false;
+    private boolean _closed = false;
+
+    NioSession(
+        final NioServer server,
+        final SocketChannel channel
+    ) {
+        super(server.getBufferPool());
+        _server = server;
+        _channel = channel;
+        _remoteAddress = remoteAddressOf(channel);
+    }
+
+    void setKey(final SelectionKey value) { _key = value; }
+
+    @Override
+    public String getRemoteAddress() { return _remoteAddress; }
+
+    @Override
+    public void close() {
+        _outputLock.lock();
+        try {
+            if (!_closed && !_closeRequested) {
+                _closeRequested = true;
+                requestFlush();
+            }
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    @Override
+    protected void flushOutput() {
+        requestFlush();
+    }
+
+    private void requestFlush() {
+        if (!_flushRequested) {
+            _flushRequested = true;
+            _server.requestFlush(this);
+        }
+    }
+
+    /**
+     * Reads whatever the channel has for us, and passes the first complete command to the server to be run.
+     * Invoked only on the selector thread, when no command is running.
+     */
+    void read(
+        final CommandHandler handler
+    ) {
+        int count;
+        try {
+            count = _channel.read(_readBuffer);
+        } catch (IOException ex) {
+            LOGGER.debug("{} read failed:{}", this, ex.getMessage());
+            count = -1;
+        }
+
+        if (count < 0) {
+            terminate(handler);
+            return;
+        }
+        _server.countBytesRead(count);
+        dispatch();
+    }
+
+    /**
+     * Invoked on the selector thread once the running command has finished. Runs the next command, if one has
+     * already been read, and otherwise resumes reading.
+     */
+    void commandFinished() {
+        _commandRunning = false;
+        if (_key.isValid()) {
+            _key.interestOps(_key.interestOps() | SelectionKey.OP_READ);
+            dispatch();
+        }
+    }
+
+    /**
+     * Takes the next complete command from the read buffer, if there is one, and has the server run it;
+     * the channel is not read again until it has finished.
+     */
+    private void dispatch() {
+        if (_commandRunning) {
+            return;
+        }
+
+        _readBuffer.flip();
+        var command = isClosing() ? null : nextCommand(_readBuffer);
+        if ((command == null) && (_readBuffer.remaining() == _readBuffer.capacity())) {
+            discardLongCommand(_readBuffer);
+        }
+        _readBuffer.compact();
+
+        if (command != null) {
+            _commandRunning = true;
+            _key.interestOps(_key.interestOps() & ~SelectionKey.OP_READ);
+            _server.runCommand(this, command);
+        }
+    }
+
+    /**
+     * Writes as much pending output as the channel will take, and closes the session if that was requested
+     * and everything has been written. Invoked only on the selector thread.
+     */
+    void flush(
+        final CommandHandler handler
+    ) {
+        boolean finished;
+        _outputLock.lock();
+        try {
+            _flushRequested = false;
+            if (_closed) {
+                return;
+            }
+
+            try {
+                _server.countBytesWritten(_output.writeTo(_channel));
+            } catch (IOException ex) {
+                LOGGER.debug("{} write failed:{}", this, ex.getMessage());
+                _output.clear();
+                _closeRequested = true;
+            }
+
+            var pending = !_output.isEmpty();
+            finished = _closeRequested && !pending;
+            if (!finished && _key.isValid()) {
+                var readOps = _commandRunning ? 0 : SelectionKey.OP_READ;
+                _key.interestOps(pending ? readOps | SelectionKey.OP_WRITE : readOps);
+            }
+        } finally {
+            _outputLock.unlock();
+        }
+
+        if (finished) {
+            terminate(handler);
+        }
+    }
+
+    @Override
+    protected boolean isClosing() {
+        _outputLock.lock();
+        try {
+            return _closed || _closeRequested;
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the channel at once, discarding any pending output. Invoked only on the selector thread.
+     */
+    void terminate(
+        final CommandHandler handler
+    ) {
+        _outputLock.lock();
+        try {
+            if (_closed) {
+                return;
+            }
+            _closed = true;
+            _output.clear();
+        } finally {
+            _outputLock.unlock();
+        }
+
+        _key.cancel();
+        try {
+            _channel.close();
+        } catch (IOException ex) {
+            LOGGER.debug("{} close failed:{}", this, ex.getMessage());
+        }
+        _server.sessionClosed(this);
+        handler.onDisconnect(this);
+    }
+
+    private static String remoteAddressOf(
+        final SocketChannel channel
+    ) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException ex) {
+            return "unknown";
+        }
+    }
+}
@@ -0,0 +1,141 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+
+/**
+ * A session's output which has not yet been written, held in a chain of buffers from a BufferPool.
+ * Output is encoded straight into the last buffer, and another is taken from the pool when it fills;
+ * buffers are given back to the pool as they are written to the channel, so a session with nothing
+ * to send holds no buffers at all. Not thread-safe - the owning session serializes access.
+ */
+public class OutputQueue implements ByteSink {
+
+    private final BufferPool _pool;
+    private final ArrayDeque<ByteBuffer> _buffers = new ArrayDeque<>();    // each in write mode
+    private ByteBuffer _tail = null;
+    private int _size = 0;
+
+    public OutputQueue(
+        final BufferPool pool
+    ) {
+        _pool = pool;
+    }
+
+    public boolean isEmpty() { return _size == 0; }
+    public int size() { return _size; }
+
+    @Override
+    public void put(
+        final int b
+    ) {
+        if ((_tail == null) || !_tail.hasRemaining()) {
+            _tail = _pool.acquire();
+            _buffers.add(_tail);
+        }
+        _tail.put((byte) b);
+        _size++;
+    }
+
+    @Override
+    public void putShort(
+        final int value
+    ) {
+        if ((_tail != null) && (_tail.remaining() >= 2)) {
+            _tail.putShort((short) value);
+            _size += 2;
+        } else {
+            ByteSink.super.putShort(value);
+        }
+    }
+
+    @Override
+    public void putInt(
+        final int value
+    ) {
+        if ((_tail != null) && (_tail.remaining() >= 4)) {
+            _tail.putInt(value);
+            _size += 4;
+        } else {
+            ByteSink.super.putInt(value);
+        }
+    }
+
+    @Override
+    public void putAscii(
+        final CharSequence text
+    ) {
+        var length = text.length();
+        if ((_tail != null) && (_tail.remaining() >= length)) {
+            var position = _tail.position();
+            for (int cx = 0; cx < length; cx++) {
+                var ch = text.charAt(cx);
+                _tail.put(position + cx, (ch < 0x80) ? (byte) ch : (byte) '?');
+            }
+            _tail.position(position + length);
+            _size += length;
+        } else {
+            ByteSink.super.putAscii(text);
+        }
+    }
+
+    /**
+     * Discards everything, giving all the buffers back to the pool
+     */
+    public void clear() {
+        for (var buffer : _buffers) {
+            _pool.release(buffer);
+        }
+        _buffers.clear();
+        _tail = null;
+        _size = 0;
+    }
+
+    /**
+     * Writes as much as the channel will take (for a blocking channel, everything)
+     * @return the number of bytes written
+     */
+    public int writeTo(
+        final WritableByteChannel channel
+    ) throws IOException {
+        var total = 0;
+        while (!_buffers.isEmpty()) {
+            var buffer = _buffers.peek();
+            buffer.flip();
+            var count = channel.write(buffer);
+            total += count;
+            _size -= count;
+            if (buffer.hasRemaining()) {
+                buffer.compact();
+                break;
+            }
+
+            _buffers.poll();
+            if (buffer == _tail) {
+                _tail = null;
+            }
+            _pool.release(buffer);
+        }
+        return total;
+    }
+
+    /**
+     * Copies everything into the given buffer (which must have room), leaving this queue empty
+     */
+    public void drainTo(
+        final ByteBuffer destination
+    ) {
+        for (var buffer : _buffers) {
+            buffer.flip();
+            destination.put(buffer);
+        }
+        clear();
+    }
+}
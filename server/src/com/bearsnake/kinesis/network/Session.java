@@ -0,0 +1,222 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.Sector;
+import com.bearsnake.kinesis.entities.Ship;
+import com.bearsnake.kinesis.util.IdAllocator;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.ReentrantLock;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * One connected client, however it is being served.
+ * Holds the state of the conversation - who is logged in, and where they are - and the means of replying.
+ * Replies are encoded, in whichever protocol the client has chosen, straight into the session's OutputQueue;
+ * the subclass writes the queue to the network. A client which stops reading its output is disconnected
+ * once MAX_PENDING_OUTPUT bytes are waiting.
+ * <p>
+ * The output is guarded by a ReentrantLock rather than the session's monitor: a blocking session writes
+ * to its channel holding the lock, and a virtual thread blocked in a write under a monitor would pin its carrier.
+ */
+public abstract class Session {
+
+    private static final Logger LOGGER = LogManager.getLogger("Session");
+    public static final int MAX_PENDING_OUTPUT = 64 * 1024;
+
+    public enum Protocol {
+        TEXT,
+        BINARY,
+    }
+
+    private static final IdAllocator _sessionIds = new IdAllocator();
+
+    private final long _sessionId;
+    private volatile Player _player = null;
+    private volatile Ship _ship = null;         // the ship the player is flying, if they have one
+    private volatile Sector _location = null;   // where the session is, if there is no ship
+    private volatile Protocol _protocol = Protocol.TEXT;
+    private int _discardCount = 0;              // input still to be thrown away - the rest of a frame too long to read
+
+    protected final ReentrantLock _outputLock = new ReentrantLock();
+
+    // guarded by _outputLock
+    protected final OutputQueue _output;
+
+    protected Session(
+        final BufferPool bufferPool
+    ) {
+        _sessionId = _sessionIds.allocate();
+        _output = new OutputQueue(bufferPool);
+    }
+
+    public long getSessionId() { return _sessionId; }
+    public Player getPlayer() { return _player; }
+    public Protocol getProtocol() { return _protocol; }
+    public Ship getShip() { return _ship; }
+    public boolean isLoggedIn() { return _player != null; }
+
+    /**
+     * Where the session is - the location of its ship, if it has one
+     */
+    public Sector getLocation() {
+        var ship = _ship;
+        return (ship != null) ? ship.getLocation() : _location;
+    }
+
+    public void setLocation(final Sector value) { _location = value; }
+    public void setPlayer(final Player value) { _player = value; }
+    public void setShip(final Ship value) { _ship = value; }
+
+    /**
+     * Switches protocol. Output sent before this is encoded in the old protocol, and input already
+     * taken from the client is not affected.
+     */
+    public void setProtocol(
+        final Protocol value
+    ) {
+        _outputLock.lock();
+        try {
+            _protocol = value;
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    public abstract String getRemoteAddress();
+
+    /**
+     * Queues text to be sent to the client - for a telnet client, with newlines sent as CR/LF.
+     * May be invoked from any thread.
+     */
+    public void send(
+        final CharSequence text
+    ) {
+        _outputLock.lock();
+        try {
+            if (!isClosing()) {
+                if (_protocol == Protocol.BINARY) {
+                    WireProtocol.writeText(_output, text);
+                } else {
+                    WireProtocol.writeTelnetText(_output, text);
+                }
+                outputQueued();
+            }
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    /**
+     * Queues the prompt which tells the client that we are ready for another command
+     */
+    public void sendPrompt() {
+        _outputLock.lock();
+        try {
+            if (!isClosing()) {
+                if (_protocol == Protocol.BINARY) {
+                    WireProtocol.writePrompt(_output);
+                } else {
+                    _output.putAscii(WireProtocol.TEXT_PROMPT);
+                }
+                outputQueued();
+            }
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    /**
+     * Queues a description of the given sector and what is in it
+     */
+    public void sendSectorReport(
+        final Sector sector
+    ) {
+        var ships = sector.getShips();
+        _outputLock.lock();
+        try {
+            if (!isClosing()) {
+                if (_protocol == Protocol.BINARY) {
+                    WireProtocol.writeSectorReport(_output, sector, ships);
+                } else {
+                    WireProtocol.writeSectorText(_output, sector, ships);
+                }
+                outputQueued();
+            }
+        } finally {
+            _outputLock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next command from input which is ready for reading, decoding it according to the protocol
+     * @return the command, or null if the buffer does not hold a complete command
+     */
+    protected String nextCommand(
+        final ByteBuffer input
+    ) {
+        if (_discardCount > 0) {
+            var count = Math.min(_discardCount, input.remaining());
+            input.position(input.position() + count);
+            _discardCount -= count;
+            if (_discardCount > 0) {
+                return null;
+            }
+        }
+        return (_protocol == Protocol.BINARY) ? WireProtocol.nextCommand(input) : LineDecoder.nextLine(input);
+    }
+
+    /**
+     * Throws away a command too long for the input buffer, which is full and ready for reading, and tells the client.
+     * In binary mode the rest of the frame is thrown away as it arrives, so that the frames after it are read correctly.
+     */
+    protected void discardLongCommand(
+        final ByteBuffer input
+    ) {
+        if ((_protocol == Protocol.BINARY) && (input.remaining() >= 2)) {
+            var length = input.getShort(input.position()) & 0xFFFF;
+            _discardCount = 2 + length - input.remaining();
+        }
+        input.position(input.limit());
+        send("Command too long\n");
+    }
+
+    /**
+     * Invoked, holding the lock, after output has been queued. Arranges for it to be written,
+     * unless the client is so far behind that it should be disconnected instead.
+     */
+    private void outputQueued() {
+        if (_output.size() > MAX_PENDING_OUTPUT) {
+            LOGGER.warn("{} is not reading its output - disconnecting", this);
+            _output.clear();
+            close();
+        } else {
+            flushOutput();
+        }
+    }
+
+    /**
+     * Arranges for queued output to be written. Invoked holding the lock.
+     */
+    protected abstract void flushOutput();
+
+    /**
+     * Whether the session is closed, or is closing and should accept no more output. Invoked holding the lock.
+     */
+    protected abstract boolean isClosing();
+
+    /**
+     * Closes the session once anything already sent has been written
+     */
+    public abstract void close();
+
+    @Override
+    public String toString() {
+        return String.format("session %d (%s)", _sessionId, getRemoteAddress());
+    }
+}
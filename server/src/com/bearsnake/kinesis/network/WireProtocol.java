@@ -0,0 +1,313 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.network;
+
+import com.bearsnake.kinesis.entities.Sector;
+import com.bearsnake.kinesis.entities.Ship;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Encoding of server output, in either of the two protocols a session may use.
+ * <p>
+ * TEXT is for telnet clients - lines of US-ASCII ending in CR/LF, with the prompt "> " marking the end of
+ * each response.
+ * <p>
+ * BINARY is a compact protocol for programs. Each message is a frame:
+ * <pre>
+ *   u16   length      number of bytes which follow, counting the type
+ *   u8    type        COMMAND, TEXT, PROMPT, or SECTOR_REPORT
+ *   ...   payload
+ * </pre>
+ * The client sends COMMAND frames whose payload is a command line (without line terminator); the server
+ * replies with TEXT frames (US-ASCII lines ending in LF), SECTOR_REPORT frames, and finally a PROMPT frame,
+ * which has no payload. Multi-byte values are big-endian; strings are a u8 length followed by US-ASCII
+ * bytes, truncated if need be to 255 bytes. A SECTOR_REPORT payload is:
+ * <pre>
+ *   u32   cluster id
+ *   u16   sector number
+ *   u8    warp count (at most 255 are listed), then u16 sector number for each warp
+ *   str   port name (empty if there is no port)
+ *   str   planet name (empty if there is no planet)
+ *   u16   number of ships in the sector
+ *   u16   number of ships listed (fewer, if they would not all fit in one frame), then for each:
+ *           u32  ship id
+ *           u8   ship type code
+ *           str  ship name
+ *           str  owner's game name
+ * </pre>
+ * Both renderings are written straight into an output sink, from the entities' own fields,
+ * without building intermediate Strings.
+ */
+public class WireProtocol {
+
+    public static final int COMMAND = 1;
+    public static final int TEXT = 2;
+    public static final int PROMPT = 3;
+    public static final int SECTOR_REPORT = 4;
+
+    public static final int MAX_FRAME_LENGTH = 0xFFFF;
+    public static final int MAX_STRING_LENGTH = 0xFF;
+    public static final int MAX_WARP_COUNT = 0xFF;
+    public static final String TEXT_PROMPT = "> ";
+
+    // ------------------------------------------------------------------------------------------------------------------
+    // binary encoding
+    // ------------------------------------------------------------------------------------------------------------------
+
+    public static void writeCommand(
+        final ByteSink sink,
+        final CharSequence command
+    ) {
+        var length = Math.min(command.length(), MAX_FRAME_LENGTH - 1);
+        sink.putShort(length + 1);
+        sink.put(COMMAND);
+        for (int cx = 0; cx < length; cx++) {
+            var ch = command.charAt(cx);
+            sink.put((ch < 0x80) ? ch : '?');
+        }
+    }
+
+    public static void writePrompt(
+        final ByteSink sink
+    ) {
+        sink.putShort(1);
+        sink.put(PROMPT);
+    }
+
+    /**
+     * Writes text as one or more TEXT frames
+     */
+    public static void writeText(
+        final ByteSink sink,
+        final CharSequence text
+    ) {
+        var cx = 0;
+        do {
+            var length = Math.min(text.length() - cx, MAX_FRAME_LENGTH - 1);
+            sink.putShort(length + 1);
+            sink.put(TEXT);
+            for (var limit = cx + length; cx < limit; cx++) {
+                var ch = text.charAt(cx);
+                sink.put((ch < 0x80) ? ch : '?');
+            }
+        } while (cx < text.length());
+    }
+
+    /**
+     * Writes a SECTOR_REPORT frame
+     * @param ships the ships in the sector, as returned by sector.getShips() - taken once by the caller,
+     *              so that the length and the content agree even if ships are moving
+     */
+    public static void writeSectorReport(
+        final ByteSink sink,
+        final Sector sector,
+        final List<Ship> ships
+    ) {
+        var port = sector.getPort();
+        var portName = (port == null) ? "" : port.getPortName();
+        var planet = sector.getPlanet();
+        var planetName = (planet == null) ? "" : planet.getPlanetName();
+        var linkCount = Math.min(sector.getLinkCount(), MAX_WARP_COUNT);
+
+        var length = 1 + 4 + 2 + 1 + 2 * linkCount + stringLength(portName) + stringLength(planetName) + 2 + 2;
+        var listed = 0;
+        while (listed < ships.size()) {
+            var ship = ships.get(listed);
+            var entryLength = 4 + 1 + stringLength(ship.getShipName()) + stringLength(ship.getOwner().getGameName());
+            if (length + entryLength > MAX_FRAME_LENGTH) {
+                break;
+            }
+            length += entryLength;
+            listed++;
+        }
+
+        sink.putShort(length);
+        sink.put(SECTOR_REPORT);
+        sink.putInt((int) sector.getCluster().getClusterId().getValue());
+        sink.putShort(sector.getSectorNumber());
+        sink.put(linkCount);
+        for (int lx = 0; lx < linkCount; lx++) {
+            sink.putShort(sector.getLinkedSectorNumber(lx));
+        }
+        putString(sink, portName);
+        putString(sink, planetName);
+        sink.putShort(ships.size());
+        sink.putShort(listed);
+        for (int sx = 0; sx < listed; sx++) {
+            var ship = ships.get(sx);
+            sink.putInt((int) ship.getShipId().getValue());
+            sink.put(ship.getShipType()._code.charAt(0));
+            putString(sink, ship.getShipName());
+            putString(sink, ship.getOwner().getGameName());
+        }
+    }
+
+    private static int stringLength(
+        final String value
+    ) {
+        return 1 + Math.min(value.length(), MAX_STRING_LENGTH);
+    }
+
+    private static void putString(
+        final ByteSink sink,
+        final String value
+    ) {
+        var length = Math.min(value.length(), MAX_STRING_LENGTH);
+        sink.put(length);
+        sink.putAscii((length == value.length()) ? value : value.substring(0, length));
+    }
+
+    // ------------------------------------------------------------------------------------------------------------------
+    // text encoding
+    // ------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Writes text for a telnet client, with each newline sent as CR/LF
+     */
+    public static void writeTelnetText(
+        final ByteSink sink,
+        final CharSequence text
+    ) {
+        for (int cx = 0; cx < text.length(); cx++) {
+            var ch = text.charAt(cx);
+            if (ch == '\n') {
+                sink.put('\r');
+            }
+            sink.put((ch < 0x80) ? ch : '?');
+        }
+    }
+
+    /**
+     * Writes the description of a sector for a telnet client
+     * @param ships the ships in the sector, as returned by sector.getShips()
+     */
+    public static void writeSectorText(
+        final ByteSink sink,
+        final Sector sector,
+        final List<Ship> ships
+    ) {
+        sink.putAscii("Sector ");
+        sink.putDecimal(sector.getSectorNumber());
+        sink.putAscii(" in ");
+        sink.putAscii(sector.getCluster().getClusterName());
+        sink.putAscii("\r\nWarps to:");
+        var linkCount = sector.getLinkCount();
+        for (int lx = 0; lx < linkCount; lx++) {
+            sink.put(' ');
+            sink.putDecimal(sector.getLinkedSectorNumber(lx));
+        }
+        sink.putAscii("\r\n");
+
+        var port = sector.getPort();
+        if (port != null) {
+            sink.putAscii("Port: ");
+            sink.putAscii(port.getPortName());
+            sink.putAscii("\r\n");
+        }
+
+        var planet = sector.getPlanet();
+        if (planet != null) {
+            sink.putAscii("Planet: ");
+            sink.putAscii(planet.getPlanetName());
+            sink.putAscii("\r\n");
+        }
+
+        for (int sx = 0; sx < ships.size(); sx++) {
+            var ship = ships.get(sx);
+            sink.putAscii("Ship: ");
+            sink.putAscii(ship.getShipName());
+            sink.putAscii(" (");
+            sink.putAscii(ship.getOwner().getGameName());
+            sink.putAscii(")\r\n");
+        }
+    }
+
+    // ------------------------------------------------------------------------------------------------------------------
+    // decoding
+    // ------------------------------------------------------------------------------------------------------------------
+
+    /**
+     * Takes the next command from a buffer holding binary input, which is ready for reading.
+     * Frames other than COMMAND frames are skipped.
+     * @return the command line, or null if the buffer does not hold a complete COMMAND frame
+     */
+    public static String nextCommand(
+        final ByteBuffer buffer
+    ) {
+        while (buffer.remaining() >= 2) {
+            var start = buffer.position();
+            var length = buffer.getShort(start) & 0xFFFF;
+            if (buffer.remaining() < 2 + length) {
+                return null;
+            }
+
+            buffer.position(start + 2 + length);
+            if ((length > 0) && (buffer.get(start + 2) == COMMAND)) {
+                var bytes = new byte[length - 1];
+                buffer.get(start + 3, bytes);
+                for (int bx = 0; bx < bytes.length; bx++) {
+                    if ((bytes[bx] < 0x20) || (bytes[bx] == 0x7F)) {
+                        bytes[bx] = ' ';
+                    }
+                }
+                return new String(bytes, StandardCharsets.US_ASCII);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * A decoded SECTOR_REPORT, for clients
+     */
+    public record SectorReport(long clusterId,
+                               int sectorNumber,
+                               int[] warps,
+                               String portName,
+                               String planetName,
+                               int shipCount,
+                               List<ShipEntry> ships) {}
+
+    public record ShipEntry(long shipId,
+                            char shipType,
+                            String shipName,
+                            String ownerName) {}
+
+    /**
+     * Decodes the payload of a SECTOR_REPORT frame - that is, everything after the type
+     */
+    public static SectorReport decodeSectorReport(
+        final ByteBuffer payload
+    ) {
+        var clusterId = payload.getInt() & 0xFFFFFFFFL;
+        var sectorNumber = payload.getShort() & 0xFFFF;
+        var warps = new int[payload.get() & 0xFF];
+        for (int wx = 0; wx < warps.length; wx++) {
+            warps[wx] = payload.getShort() & 0xFFFF;
+        }
+        var portName = getString(payload);
+        var planetName = getString(payload);
+        var shipCount = payload.getShort() & 0xFFFF;
+        var listed = payload.getShort() & 0xFFFF;
+        var ships = new ArrayList<ShipEntry>(listed);
+        for (int sx = 0; sx < listed; sx++) {
+            var shipId = payload.getInt() & 0xFFFFFFFFL;
+            var shipType = (char) payload.get();
+            ships.add(new ShipEntry(shipId, shipType, getString(payload), getString(payload)));
+        }
+        return new SectorReport(clusterId, sectorNumber, warps, portName, planetName, shipCount, ships);
+    }
+
+    private static String getString(
+        final ByteBuffer payload
+    ) {
+        var bytes = new byte[payload.get() & 0xFF];
+        payload.get(bytes);
+        return new String(bytes, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Hands out entity identifiers without locking.
+ * Identifiers start at 1; when entities are loaded, the allocator is advanced past the highest identifier
+ * seen, in whatever order the entities arrive.
+ */
+public class IdAllocator {
+
+    private final AtomicLong _next = new AtomicLong(1);
+
+    /**
+     * Returns an identifier which has not been returned before (since the last reset)
+     */
+    public long allocate() {
+        return _next.getAndIncrement();
+    }
+
+    /**
+     * Ensures that the given identifier, which is already in use, is never returned by allocate()
+     */
+    public void advancePast(
+        final long id
+    ) {
+        _next.accumulateAndGet(id + 1, Math::max);
+    }
+
+    public long peek() {
+        return _next.get();
+    }
+
+    public void reset() {
+        _next.set(1);
+    }
+}
@@ -0,0 +1,290 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.util;
+
+import java.util.AbstractCollection;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Hash map keyed by primitive long, with open addressing and linear probing.
+ * Keys and values are held in two parallel arrays, so an entry costs one long and one reference
+ * (at a load factor of at most one half) rather than a map node, and a lookup needs no key object.
+ * Zero is used to mark an empty slot, and so is not a valid key - entity identifiers start at 1.
+ * <p>
+ * The map is thread-safe. Reads take no lock: a writer stores the value of a new entry before its key,
+ * so a reader which finds the key also finds the value. Writers are serialized with each other.
+ * Removing an entry clears its value but leaves its key, so that probe runs stay intact for readers;
+ * such dead slots are dropped when the table is next rebuilt. A rebuilt table is filled in completely
+ * before it is published, and readers simply carry on with whichever table they started with.
+ * Iteration is weakly consistent - it never fails, and sees the entries present when it began,
+ * and possibly some made since.
+ */
+public class LongHashMap<V> {
+
+    private static final int MINIMUM_CAPACITY = 16;
+
+    // Rough per-object costs on a 64-bit JVM with compressed references, for the footprint comparison
+    private static final int OBJECT_HEADER_BYTES = 12;
+    private static final int REFERENCE_BYTES = 4;
+    private static final int ARRAY_HEADER_BYTES = 16;
+    private static final int HASHMAP_NODE_BYTES = 32;
+
+    /**
+     * Approximate memory used by a map, compared with a HashMap keyed by id objects.
+     * The id objects themselves are not counted, as each entity keeps its own id in any case.
+     */
+    public record Footprint(int size, long bytes, long boxedBytes) {
+
+        public Footprint plus(
+            final Footprint other
+        ) {
+            return new Footprint(size + other.size, bytes + other.bytes, boxedBytes + other.boxedBytes);
+        }
+    }
+
+    private static final class Table {
+
+        private final AtomicLongArray _keys;
+        private final AtomicReferenceArray<Object> _values;
+        private final int _mask;
+
+        private Table(
+            final int capacity
+        ) {
+            _keys = new AtomicLongArray(capacity);
+            _values = new AtomicReferenceArray<>(capacity);
+            _mask = capacity - 1;
+        }
+    }
+
+    private volatile Table _table;
+    private volatile int _size = 0;
+    private int _usedSlots = 0; // live and dead entries - guarded by this
+
+    public LongHashMap() {
+        this(MINIMUM_CAPACITY);
+    }
+
+    public LongHashMap(
+        final int expectedSize
+    ) {
+        _table = new Table(capacityFor(expectedSize));
+    }
+
+    public int size() { return _size; }
+    public boolean isEmpty() { return _size == 0; }
+
+    public synchronized void clear() {
+        _table = new Table(MINIMUM_CAPACITY);
+        _size = 0;
+        _usedSlots = 0;
+    }
+
+    public boolean containsKey(
+        final long key
+    ) {
+        return get(key) != null;
+    }
+
+    @SuppressWarnings("unchecked")
+    public V get(
+        final long key
+    ) {
+        var table = _table;
+        var mask = table._mask;
+        for (int sx = slot(key, mask); ; sx = (sx + 1) & mask) {
+            var slotKey = table._keys.get(sx);
+            if (slotKey == key) {
+                return (V) table._values.get(sx);
+            } else if (slotKey == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Associates the value with the key
+     * @return the value previously associated with the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V put(
+        final long key,
+        final V value
+    ) {
+        if (key == 0) {
+            throw new IllegalArgumentException("Key cannot be zero");
+        }
+        if (value == null) {
+            throw new IllegalArgumentException("Value cannot be null");
+        }
+
+        var table = _table;
+        var mask = table._mask;
+        var sx = slot(key, mask);
+        while (true) {
+            var slotKey = table._keys.get(sx);
+            if (slotKey == key) {
+                var previous = (V) table._values.getAndSet(sx, value);
+                if (previous == null) {
+                    _size++;
+                }
+                return previous;
+            } else if (slotKey == 0) {
+                break;
+            }
+            sx = (sx + 1) & mask;
+        }
+
+        table._values.set(sx, value);
+        table._keys.set(sx, key);
+        _size++;
+        _usedSlots++;
+        if (2 * _usedSlots > table._keys.length()) {
+            rebuild();
+        }
+        return null;
+    }
+
+    /**
+     * Removes the entry for the key
+     * @return the value which was associated with the key, or null if there was none
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized V remove(
+        final long key
+    ) {
+        var table = _table;
+        var mask = table._mask;
+        for (int sx = slot(key, mask); ; sx = (sx + 1) & mask) {
+            var slotKey = table._keys.get(sx);
+            if (slotKey == key) {
+                var previous = (V) table._values.getAndSet(sx, null);
+                if (previous != null) {
+                    _size--;
+                }
+                return previous;
+            } else if (slotKey == 0) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * A read-only, weakly-consistent view of the values in the map
+     */
+    public Collection<V> values() {
+        return new AbstractCollection<>() {
+            @Override
+            public Iterator<V> iterator() {
+                return new ValueIterator(_table);
+            }
+
+            @Override
+            public int size() {
+                return _size;
+            }
+        };
+    }
+
+    public Footprint getFootprint() {
+        var capacity = _table._keys.length();
+        var size = _size;
+        var bytes = OBJECT_HEADER_BYTES + 3L * REFERENCE_BYTES
+                    + 3L * OBJECT_HEADER_BYTES + 3L * REFERENCE_BYTES
+                    + 2L * ARRAY_HEADER_BYTES + (long) capacity * (8 + REFERENCE_BYTES);
+        var hashMapTableSize = Integer.highestOneBit(Math.max(1, (int) (size / 0.75f)) * 2 - 1);
+        var boxedBytes = OBJECT_HEADER_BYTES + 6L * REFERENCE_BYTES
+                         + ARRAY_HEADER_BYTES + (long) hashMapTableSize * REFERENCE_BYTES
+                         + (long) size * HASHMAP_NODE_BYTES;
+        return new Footprint(size, bytes, boxedBytes);
+    }
+
+    /**
+     * Copies the live entries into a new table, sized for them, and publishes it
+     */
+    private void rebuild() {
+        var oldTable = _table;
+        var table = new Table(capacityFor(_size));
+        var mask = table._mask;
+        for (int ox = 0; ox < oldTable._keys.length(); ox++) {
+            var value = oldTable._values.get(ox);
+            if (value != null) {
+                var key = oldTable._keys.get(ox);
+                var sx = slot(key, mask);
+                while (table._keys.get(sx) != 0) {
+                    sx = (sx + 1) & mask;
+                }
+                table._values.set(sx, value);
+                table._keys.set(sx, key);
+            }
+        }
+
+        _usedSlots = _size;
+        _table = table;
+    }
+
+    /**
+     * Smallest power of two which keeps the given number of entries below a load factor of one half
+     */
+    private static int capacityFor(
+        final int size
+    ) {
+        var capacity = MINIMUM_CAPACITY;
+        while (capacity <= 2 * size) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+
+    private static int slot(
+        final long key,
+        final int mask
+    ) {
+        var hash = key * 0x9E3779B97F4A7C15L;
+        return (int) (hash >>> 32) & mask;
+    }
+
+    private class ValueIterator implements Iterator<V> {
+
+        private final Table _iterTable;
+        private Object _nextValue = null;
+        private int _nextSlot = 0;
+
+        private ValueIterator(
+            final Table table
+        ) {
+            _iterTable = table;
+            advance();
+        }
+
+        private void advance() {
+            _nextValue = null;
+            while ((_nextValue == null) && (_nextSlot < _iterTable._keys.length())) {
+                _nextValue = _iterTable._values.get(_nextSlot++);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return _nextValue != null;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public V next() {
+            if (_nextValue == null) {
+                throw new NoSuchElementException();
+            }
+            var value = (V) _nextValue;
+            advance();
+            return value;
+        }
+    }
+}
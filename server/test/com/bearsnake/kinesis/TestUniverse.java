@@ -0,0 +1,132 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis;
+
+import com.bearsnake.kinesis.entities.AdminPlayer;
+import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.Planet;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.Port;
+import com.bearsnake.kinesis.entities.ResourceType;
+import com.bearsnake.kinesis.entities.Sector;
+import com.bearsnake.kinesis.entities.Ship;
+import com.bearsnake.kinesis.exceptions.KinesisException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Builds a small universe in a fresh database, as the Initializer does, and describes universes for comparison
+ */
+public final class TestUniverse {
+
+    private TestUniverse() {}
+
+    /**
+     * Creates a database in the given directory holding an admin player and one standard cluster,
+     * and loads it - replacing whatever universe an earlier test left in memory
+     */
+    public static DatabaseWrapper create(
+        final Path directory
+    ) throws KinesisException {
+        var databaseWrapper = new DatabaseWrapper(directory.resolve("test.db").toString());
+        databaseWrapper.createDatabase();
+        databaseWrapper.createTables();
+        databaseWrapper.loadFromDatabase();
+
+        var admin = AdminPlayer.createPlayer("admin", "admin", "The Administrator");
+        databaseWrapper.write(conn -> {
+            admin.dbPersist(conn);
+            return null;
+        });
+        Cluster.createStandardCluster(databaseWrapper, "Sanctuary", 100, 10);
+
+        databaseWrapper.loadFromDatabase();
+        return databaseWrapper;
+    }
+
+    /**
+     * Describes everything in the universe which is persisted, one line per entity, in a stable order
+     */
+    public static List<String> describe() {
+        var result = new ArrayList<String>();
+        for (var player : Player.getPlayers()) {
+            result.add(String.format("player %d %s %s %s",
+                                     player.getPlayerId().getValue(),
+                                     player.getPlayerType(),
+                                     player.getUsername(),
+                                     player.getGameName()));
+        }
+
+        for (var cluster : Cluster.getClusters()) {
+            result.add(String.format("cluster %d %s", cluster.getClusterId().getValue(), cluster.getClusterName()));
+            for (int sx = 1; sx <= cluster.getHighestSectorNumber(); sx++) {
+                var sector = cluster.getSector(sx);
+                if (sector != null) {
+                    result.add(describe(sector));
+                }
+            }
+        }
+
+        for (var ship : Ship.getShips()) {
+            result.add(String.format("ship %d %s %s owner=%s location=%s fuel=%s shields=%s holds=%d",
+                                     ship.getShipId().getValue(),
+                                     ship.getShipType(),
+                                     ship.getShipName(),
+                                     (ship.getOwner() == null) ? null : ship.getOwner().getPlayerId().getValue(),
+                                     (ship.getLocation() == null) ? null : ship.getLocation().getSectorId().getValue(),
+                                     ship.getFuelAmount(),
+                                     ship.getShieldsLevel(),
+                                     ship.getCargoHoldCount()));
+        }
+
+        for (var planet : Planet.getPlanets()) {
+            result.add(String.format("planet %d %s owner=%s location=%s",
+                                     planet.getPlanetId().getValue(),
+                                     planet.getPlanetName(),
+                                     (planet.getOwner() == null) ? null : planet.getOwner().getPlayerId().getValue(),
+                                     (planet.getLocation() == null) ? null : planet.getLocation().getSectorId().getValue()));
+        }
+
+        for (var port : Port.getPorts()) {
+            var line = new StringBuilder(String.format("port %d %s owner=%s location=%d",
+                                                       port.getPortId().getValue(),
+                                                       port.getPortName(),
+                                                       (port.getOwner() == null) ? null : port.getOwner().getPlayerId().getValue(),
+                                                       port.getLocation().getSectorId().getValue()));
+            for (var resourceType : ResourceType.values()) {
+                var slot = port.getEconomySlot();
+                line.append(String.format(" %s=%s/%s/%s",
+                                          resourceType,
+                                          port.getEconomy().getStock(slot, resourceType),
+                                          port.getEconomy().getProductionRate(slot, resourceType),
+                                          port.getEconomy().getConsumptionRate(slot, resourceType)));
+            }
+            result.add(line.toString());
+        }
+
+        Collections.sort(result);
+        return result;
+    }
+
+    private static String describe(
+        final Sector sector
+    ) {
+        var links = new ArrayList<Integer>();
+        for (int lx = 0; lx < sector.getLinkCount(); lx++) {
+            links.add(sector.getLinkedSectorNumber(lx));
+        }
+        Collections.sort(links);
+        return String.format("sector %d %d/%d links=%s port=%s planet=%s",
+                             sector.getSectorId().getValue(),
+                             sector.getCluster().getClusterId().getValue(),
+                             sector.getSectorNumber(),
+                             links,
+                             (sector.getPort() == null) ? null : sector.getPort().getPortId().getValue(),
+                             (sector.getPlanet() == null) ? null : sector.getPlanet().getPlanetId().getValue());
+    }
+}
@@ -0,0 +1,101 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis;
+
+import com.bearsnake.kinesis.entities.Cluster;
+import com.bearsnake.kinesis.entities.CruiserShip;
+import com.bearsnake.kinesis.entities.Planet;
+import com.bearsnake.kinesis.entities.Player;
+import com.bearsnake.kinesis.entities.ProbeShip;
+import com.bearsnake.kinesis.exceptions.KinesisException;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class UniverseSnapshotTest {
+
+    @TempDir
+    Path _directory;
+
+    private DatabaseWrapper _databaseWrapper;
+    private UniverseSnapshot _snapshot;
+
+    @BeforeEach
+    public void setUp() throws KinesisException {
+        _databaseWrapper = TestUniverse.create(_directory);
+        _snapshot = new UniverseSnapshot(_databaseWrapper.getPath());
+    }
+
+    @AfterEach
+    public void tearDown() {
+        _databaseWrapper.close();
+    }
+
+    @Test
+    public void roundTrip() throws KinesisException {
+        // add ships and a planet to what the initializer creates, so that every kind of entity is covered
+        var owner = Player.getPlayers().iterator().next();
+        var home = Cluster.getClusters().iterator().next().getSector(1);
+        var probe = ProbeShip.createShip(owner, home, 7.0f);
+        var cruiser = CruiserShip.createShip("Phoenix", owner, home, 11.0f, 3.0f, 9);
+        var planet = Planet.createPlanet("Terra", home, owner);
+        _databaseWrapper.write(conn -> {
+            probe.dbPersist(conn);
+            cruiser.dbPersist(conn);
+            planet.dbPersist(conn);
+            return null;
+        });
+        _databaseWrapper.loadFromDatabase();
+        var expected = TestUniverse.describe();
+
+        _snapshot.write();
+
+        // change the universe in memory only, so we can see that loading the snapshot replaces it
+        ProbeShip.createShip(owner, home, 1.0f);
+        assertNotEquals(expected, TestUniverse.describe());
+
+        assertTrue(_snapshot.load());
+        assertEquals(expected, TestUniverse.describe());
+    }
+
+    @Test
+    public void ignoresSnapshotOfOlderDatabase() throws KinesisException {
+        _snapshot.write();
+
+        var owner = Player.getPlayers().iterator().next();
+        var probe = ProbeShip.createShip(owner, Cluster.getClusters().iterator().next().getSector(1), 7.0f);
+        _databaseWrapper.write(conn -> {
+            probe.dbPersist(conn);
+            return null;
+        });
+
+        assertFalse(_snapshot.load());
+    }
+
+    @Test
+    public void ignoresDamagedSnapshot() throws IOException {
+        _snapshot.write();
+        var bytes = Files.readAllBytes(_snapshot.getPath());
+        Files.write(_snapshot.getPath(), Arrays.copyOf(bytes, bytes.length / 2));
+
+        assertFalse(_snapshot.load());
+    }
+
+    @Test
+    public void ignoresMissingSnapshot() {
+        assertFalse(_snapshot.load());
+    }
+}
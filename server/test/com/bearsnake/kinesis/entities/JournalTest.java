@@ -0,0 +1,120 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import com.bearsnake.kinesis.DatabaseWrapper;
+import com.bearsnake.kinesis.TestUniverse;
+import com.bearsnake.kinesis.exceptions.KinesisException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Simulates a crash between flushes - the changes are in the journal but not in the database -
+ * and checks that the next load recovers them.
+ */
+public class JournalTest {
+
+    @TempDir
+    Path _directory;
+
+    private List<Path> findSegments(
+        final DatabaseWrapper databaseWrapper
+    ) throws IOException {
+        var prefix = Path.of(databaseWrapper.getPath()).getFileName() + ".journal.";
+        try (var stream = Files.list(_directory)) {
+            return stream.filter(path -> path.getFileName().toString().startsWith(prefix)).sorted().toList();
+        }
+    }
+
+    @Test
+    public void replayAfterCrash() throws IOException, KinesisException {
+        var databaseWrapper = TestUniverse.create(_directory);
+        var inDatabase = TestUniverse.describe();
+        var journal = Journal.open(databaseWrapper, Journal.DEFAULT_GROUP_COMMIT_MSECS);
+
+        // Make changes of every kind which the journal records, appending them as the flusher would.
+        // Nothing here is written to the database.
+        var owner = Player.getPlayers().iterator().next();
+        var cluster = Cluster.getClusters().iterator().next();
+        var home = cluster.getSector(1);
+
+        var probe = ProbeShip.createShip(owner, home, 7.0f);
+        journal.append(probe);
+
+        var cruiser = CruiserShip.createShip("Phoenix", owner, home, 11.0f, 3.0f, 9);
+        journal.append(cruiser);
+        cruiser.setFuelAmount(5.5f);
+        journal.append(cruiser);
+
+        var planet = Planet.createPlanet("Crashworld", home, owner);
+        home.setPlanet(planet);
+        journal.append(planet);
+
+        var sectorNumber = 2;
+        while (cluster.getSector(sectorNumber).getPort() != null) {
+            sectorNumber++;
+        }
+        var portSector = cluster.getSector(sectorNumber);
+        var port = Port.createPort(portSector, owner);
+        portSector.setPort(port);
+        journal.append(port);
+
+        var from = cluster.getSector(cluster.getHighestSectorNumber());
+        var to = home;
+        while (from.hasLinkTo(to)) {
+            to = cluster.getSector(to.getSectorNumber() + 1);
+        }
+        from.createLinkTo(to);
+        journal.append(new Sector.LinkRow(from.getSectorId().getValue(), to.getSectorId().getValue()));
+
+        var expected = TestUniverse.describe();
+        assertNotEquals(inDatabase, expected);
+
+        // Wait for the group commit, then stop as a crash would - leaving the journal in place, and with part of
+        // a record which never made it to the disk in full.
+        journal.sync();
+        journal.close();
+        databaseWrapper.close();
+        var segments = findSegments(databaseWrapper);
+        assertFalse(segments.isEmpty());
+        var torn = ByteBuffer.allocate(12).putInt(100).putInt(0).putInt(0).array();
+        Files.write(segments.get(segments.size() - 1), torn, StandardOpenOption.APPEND);
+
+        // Restart - the load replays the journal, writes what it recovers to the database, and deletes the journal
+        databaseWrapper = new DatabaseWrapper(databaseWrapper.getPath());
+        databaseWrapper.loadFromDatabase();
+        assertEquals(expected, TestUniverse.describe());
+        assertTrue(findSegments(databaseWrapper).isEmpty());
+
+        // Restart again - everything is now in the database itself
+        databaseWrapper.loadFromDatabase();
+        assertEquals(expected, TestUniverse.describe());
+        databaseWrapper.close();
+    }
+
+    @Test
+    public void replayWithNoJournal() throws KinesisException {
+        var databaseWrapper = TestUniverse.create(_directory);
+        var expected = TestUniverse.describe();
+
+        var journal = Journal.open(databaseWrapper, Journal.DEFAULT_GROUP_COMMIT_MSECS);
+        journal.close();
+        databaseWrapper.loadFromDatabase();
+        assertEquals(expected, TestUniverse.describe());
+        databaseWrapper.close();
+    }
+}
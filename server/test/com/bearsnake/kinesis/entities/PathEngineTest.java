@@ -0,0 +1,196 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.entities;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * Checks the path engine against the exhaustive recursive search which it replaced.
+ * That search tries every simple path, so it is only usable on small clusters - which is all we need here.
+ */
+public class PathEngineTest {
+
+    private static final int SECTOR_COUNT = 12;
+    private static final long CLUSTER_ID = 1;
+
+    /**
+     * Builds a cluster of SECTOR_COUNT sectors with random one-way links (so that some routes do not exist)
+     */
+    private static Cluster createCluster(
+        final long seed
+    ) {
+        Cluster.dbResolve(List.of(new Cluster.Row(CLUSTER_ID, "Test")));
+        var cluster = Cluster.getCluster(CLUSTER_ID);
+        for (int sx = 1; sx <= SECTOR_COUNT; sx++) {
+            cluster.addSector(Sector.createNewSector(cluster, sx));
+        }
+
+        var random = new Random(seed);
+        var rowStart = new int[SECTOR_COUNT + 2];
+        var targets = new ArrayList<Integer>();
+        for (int sx = 1; sx <= SECTOR_COUNT; sx++) {
+            rowStart[sx] = targets.size();
+            for (int lx = random.nextInt(4); lx > 0; lx--) {
+                var target = 1 + random.nextInt(SECTOR_COUNT);
+                if ((target != sx) && !targets.subList(rowStart[sx], targets.size()).contains(target)) {
+                    targets.add(target);
+                }
+            }
+        }
+        rowStart[SECTOR_COUNT + 1] = targets.size();
+        cluster.loadLinks(rowStart, targets.stream().mapToInt(Integer::intValue).toArray());
+        return cluster;
+    }
+
+    /**
+     * The recursive search which Cluster.getShortestPath() used to do
+     */
+    private static LinkedList<Sector> recursiveShortestPath(
+        final Sector start,
+        final Sector goal,
+        final Collection<Sector> avoid
+    ) {
+        if (avoid.contains(goal)) {
+            return null;
+        }
+
+        if (start.equals(goal)) {
+            return new LinkedList<>();
+        }
+
+        var links = start.getLinkedSectors();
+        if (links.contains(goal)) {
+            var result = new LinkedList<Sector>();
+            result.add(goal);
+            return result;
+        }
+
+        var subAvoid = new LinkedList<>(avoid);
+        LinkedList<Sector> subPath = null;
+        subAvoid.add(start);
+        for (var link : links) {
+            if (!avoid.contains(link)) {
+                var subResult = recursiveShortestPath(link, goal, subAvoid);
+                if (subResult != null) {
+                    subResult.add(0, link);
+                    if ((subPath == null) || (subPath.size() > subResult.size())) {
+                        subPath = subResult;
+                    }
+                }
+            }
+        }
+
+        return subPath;
+    }
+
+    /**
+     * Checks that the path is a walk along links from start to goal which passes through no avoided sector,
+     * and is as short as the expected path - the two may differ where there is more than one shortest path
+     */
+    private static void checkPath(
+        final Sector start,
+        final Sector goal,
+        final Collection<Sector> avoid,
+        final List<Sector> expected,
+        final List<Sector> actual
+    ) {
+        var route = start.getSectorNumber() + " to " + goal.getSectorNumber() + " avoiding " + avoid.size();
+        if (expected == null) {
+            assertNull(actual, route);
+            return;
+        }
+
+        assertNotNull(actual, route);
+        assertEquals(expected.size(), actual.size(), route);
+        var from = start;
+        for (var sector : actual) {
+            assertTrue(from.hasLinkTo(sector), route);
+            assertFalse(avoid.contains(sector), route);
+            from = sector;
+        }
+        assertEquals(goal, from, route);
+    }
+
+    private static List<Sector> getSectors(
+        final Cluster cluster
+    ) {
+        var sectors = new ArrayList<Sector>();
+        for (int sx = 1; sx <= cluster.getHighestSectorNumber(); sx++) {
+            sectors.add(cluster.getSector(sx));
+        }
+        return sectors;
+    }
+
+    @Test
+    public void breadthFirstMatchesRecursive() {
+        for (long seed = 1; seed <= 20; seed++) {
+            var cluster = createCluster(seed);
+            cluster.dropLandmarkIndex();
+            var sectors = getSectors(cluster);
+            for (var start : sectors) {
+                for (var goal : sectors) {
+                    var expected = recursiveShortestPath(start, goal, Collections.emptyList());
+                    var actual = Cluster.getShortestPath(start, goal, Collections.emptyList());
+                    checkPath(start, goal, Collections.emptyList(), expected, actual);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void avoidanceMatchesRecursive() {
+        var random = new Random(99);
+        for (long seed = 1; seed <= 20; seed++) {
+            var cluster = createCluster(seed);
+            var sectors = getSectors(cluster);
+            for (var start : sectors) {
+                for (var goal : sectors) {
+                    var avoid = new ArrayList<Sector>();
+                    var constraints = new RouteConstraints();
+                    for (var sector : sectors) {
+                        if ((sector != start) && (random.nextInt(4) == 0)) {
+                            avoid.add(sector);
+                            constraints.avoidSector(sector);
+                        }
+                    }
+
+                    var expected = recursiveShortestPath(start, goal, avoid);
+                    checkPath(start, goal, avoid, expected, Cluster.getShortestPath(start, goal, avoid));
+                    checkPath(start, goal, avoid, expected, Cluster.getShortestPath(start, goal, constraints));
+                }
+            }
+        }
+    }
+
+    @Test
+    public void landmarkSearchMatchesRecursive() {
+        for (long seed = 1; seed <= 20; seed++) {
+            var cluster = createCluster(seed);
+            cluster.buildLandmarkIndex(3);
+            assertNotNull(cluster.getLandmarkIndex());
+            var sectors = getSectors(cluster);
+            for (var start : sectors) {
+                for (var goal : sectors) {
+                    var expected = recursiveShortestPath(start, goal, Collections.emptyList());
+                    var actual = PathEngine.getEngine().findShortestPath(start, goal);
+                    checkPath(start, goal, Collections.emptyList(), expected, actual);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,161 @@
+/*
+ * kinesis
+ * Copyright (c) 2020,2023 by Kurt Duncan - All Rights Reserved
+ */
+
+package com.bearsnake.kinesis.util;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Random;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongHashMapTest {
+
+    @Test
+    public void putGetReplace() {
+        var map = new LongHashMap<String>();
+        assertTrue(map.isEmpty());
+        assertNull(map.put(5, "five"));
+        assertNull(map.put(21, "twenty-one"));
+        assertEquals("five", map.get(5));
+        assertEquals("twenty-one", map.get(21));
+        assertNull(map.get(6));
+        assertFalse(map.containsKey(6));
+
+        assertEquals("five", map.put(5, "FIVE"));
+        assertEquals("FIVE", map.get(5));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void removeAndReinsert() {
+        var map = new LongHashMap<String>();
+        map.put(7, "seven");
+        map.put(8, "eight");
+
+        assertEquals("seven", map.remove(7));
+        assertNull(map.remove(7));
+        assertNull(map.remove(99));
+        assertNull(map.get(7));
+        assertEquals("eight", map.get(8));
+        assertEquals(1, map.size());
+
+        // the removed key leaves a dead slot behind, which a new put for the same key reuses
+        assertNull(map.put(7, "SEVEN"));
+        assertEquals("SEVEN", map.get(7));
+        assertEquals(2, map.size());
+    }
+
+    @Test
+    public void rejectsZeroKeyAndNullValue() {
+        var map = new LongHashMap<String>();
+        assertThrows(IllegalArgumentException.class, () -> map.put(0, "zero"));
+        assertThrows(IllegalArgumentException.class, () -> map.put(1, null));
+        assertTrue(map.isEmpty());
+    }
+
+    /**
+     * Grows the map well past its initial capacity, with keys which collide in the low bits,
+     * and checks every entry survives each rebuild
+     */
+    @Test
+    public void resize() {
+        var map = new LongHashMap<Long>();
+        for (long key = 1; key <= 100_000; key++) {
+            map.put(key << 20, key);
+            if ((key & (key - 1)) == 0) {
+                for (long check = 1; check <= key; check++) {
+                    assertEquals(check, map.get(check << 20));
+                }
+            }
+        }
+
+        assertEquals(100_000, map.size());
+        var seen = new HashSet<Long>();
+        for (var value : map.values()) {
+            assertTrue(seen.add(value));
+        }
+        assertEquals(100_000, seen.size());
+    }
+
+    /**
+     * Churns entries through the map, so that removals leave dead slots, and checks that rebuilding drops them -
+     * the table is sized by the live entries, not by how many keys have ever been used
+     */
+    @Test
+    public void rebuildDropsDeadSlots() {
+        var map = new LongHashMap<Long>();
+        for (long key = 1; key <= 1000; key++) {
+            map.put(key, key);
+        }
+        var bytes = map.getFootprint().bytes();
+
+        for (long key = 1001; key <= 1_000_000; key++) {
+            map.put(key, key);
+            map.remove(key - 1000);
+        }
+
+        assertEquals(1000, map.size());
+        assertTrue(map.getFootprint().bytes() <= 2 * bytes);
+        for (long key = 999_001; key <= 1_000_000; key++) {
+            assertEquals(key, map.get(key));
+        }
+        assertNull(map.get(999_000));
+    }
+
+    /**
+     * Applies a long run of random operations to the map and to a HashMap, and checks that they agree throughout
+     */
+    @Test
+    public void matchesHashMap() {
+        var random = new Random(12345);
+        var map = new LongHashMap<Integer>();
+        var expected = new HashMap<Long, Integer>();
+        for (int ox = 0; ox < 200_000; ox++) {
+            var key = 1 + random.nextInt(5000);
+            if (random.nextInt(3) == 0) {
+                assertEquals(expected.remove((long) key), map.remove(key));
+            } else {
+                assertEquals(expected.put((long) key, ox), map.put(key, ox));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+
+        for (long key = 1; key <= 5000; key++) {
+            assertEquals(expected.get(key), map.get(key));
+        }
+        var values = new HashSet<Integer>();
+        map.values().forEach(values::add);
+        assertEquals(new HashSet<>(expected.values()), values);
+    }
+
+    @Test
+    public void clear() {
+        var map = new LongHashMap<String>();
+        for (long key = 1; key <= 100; key++) {
+            map.put(key, "v" + key);
+        }
+        var iterator = map.values().iterator();
+
+        map.clear();
+        assertTrue(map.isEmpty());
+        assertNull(map.get(50));
+        assertFalse(map.values().iterator().hasNext());
+
+        // an iterator taken before the clear carries on over the table it started with
+        var count = 0;
+        while (iterator.hasNext()) {
+            iterator.next();
+            count++;
+        }
+        assertEquals(100, count);
+        assertNull(map.put(50, "again"));
+    }
+}